@@ -0,0 +1,206 @@
+package com.fastcgi;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Класс FCGIAccounting учитывает процессорное время и объем памяти, выделенной потоками при обработке
+ * каждого запроса, с помощью {@link com.sun.management.ThreadMXBean}. Учет включается свойством
+ * {@code FCGI_ACCOUNTING=true}.
+ * <p>
+ * Значения снимаются в начале и в конце каждого участка обработки, который выполняет сама библиотека:
+ * для {@link FCGIInterface#FCGIaccept()} — весь интервал между вызовами, для {@link FCGIServer} — чтение
+ * запроса, вызов обработчика и запись ответа. Работа, которую обработчик выполняет в собственных потоках,
+ * не учитывается. Результат записывается в поля {@link FCGIRequest#cpuNanos} и {@link FCGIRequest#allocatedBytes}
+ * завершенного запроса и суммируется по значению параметра {@code SCRIPT_NAME}; количество различных
+ * значений ограничено свойством {@code FCGI_ACCOUNTING_MAX_SCRIPTS}, остальные учитываются под именем {@link #OTHER}.
+ */
+public class FCGIAccounting {
+
+    /** Имя, под которым учитываются запросы сверх ограничения на количество SCRIPT_NAME. */
+    public static final String OTHER = "(other)";
+
+    /** Максимальное количество различных значений SCRIPT_NAME. */
+    private static final int MAX_SCRIPTS = Integer.getInteger("FCGI_ACCOUNTING_MAX_SCRIPTS", 1000);
+
+    /** Источник значений для потоков или {@code null}, если учет выключен или не поддерживается JVM. */
+    private static final com.sun.management.ThreadMXBean threads = open(Boolean.getBoolean("FCGI_ACCOUNTING"));
+
+    /** Флаг учета. */
+    public static final boolean ENABLED = threads != null;
+
+    /** Суммы по значениям SCRIPT_NAME. */
+    private static final Map<String, Totals> totals = new ConcurrentHashMap<>();
+
+    /** Количество различных значений SCRIPT_NAME в {@link #totals}, не считая {@link #OTHER}. */
+    private static final AtomicInteger scripts = new AtomicInteger();
+
+    /**
+     * Суммы по одному значению SCRIPT_NAME.
+     */
+    private static class Totals {
+
+        /** Количество запросов. */
+        final LongAdder requests = new LongAdder();
+
+        /** Процессорное время в наносекундах. */
+        final LongAdder cpuNanos = new LongAdder();
+
+        /** Объем выделенной памяти в байтах. */
+        final LongAdder allocatedBytes = new LongAdder();
+    }
+
+    private FCGIAccounting() {
+    }
+
+    /**
+     * Включает измерение времени и памяти потоков.
+     *
+     * @param enabled Значение свойства {@code FCGI_ACCOUNTING}.
+     * @return Источник значений или {@code null}, если учет выключен или не поддерживается.
+     */
+    private static com.sun.management.ThreadMXBean open(boolean enabled) {
+        if (!enabled || !(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean)
+                || !bean.isCurrentThreadCpuTimeSupported() || !bean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        bean.setThreadCpuTimeEnabled(true);
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+    /**
+     * Возвращает процессорное время текущего потока.
+     *
+     * @return Время в наносекундах; 0, если учет выключен.
+     */
+    public static long cpuTime() {
+        return ENABLED ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Возвращает объем памяти, выделенной текущим потоком за все время его работы.
+     *
+     * @return Объем в байтах; 0, если учет выключен.
+     */
+    public static long allocated() {
+        return ENABLED ? threads.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * Добавляет к запросу ресурсы, израсходованные текущим потоком с момента снятия значений.
+     *
+     * @param request Запрос.
+     * @param cpuStart Значение {@link #cpuTime()} в начале участка.
+     * @param allocatedStart Значение {@link #allocated()} в начале участка.
+     */
+    public static void charge(FCGIRequest request, long cpuStart, long allocatedStart) {
+        if (!ENABLED || request.params == null) {
+            return;
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - allocatedStart;
+        // Участки одного запроса могут выполняться в разных потоках одновременно и завершаться
+        // после записи ответа, поэтому суммы по SCRIPT_NAME пополняются сразу, а не при завершении запроса
+        synchronized (request) {
+            request.cpuNanos += cpu;
+            request.allocatedBytes += bytes;
+        }
+        Totals sums = totalsFor(request);
+        sums.cpuNanos.add(cpu);
+        sums.allocatedBytes.add(bytes);
+    }
+
+    /**
+     * Добавляет к запросу последний участок обработки и учитывает запрос в количестве запросов его SCRIPT_NAME.
+     *
+     * @param request Завершенный запрос.
+     * @param cpuStart Значение {@link #cpuTime()} в начале участка.
+     * @param allocatedStart Значение {@link #allocated()} в начале участка.
+     */
+    public static void finish(FCGIRequest request, long cpuStart, long allocatedStart) {
+        if (!ENABLED || request.params == null) {
+            return;
+        }
+        charge(request, cpuStart, allocatedStart);
+        totalsFor(request).requests.increment();
+    }
+
+    /**
+     * Возвращает суммы для SCRIPT_NAME запроса, создавая их при первом обращении.
+     *
+     * @param request Запрос с прочитанными параметрами.
+     * @return Суммы.
+     */
+    private static Totals totalsFor(FCGIRequest request) {
+        String script = request.params.getProperty("SCRIPT_NAME", "");
+        Totals sums = totals.get(script);
+        if (sums != null) {
+            return sums;
+        }
+        // Место под новое значение занимается до вставки, иначе одновременные вставки превысят ограничение
+        int count;
+        do {
+            count = scripts.get();
+            if (count >= MAX_SCRIPTS) {
+                return totals.computeIfAbsent(OTHER, key -> new Totals());
+            }
+        } while (!scripts.compareAndSet(count, count + 1));
+
+        Totals created = new Totals();
+        sums = totals.putIfAbsent(script, created);
+        if (sums != null) {
+            // Значение уже добавлено другим потоком
+            scripts.decrementAndGet();
+            return sums;
+        }
+        return created;
+    }
+
+    /**
+     * Возвращает суммы по значениям SCRIPT_NAME, упорядоченные по убыванию процессорного времени.
+     *
+     * @return Для каждого SCRIPT_NAME массив из трех значений: количество запросов,
+     *         процессорное время в наносекундах и объем выделенной памяти в байтах.
+     */
+    public static Map<String, long[]> getTotals() {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>();
+        for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+            Totals sums = entry.getValue();
+            entries.add(Map.entry(entry.getKey(), new long[]{sums.requests.sum(), sums.cpuNanos.sum(), sums.allocatedBytes.sum()}));
+        }
+        entries.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+
+        Map<String, long[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Формирует текстовый отчет по суммам: SCRIPT_NAME, количество запросов, среднее процессорное время
+     * в микросекундах и средний объем выделенной памяти в байтах на запрос.
+     *
+     * @return Отчет, по одной строке на SCRIPT_NAME.
+     */
+    public static String report() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : getTotals().entrySet()) {
+            long[] sums = entry.getValue();
+            long count = Math.max(1, sums[0]);
+            text.append(entry.getKey().isEmpty() ? "-" : entry.getKey())
+                    .append(' ').append(sums[0])
+                    .append(" cpu_us=").append(sums[1] / count / 1000)
+                    .append(" alloc=").append(sums[2] / count)
+                    .append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.fastcgi;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Интерфейс FCGIAsyncHandler описывает асинхронный обработчик запросов FastCGI.
+ * Обработчик не блокирует поток на время ожидания внешних сервисов: он возвращает
+ * {@link CompletableFuture}, по завершении которого библиотека сама отправляет записи stdout
+ * и EndRequest. Благодаря этому небольшой пул потоков может обслуживать множество медленных запросов.
+ */
+@FunctionalInterface
+public interface FCGIAsyncHandler {
+
+    /**
+     * Обрабатывает запрос FastCGI.
+     *
+     * @param request Запрос FastCGI; параметры запроса доступны через {@code request.params}.
+     * @param body Тело запроса (данные stdin), прочитанное полностью.
+     * @return Будущий ответ в формате CGI: заголовки, пустая строка и тело ответа.
+     *         Исключительное завершение приводит к ответу со статусом 500.
+     */
+    CompletableFuture<byte[]> handle(FCGIRequest request, byte[] body);
+}
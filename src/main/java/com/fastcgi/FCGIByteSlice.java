@@ -0,0 +1,108 @@
+package com.fastcgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Класс FCGIByteSlice — представление части массива байт без копирования.
+ * Строка создается лениво, только при первом обращении к {@link #toString()},
+ * поэтому поля формы, которые обработчик не использует, никогда не декодируются.
+ */
+public class FCGIByteSlice {
+
+    /** Пустой срез. */
+    public static final FCGIByteSlice EMPTY = new FCGIByteSlice(new byte[0], 0, 0);
+
+    /** Массив, содержащий данные среза. */
+    public final byte[] array;
+
+    /** Смещение начала среза в массиве. */
+    public final int offset;
+
+    /** Длина среза. */
+    public final int length;
+
+    /** Декодированная строка (UTF-8) или {@code null}, если она еще не создавалась. */
+    private String string;
+
+    /**
+     * Конструктор класса FCGIByteSlice.
+     *
+     * @param array Массив данных.
+     * @param offset Смещение начала среза.
+     * @param length Длина среза.
+     */
+    public FCGIByteSlice(byte[] array, int offset, int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Возвращает байт среза.
+     *
+     * @param index Индекс байта в срезе.
+     * @return Значение байта.
+     */
+    public byte byteAt(int index) {
+        if (index < 0 || index >= this.length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return this.array[this.offset + index];
+    }
+
+    /**
+     * Возвращает буфер только для чтения, разделяющий данные со срезом.
+     *
+     * @return Буфер.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(this.array, this.offset, this.length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Возвращает поток чтения данных среза.
+     *
+     * @return Поток.
+     */
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(this.array, this.offset, this.length);
+    }
+
+    /**
+     * Копирует данные среза в новый массив.
+     *
+     * @return Копия данных.
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[this.length];
+        System.arraycopy(this.array, this.offset, copy, 0, this.length);
+        return copy;
+    }
+
+    /**
+     * Декодирует срез в строку в заданной кодировке.
+     *
+     * @param charset Кодировка.
+     * @return Строка.
+     */
+    public String toString(Charset charset) {
+        return new String(this.array, this.offset, this.length, charset);
+    }
+
+    /**
+     * Возвращает срез, декодированный в строку UTF-8. Строка создается при первом вызове.
+     *
+     * @return Строка.
+     */
+    @Override
+    public String toString() {
+        if (this.string == null) {
+            this.string = this.toString(StandardCharsets.UTF_8);
+        }
+        return this.string;
+    }
+}
@@ -0,0 +1,172 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс FCGICapture записывает весь трафик FastCGI в журнал {@code FCGI_CAPTURE_FILE} для последующего
+ * воспроизведения {@link FCGIReplay}. В журнал попадают байты, прочитанные {@link FCGIInputStream}
+ * и отправленные через {@link FCGIConnectionWriter}, а также закрытия соединений, с временем
+ * и номером соединения.
+ * <p>
+ * Журнал — отображенный в память файл размером {@code FCGI_CAPTURE_SIZE} байт (по умолчанию 256 МБ),
+ * в который записи только добавляются. Место под запись выделяется атомарным сдвигом позиции, поэтому
+ * потоки записывают без блокировок; когда место заканчивается, новые записи отбрасываются.
+ * <p>
+ * Формат (little-endian): заголовок {@link #HEADER_SIZE} байт — {@link #MAGIC}, версия (int),
+ * размер заголовка записи (int) и время начала (мс с эпохи); затем записи, выровненные на 8 байт.
+ * Запись начинается с {@link #ENTRY_HEADER_SIZE}-байтового заголовка: полный размер записи (int),
+ * длина данных (int), время от начала журнала в наносекундах (long), номер соединения (int)
+ * и направление {@link #IN}, {@link #OUT} или {@link #CLOSE} (int). Размер записи записывается последним,
+ * поэтому нулевой размер означает конец журнала, в том числе после аварийного завершения.
+ */
+public class FCGICapture {
+
+    /** Признак журнала: строка {@code FCGICAP1} в виде числа little-endian. */
+    public static final long MAGIC = 0x3150414349474346L;
+
+    /** Версия формата журнала. */
+    public static final int VERSION = 1;
+
+    /** Размер заголовка журнала в байтах. */
+    public static final int HEADER_SIZE = 32;
+
+    /** Размер заголовка записи в байтах. */
+    public static final int ENTRY_HEADER_SIZE = 24;
+
+    /** Направление: данные, прочитанные из соединения. */
+    public static final int IN = 0;
+
+    /** Направление: данные, отправленные в соединение. */
+    public static final int OUT = 1;
+
+    /** Закрытие соединения (без данных). */
+    public static final int CLOSE = 2;
+
+    /** Доступ к 32-битным значениям отображенной памяти. */
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Отображенный файл журнала или {@code null}, если запись выключена. */
+    private static final MappedByteBuffer map = open(System.getProperty("FCGI_CAPTURE_FILE"),
+            Long.getLong("FCGI_CAPTURE_SIZE", 256L * 1024 * 1024));
+
+    /** Флаг записи трафика. */
+    public static final boolean ENABLED = map != null;
+
+    /** Момент начала журнала ({@link System#nanoTime()}). */
+    private static final long startNanos = System.nanoTime();
+
+    /** Позиция следующей записи. */
+    private static final AtomicLong position = new AtomicLong(HEADER_SIZE);
+
+    /** Количество записей, отброшенных из-за нехватки места. */
+    private static final AtomicLong dropped = new AtomicLong();
+
+    /** Последний выданный номер соединения. */
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    private FCGICapture() {
+    }
+
+    /**
+     * Создает и отображает в память файл журнала.
+     *
+     * @param path Путь к файлу или {@code null}.
+     * @param size Размер файла в байтах.
+     * @return Отображенный файл или {@code null}, если путь не задан или файл не удалось создать.
+     */
+    private static MappedByteBuffer open(String path, long size) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Math.max(size, HEADER_SIZE), Integer.MAX_VALUE & ~7));
+        } catch (IOException e) {
+            return null;
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(0, MAGIC);
+        buf.putInt(8, VERSION);
+        buf.putInt(12, ENTRY_HEADER_SIZE);
+        buf.putLong(16, System.currentTimeMillis());
+        return buf;
+    }
+
+    /**
+     * Выдает номер новому соединению.
+     *
+     * @return Номер соединения; 0, если запись выключена.
+     */
+    public static int nextConnectionId() {
+        return ENABLED ? connections.incrementAndGet() : 0;
+    }
+
+    /**
+     * Возвращает количество записей, отброшенных из-за нехватки места в журнале.
+     *
+     * @return Количество записей.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Добавляет в журнал данные соединения.
+     *
+     * @param connectionId Номер соединения.
+     * @param direction Направление {@link #IN} или {@link #OUT}.
+     * @param b Данные.
+     * @param off Смещение начала данных.
+     * @param len Длина данных.
+     */
+    public static void record(int connectionId, int direction, byte[] b, int off, int len) {
+        if (!ENABLED || len <= 0) {
+            return;
+        }
+        int size = (ENTRY_HEADER_SIZE + len + 7) & ~7;
+        long at = position.getAndAdd(size);
+        if (at + size > map.capacity()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int index = (int) at;
+        map.put(index + ENTRY_HEADER_SIZE, b, off, len);
+        map.putInt(index + 4, len);
+        map.putLong(index + 8, System.nanoTime() - startNanos);
+        map.putInt(index + 16, connectionId);
+        map.putInt(index + 20, direction);
+        INTS.setRelease(map, index, size);
+    }
+
+    /**
+     * Добавляет в журнал закрытие соединения запроса.
+     *
+     * @param request Запрос, соединение которого закрывается.
+     */
+    public static void closed(FCGIRequest request) {
+        if (!ENABLED) {
+            return;
+        }
+        long at = position.getAndAdd(ENTRY_HEADER_SIZE);
+        if (at + ENTRY_HEADER_SIZE > map.capacity()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int index = (int) at;
+        map.putInt(index + 4, 0);
+        map.putLong(index + 8, System.nanoTime() - startNanos);
+        map.putInt(index + 16, request.connectionId);
+        map.putInt(index + 20, CLOSE);
+        INTS.setRelease(map, index, ENTRY_HEADER_SIZE);
+    }
+}
@@ -0,0 +1,345 @@
+package com.fastcgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Класс FCGIClient — клиент для обращения к внешним FastCGI-приложениям (например, PHP-FPM)
+ * из шлюзов, построенных на этой библиотеке. Клиент держит пул соединений keep-alive с одним
+ * приложением, поэтому установка соединения не повторяется для каждого запроса.
+ * <p>
+ * При первом подключении клиент отправляет запрос GetValues. Если приложение сообщает
+ * {@code FCGI_MPXS_CONNS=1}, по одному соединению одновременно выполняется до {@code FCGI_MAX_REQS}
+ * запросов; иначе каждое соединение выполняет один запрос за раз. Если приложение не ответило
+ * за {@link #probeTimeout} миллисекунд, мультиплексирование не используется.
+ * <p>
+ * Вывод приложения передается по мере поступления: {@link FCGIClientResponse#getInputStream()}
+ * или собственный {@link FCGIRecordListener}. Непрочитанный вывод {@link FCGIClientResponse} ограничен
+ * {@link #responseBufferLimit} байтами.
+ */
+public class FCGIClient {
+
+    /** Адрес приложения. */
+    public final InetSocketAddress address;
+
+    /** Максимальное количество соединений с приложением. */
+    public final int maxConnections;
+
+    /** Тайм-аут установки соединения в миллисекундах. */
+    public int connectTimeout = 5000;
+
+    /** Время ожидания ответа на GetValues в миллисекундах; 0 отключает запрос. */
+    public int probeTimeout = 1000;
+
+    /** Предел непрочитанного вывода ответа {@link FCGIClientResponse} в байтах. */
+    public int responseBufferLimit = FCGIClientResponse.DEFAULT_BUFFER_LIMIT;
+
+    /** Соединения пула. */
+    private final List<FCGIClientConnection> connections = new ArrayList<>();
+
+    /** Количество устанавливаемых соединений. */
+    private int connecting;
+
+    /** Количество одновременных запросов по соединению или 0, если приложение еще не опрошено. */
+    private int capacity;
+
+    /**
+     * Место запроса в соединении пула.
+     *
+     * @param connection Соединение.
+     * @param requestId Идентификатор запроса.
+     * @param fresh Признак нового соединения.
+     */
+    private record Slot(FCGIClientConnection connection, int requestId, boolean fresh) {
+    }
+
+    /**
+     * Конструктор класса FCGIClient.
+     *
+     * @param host Имя или адрес хоста приложения.
+     * @param port Порт приложения.
+     * @param maxConnections Максимальное количество соединений.
+     */
+    public FCGIClient(String host, int port, int maxConnections) {
+        this.address = new InetSocketAddress(host, port);
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Выполняет запрос с ролью RESPONDER.
+     *
+     * @param params Параметры запроса (CGI-переменные).
+     * @param body Тело запроса или {@code null}.
+     * @return Ответ, вывод которого можно читать по мере поступления.
+     * @throws IOException Если запрос не удалось отправить.
+     */
+    public FCGIClientResponse execute(Properties params, byte[] body) throws IOException {
+        return this.execute(FCGIGlobalDefs.def_FCGIResponder, params, body == null ? null : new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Выполняет запрос.
+     *
+     * @param role Роль приложения.
+     * @param params Параметры запроса.
+     * @param body Тело запроса или {@code null}.
+     * @return Ответ, вывод которого можно читать по мере поступления.
+     * @throws IOException Если запрос не удалось отправить.
+     */
+    public FCGIClientResponse execute(int role, Properties params, InputStream body) throws IOException {
+        FCGIClientResponse response = new FCGIClientResponse(this.responseBufferLimit);
+        this.execute(role, params, body, response);
+        return response;
+    }
+
+    /**
+     * Выполняет запрос, передавая записи ответа слушателю из потока чтения соединения.
+     * Если повторно используемое соединение оказалось закрыто приложением (например, по простою или
+     * после {@code pm.max_requests} PHP-FPM) до первой записи ответа, а тело запроса можно прочитать заново
+     * (его нет или это {@link ByteArrayInputStream}), запрос один раз повторяется по новому соединению.
+     * Это касается и ошибки отправки, и конца потока, обнаруженного потоком чтения уже после отправки.
+     *
+     * @param role Роль приложения.
+     * @param params Параметры запроса.
+     * @param body Тело запроса или {@code null}.
+     * @param listener Слушатель записей ответа.
+     * @throws IOException Если запрос не удалось отправить.
+     */
+    public void execute(int role, Properties params, InputStream body, FCGIRecordListener listener) throws IOException {
+        this.execute(role, params, body, listener, 0);
+    }
+
+    /**
+     * Выполняет запрос или его повтор.
+     *
+     * @param role Роль приложения.
+     * @param params Параметры запроса.
+     * @param body Тело запроса или {@code null}.
+     * @param listener Слушатель записей ответа.
+     * @param retryOf Идентификатор запроса на закрытом соединении, если это его повтор из потока чтения; иначе 0.
+     * @throws IOException Если запрос не удалось отправить.
+     */
+    private void execute(int role, Properties params, InputStream body, FCGIRecordListener listener, int retryOf) throws IOException {
+        boolean replayable = body == null || body instanceof ByteArrayInputStream;
+        boolean retried = retryOf != 0;
+        while (true) {
+            Slot slot;
+            try {
+                slot = this.acquire(listener);
+            } catch (IOException e) {
+                if (retryOf != 0) {
+                    // Повтор выполняется из потока чтения, и ошибку кроме слушателя получить некому
+                    FCGIClientConnection.fail(retryOf, listener, e);
+                }
+                throw e;
+            }
+            Runnable retry = retried || slot.fresh() || !replayable ? null : () -> this.retry(slot.requestId(), role, params, body, listener);
+            try {
+                slot.connection().execute(slot.requestId(), role, params, body, retry);
+                return;
+            } catch (IOException e) {
+                boolean responded = slot.connection().isResponded(slot.requestId());
+                // Слушатель снимается до закрытия соединения, иначе закрытие завершило бы его ошибкой
+                // и повторный запрос передавал бы ответ уже завершенному слушателю
+                if (!slot.connection().detachAndClose(slot.requestId(), e)) {
+                    throw e;
+                }
+                if (retry == null || responded) {
+                    FCGIClientConnection.fail(slot.requestId(), listener, e);
+                    throw e;
+                }
+                if (body != null) {
+                    body.reset();
+                }
+                retried = true;
+            } catch (RuntimeException e) {
+                slot.connection().detachAndClose(slot.requestId(), new IOException(e));
+                FCGIClientConnection.fail(slot.requestId(), listener, new IOException(e));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Повторяет по новому соединению запрос, на который закрытое приложением соединение не ответило.
+     * Вызывается из потока, закрывшего соединение; если повтор не удался, слушатель завершается ошибкой.
+     *
+     * @param requestId Идентификатор запроса на закрытом соединении.
+     * @param role Роль приложения.
+     * @param params Параметры запроса.
+     * @param body Тело запроса или {@code null}.
+     * @param listener Слушатель записей ответа.
+     */
+    private void retry(int requestId, int role, Properties params, InputStream body, FCGIRecordListener listener) {
+        try {
+            if (body != null) {
+                body.reset();
+            }
+            this.execute(role, params, body, listener, requestId);
+        } catch (IOException | RuntimeException e) {
+            // Слушатель уже завершен ошибкой
+        }
+    }
+
+    /**
+     * Возвращает количество открытых соединений пула.
+     *
+     * @return Количество соединений.
+     */
+    public synchronized int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    /**
+     * Закрывает все соединения пула. Выполняющиеся запросы завершаются ошибкой.
+     */
+    public void close() {
+        List<FCGIClientConnection> all;
+        synchronized (this) {
+            all = new ArrayList<>(this.connections);
+        }
+        for (FCGIClientConnection connection : all) {
+            connection.close(new IOException("Клиент FastCGI закрыт"));
+        }
+    }
+
+    /**
+     * Выбирает соединение со свободным местом и регистрирует в нем запрос; при необходимости
+     * устанавливает новое соединение или ждет освобождения существующего. Запрос регистрируется
+     * под блокировкой пула, поэтому место в соединении не может занять другой поток.
+     *
+     * @param listener Слушатель записей ответа.
+     * @return Соединение и идентификатор запроса.
+     * @throws IOException Если соединение не удалось установить.
+     */
+    private Slot acquire(FCGIRecordListener listener) throws IOException {
+        synchronized (this) {
+            while (true) {
+                for (FCGIClientConnection connection : this.connections) {
+                    if (!connection.isClosed() && connection.activeCount() < connection.capacity) {
+                        int requestId = connection.register(listener);
+                        if (requestId > 0) {
+                            return new Slot(connection, requestId, false);
+                        }
+                    }
+                }
+                if (this.connections.size() + this.connecting < this.maxConnections) {
+                    ++this.connecting;
+                    break;
+                }
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Ожидание соединения FastCGI прервано", e);
+                }
+            }
+        }
+
+        FCGIClientConnection connection = null;
+        int requestId = -1;
+        try {
+            connection = this.connect();
+        } finally {
+            synchronized (this) {
+                --this.connecting;
+                if (connection != null) {
+                    // Запрос регистрируется до того, как соединение увидят ожидающие потоки
+                    requestId = connection.register(listener);
+                    this.connections.add(connection);
+                }
+                this.notifyAll();
+            }
+        }
+        return new Slot(connection, requestId, true);
+    }
+
+    /**
+     * Устанавливает новое соединение и при первом подключении опрашивает возможности приложения.
+     * Если опрос завершился ошибкой, соединение закрывается.
+     *
+     * @return Соединение.
+     * @throws IOException Если соединение не удалось установить.
+     */
+    private FCGIClientConnection connect() throws IOException {
+        Socket socket = new Socket();
+        FCGIClientConnection connection;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(this.address, this.connectTimeout);
+            connection = FCGIClientConnection.open(this, socket);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+
+        try {
+            int known;
+            synchronized (this) {
+                known = this.capacity;
+            }
+            if (known == 0) {
+                known = 1;
+                if (this.probeTimeout > 0) {
+                    known = this.probe(connection);
+                }
+                synchronized (this) {
+                    this.capacity = known;
+                }
+            }
+            connection.capacity = known;
+            return connection;
+        } catch (IOException e) {
+            connection.close(e);
+            throw e;
+        } catch (RuntimeException e) {
+            connection.close(new IOException(e));
+            throw e;
+        }
+    }
+
+    /**
+     * Опрашивает приложение запросом GetValues.
+     *
+     * @param connection Новое соединение.
+     * @return Количество одновременных запросов по соединению.
+     * @throws IOException Если запрос не удалось отправить или соединение закрылось.
+     */
+    private int probe(FCGIClientConnection connection) throws IOException {
+        try {
+            Properties values = connection.queryValues().get(this.probeTimeout, TimeUnit.MILLISECONDS);
+            if ("1".equals(values.getProperty(FCGIGlobalDefs.def_FCGIMpxsConns))) {
+                return Math.max(1, Integer.parseInt(values.getProperty(FCGIGlobalDefs.def_FCGIMaxReqs, "100").trim()));
+            }
+        } catch (TimeoutException | NumberFormatException e) {
+            // Приложение не поддерживает GetValues: без мультиплексирования
+        } catch (ExecutionException e) {
+            throw new IOException("Не удалось установить соединение FastCGI", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Подключение к приложению FastCGI прервано", e);
+        }
+        return 1;
+    }
+
+    /**
+     * Сообщает пулу о завершении запроса или закрытии соединения.
+     *
+     * @param connection Соединение.
+     */
+    synchronized void release(FCGIClientConnection connection) {
+        if (connection.isClosed()) {
+            this.connections.remove(connection);
+        }
+        this.notifyAll();
+    }
+}
@@ -0,0 +1,489 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Класс FCGIClientConnection — одно соединение {@link FCGIClient} с внешним FastCGI-приложением.
+ * Запросы отправляются с флагом keep-alive; если приложение поддерживает мультиплексирование,
+ * по соединению одновременно выполняется несколько запросов с разными идентификаторами.
+ * <p>
+ * Ответы читает отдельный поток соединения: входящие данные разбираются {@link FCGIDecoder},
+ * а записи передаются слушателю запроса по его идентификатору. Записи формируются {@link FCGIEncoder}
+ * в буфере соединения; каждая запись отправляется целиком под блокировкой соединения, поэтому
+ * записи разных запросов не перемешиваются.
+ * <p>
+ * Если приложение закрыло соединение, не ответив на запрос ни одной записью (например, PHP-FPM после
+ * {@code pm.max_requests} или по простою), а запрос можно повторить, он передается вызову повтора,
+ * полученному от {@link FCGIClient}, вместо завершения ошибкой.
+ */
+public class FCGIClientConnection implements FCGIRecordListener {
+
+    /** Размер буфера записей. */
+    private static final int BUFFER_SIZE = 16384;
+
+    /** Пул, которому принадлежит соединение. */
+    private final FCGIClient client;
+
+    /** Сокет соединения. */
+    private final Socket socket;
+
+    /** Поток записи в сокет. */
+    private final OutputStream out;
+
+    /** Буфер формирования записей; используется под блокировкой соединения. */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Слушатели выполняющихся запросов по идентификаторам. */
+    private final Map<Integer, FCGIRecordListener> active = new ConcurrentHashMap<>();
+
+    /** Идентификаторы зарегистрированных запросов, отправка которых еще не завершена. */
+    private final Set<Integer> sending = ConcurrentHashMap.newKeySet();
+
+    /** Идентификаторы запросов, завершающая запись stdin которых еще не отправлена. */
+    private final Set<Integer> uploading = ConcurrentHashMap.newKeySet();
+
+    /** Идентификаторы запросов, получивших хотя бы одну запись ответа. */
+    private final Set<Integer> responded = ConcurrentHashMap.newKeySet();
+
+    /** Вызовы повтора запросов, которые можно повторить по новому соединению, по идентификаторам. */
+    private final Map<Integer, Runnable> retries = new ConcurrentHashMap<>();
+
+    /** Ответ на запрос GetValues, если он был отправлен. */
+    private final CompletableFuture<Properties> values = new CompletableFuture<>();
+
+    /** Максимальное количество одновременных запросов по соединению. */
+    volatile int capacity = 1;
+
+    /** Последний выданный идентификатор запроса. */
+    private int lastRequestId;
+
+    /** Флаг закрытия соединения. */
+    private volatile boolean closed;
+
+    /** Флаг закрытия соединения приложением: конец потока или ошибка чтения, но не ошибка протокола. */
+    private volatile boolean peerClosed;
+
+    /**
+     * Конструктор класса FCGIClientConnection.
+     *
+     * @param client Пул, которому принадлежит соединение.
+     * @param socket Подключенный сокет.
+     * @throws IOException Если не удалось получить поток записи сокета.
+     */
+    private FCGIClientConnection(FCGIClient client, Socket socket) throws IOException {
+        this.client = client;
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+    }
+
+    /**
+     * Создает соединение и запускает поток чтения ответов.
+     *
+     * @param client Пул, которому принадлежит соединение.
+     * @param socket Подключенный сокет.
+     * @return Соединение.
+     * @throws IOException Если не удалось получить потоки сокета.
+     */
+    static FCGIClientConnection open(FCGIClient client, Socket socket) throws IOException {
+        FCGIClientConnection connection = new FCGIClientConnection(client, socket);
+        InputStream in = socket.getInputStream();
+        Thread reader = new Thread(() -> connection.readLoop(in), "fcgi-client-" + socket.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    /**
+     * Отправляет запрос GetValues с переменными FCGI_MAX_REQS и FCGI_MPXS_CONNS.
+     *
+     * @return Ответ приложения.
+     * @throws IOException Если запись не удалось отправить.
+     */
+    CompletableFuture<Properties> queryValues() throws IOException {
+        synchronized (this) {
+            this.buffer.clear();
+            int mark = FCGIEncoder.reserveHeader(this.buffer);
+            FCGIEncoder.putNameValue(this.buffer, FCGIGlobalDefs.def_FCGIMaxReqs, "");
+            FCGIEncoder.putNameValue(this.buffer, FCGIGlobalDefs.def_FCGIMpxsConns, "");
+            FCGIEncoder.finishRecord(this.buffer, mark, FCGIGlobalDefs.def_FCGIGetValues, FCGIGlobalDefs.def_FCGINullRequestID);
+            this.send();
+        }
+        return this.values;
+    }
+
+    /**
+     * Количество выполняющихся запросов.
+     *
+     * @return Количество запросов.
+     */
+    int activeCount() {
+        return this.active.size();
+    }
+
+    /**
+     * Проверяет, закрыто ли соединение.
+     *
+     * @return {@code true}, если соединение закрыто.
+     */
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Отправляет запрос: BeginRequest, параметры и тело (stdin).
+     * Ответ передается слушателю из потока чтения соединения. Если соединение закрылось во время отправки,
+     * а все записи отправлены, запрос повторяется или слушатель завершается ошибкой.
+     *
+     * @param requestId Идентификатор запроса, полученный от {@link #register(FCGIRecordListener)}.
+     * @param role Роль приложения.
+     * @param params Параметры запроса.
+     * @param body Тело запроса или {@code null}.
+     * @param retry Повтор запроса по новому соединению, если приложение закроет соединение, не ответив;
+     *         {@code null}, если запрос повторять нельзя.
+     * @throws IOException Если запрос не удалось отправить. Соединение при этом не закрывается: вызывающий
+     *         закрывает его методом {@link #detachAndClose(int, IOException)} и решает, повторить запрос или завершить
+     *         его ошибкой.
+     */
+    void execute(int requestId, int role, Properties params, InputStream body, Runnable retry) throws IOException {
+        if (retry != null) {
+            this.retries.put(requestId, retry);
+        }
+        this.sendRequest(requestId, role, params, body);
+        this.sending.remove(requestId);
+        // Соединение закрылось во время отправки: close() оставил слушателя отправляющему потоку
+        FCGIRecordListener listener;
+        if (this.closed && (listener = this.active.remove(requestId)) != null) {
+            this.finish(requestId, listener, new IOException("Соединение FastCGI закрыто"));
+        }
+    }
+
+    /**
+     * Проверяет, получил ли запрос хотя бы одну запись ответа.
+     *
+     * @param requestId Идентификатор запроса.
+     * @return {@code true}, если ответ начат.
+     */
+    boolean isResponded(int requestId) {
+        return this.responded.contains(requestId);
+    }
+
+    /**
+     * Формирует и отправляет записи запроса.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param role Роль приложения.
+     * @param params Параметры запроса.
+     * @param body Тело запроса или {@code null}.
+     * @throws IOException Если запрос не удалось отправить.
+     */
+    private void sendRequest(int requestId, int role, Properties params, InputStream body) throws IOException {
+        synchronized (this) {
+            this.buffer.clear();
+            FCGIEncoder.putBeginRequest(this.buffer, requestId, role, FCGIGlobalDefs.def_FCGIKeepConn);
+            int mark = FCGIEncoder.reserveHeader(this.buffer);
+            for (String name : params.stringPropertyNames()) {
+                String value = params.getProperty(name);
+                // Буфер меньше максимальной записи, поэтому запись параметров завершается при его заполнении
+                if (!FCGIEncoder.putNameValue(this.buffer, name, value)) {
+                    this.finishParams(mark, requestId);
+                    mark = FCGIEncoder.reserveHeader(this.buffer);
+                    if (!FCGIEncoder.putNameValue(this.buffer, name, value)) {
+                        throw new IOException("Слишком длинный параметр FastCGI: " + name);
+                    }
+                }
+            }
+            this.finishParams(mark, requestId);
+            FCGIEncoder.putHeader(this.buffer, FCGIGlobalDefs.def_FCGIParams, requestId, 0, 0);
+            this.send();
+        }
+        this.sendBody(requestId, body);
+    }
+
+    /**
+     * Снимает слушателя запроса, не завершая его, и закрывает соединение. Слушатель остается нетронутым,
+     * поэтому запрос можно повторить по другому соединению с тем же слушателем.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param error Причина закрытия.
+     * @return {@code true}, если слушатель снят; {@code false}, если соединение уже было закрыто
+     *         и слушатель завершен ошибкой.
+     */
+    boolean detachAndClose(int requestId, IOException error) {
+        boolean detached = this.active.remove(requestId) != null;
+        this.sending.remove(requestId);
+        this.uploading.remove(requestId);
+        this.retries.remove(requestId);
+        this.close(error);
+        return detached;
+    }
+
+    /**
+     * Завершает запись параметров; если запись не пуста, отправляет ее.
+     *
+     * @param mark Позиция заголовка записи.
+     * @param requestId Идентификатор запроса.
+     * @throws IOException Если запись не удалось отправить.
+     */
+    private void finishParams(int mark, int requestId) throws IOException {
+        if (this.buffer.position() == mark + FCGIGlobalDefs.def_FCGIHeaderLen) {
+            this.buffer.position(mark);
+            return;
+        }
+        FCGIEncoder.finishRecord(this.buffer, mark, FCGIGlobalDefs.def_FCGIParams, requestId);
+        this.send();
+    }
+
+    /**
+     * Отправляет тело запроса записями stdin и завершающую пустую запись.
+     * Блокировка соединения удерживается только на время формирования и отправки одной записи,
+     * поэтому тела запросов мультиплексированного соединения передаются вперемешку.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param body Тело запроса или {@code null}.
+     * @throws IOException Если тело не удалось прочитать или отправить.
+     */
+    private void sendBody(int requestId, InputStream body) throws IOException {
+        byte[] chunk = new byte[BUFFER_SIZE - FCGIGlobalDefs.def_FCGIHeaderLen];
+        int n;
+        do {
+            n = body == null ? -1 : body.read(chunk);
+            if (n == 0) {
+                continue;
+            }
+            if (n < 0) {
+                // Ответ на полностью отправленный запрос подчиняется пределу непрочитанного вывода
+                this.uploading.remove(requestId);
+            }
+            synchronized (this) {
+                ByteBuffer content = n > 0 ? ByteBuffer.wrap(chunk, 0, n) : ByteBuffer.allocate(0);
+                FCGIEncoder.putStream(this.buffer, FCGIGlobalDefs.def_FCGIStdin, requestId, content);
+                this.send();
+            }
+        } while (n >= 0);
+    }
+
+    /**
+     * Отправляет содержимое буфера в сокет и очищает буфер. Вызывается под блокировкой соединения.
+     *
+     * @throws IOException Если данные не удалось отправить.
+     */
+    private void send() throws IOException {
+        if (this.buffer.position() > 0) {
+            this.out.write(this.buffer.array(), 0, this.buffer.position());
+            this.out.flush();
+        }
+        this.buffer.clear();
+    }
+
+    /**
+     * Выделяет свободный идентификатор запроса и регистрирует слушателя.
+     *
+     * @param listener Слушатель записей ответа.
+     * @return Идентификатор запроса или -1, если все идентификаторы заняты.
+     */
+    synchronized int register(FCGIRecordListener listener) {
+        int limit = Math.max(1, Math.min(this.capacity, 65535));
+        int requestId = this.lastRequestId;
+        for (int i = 0; i < limit; ++i) {
+            requestId = requestId % limit + 1;
+            if (!this.active.containsKey(requestId)) {
+                this.lastRequestId = requestId;
+                this.responded.remove(requestId);
+                // До конца отправки запрос принадлежит отправляющему потоку, и close() его не завершает
+                this.sending.add(requestId);
+                this.uploading.add(requestId);
+                this.active.put(requestId, listener);
+                return requestId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Цикл потока чтения: разбирает входящие данные до закрытия соединения.
+     *
+     * @param in Поток чтения сокета.
+     */
+    private void readLoop(InputStream in) {
+        FCGIDecoder decoder = new FCGIDecoder(this);
+        byte[] buf = new byte[BUFFER_SIZE];
+        IOException error = null;
+        boolean peer = true;
+        try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                if (decoder.decode(ByteBuffer.wrap(buf, 0, n)) != 0) {
+                    error = new IOException("Ошибка протокола FastCGI " + decoder.getFCGIError());
+                    peer = false;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        this.close(error != null ? error : new IOException("Соединение FastCGI закрыто приложением"), peer);
+    }
+
+    /**
+     * Закрывает соединение и завершает ошибкой все выполняющиеся на нем запросы. Запросы, которые
+     * в этот момент еще отправляются, не трогаются: их завершает или повторяет отправляющий поток.
+     *
+     * @param error Причина закрытия.
+     */
+    void close(IOException error) {
+        this.close(error, false);
+    }
+
+    /**
+     * Закрывает соединение. Если его закрыло приложение, запросы без единой записи ответа, которые
+     * можно повторить, повторяются по новому соединению; остальные завершаются ошибкой.
+     *
+     * @param error Причина закрытия.
+     * @param peer {@code true}, если соединение закрыто приложением.
+     */
+    private void close(IOException error, boolean peer) {
+        if (this.closed) {
+            return;
+        }
+        this.peerClosed = peer;
+        this.closed = true;
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Соединение уже закрыто
+        }
+        this.values.completeExceptionally(error);
+        Map<Integer, FCGIRecordListener> closing = new HashMap<>();
+        for (Integer requestId : this.active.keySet()) {
+            if (this.sending.contains(requestId)) {
+                continue;
+            }
+            FCGIRecordListener listener = this.active.remove(requestId);
+            if (listener != null) {
+                closing.put(requestId, listener);
+            }
+        }
+        // Пул забывает соединение до повторов, иначе повтор ждал бы места, занятого закрытым соединением
+        this.client.release(this);
+        closing.forEach((requestId, listener) -> this.finish(requestId, listener, error));
+    }
+
+    /**
+     * Повторяет запрос, снятый с закрытого соединения, или завершает его ошибкой.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param listener Слушатель записей ответа.
+     * @param error Причина закрытия соединения.
+     */
+    private void finish(int requestId, FCGIRecordListener listener, IOException error) {
+        Runnable retry = this.retries.remove(requestId);
+        if (retry != null && this.peerClosed && !this.responded.contains(requestId)) {
+            retry.run();
+        } else {
+            fail(requestId, listener, error);
+        }
+    }
+
+    /**
+     * Прерывает запрос, непрочитанный вывод которого превысил предел: завершает ответ ошибкой
+     * и отправляет приложению AbortRequest. Идентификатор освобождается при получении EndRequest.
+     * Запись отправляется отдельной задачей: блокировку соединения может держать поток, отправляющий тело,
+     * и поток чтения не должен его ждать.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param response Ответ запроса.
+     */
+    private void abort(int requestId, FCGIClientResponse response) {
+        response.fail(new IOException("Ответ FastCGI превышает предел буфера в " + response.bufferLimit + " байт"));
+        CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                FCGIEncoder.putAbortRequest(this.buffer, requestId);
+                try {
+                    this.send();
+                } catch (IOException e) {
+                    // Соединение оборвано; поток чтения закроет его
+                }
+            }
+        });
+    }
+
+    /**
+     * Завершает запрос ошибкой соединения.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param listener Слушатель записей ответа.
+     * @param error Причина.
+     */
+    static void fail(int requestId, FCGIRecordListener listener, IOException error) {
+        if (listener instanceof FCGIClientResponse response) {
+            response.fail(error);
+        } else {
+            listener.onEndRequest(requestId, -1, FCGIGlobalDefs.def_FCGIOverload);
+        }
+    }
+
+    /**
+     * Передает вывод запроса слушателю. Ответ {@link FCGIClientResponse} соединения без мультиплексирования
+     * задерживает поток чтения, пока вывод не будет прочитан; пока тело запроса еще отправляется, вывод
+     * принимается сверх предела: вызывающий не читает его до конца отправки, а остановленное чтение могло бы
+     * остановить и приложение, читающее тело. При мультиплексировании запрос, превысивший предел
+     * непрочитанного вывода, прерывается.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param content Фрагмент данных.
+     */
+    @Override
+    public void onStdout(int requestId, ByteBuffer content) {
+        FCGIRecordListener listener = this.active.get(requestId);
+        if (listener != null) {
+            this.responded.add(requestId);
+            if (listener instanceof FCGIClientResponse response) {
+                if (this.capacity == 1 && this.uploading.contains(requestId)) {
+                    response.push(content);
+                } else if (!response.offer(content, this.capacity == 1)) {
+                    this.abort(requestId, response);
+                }
+            } else {
+                listener.onStdout(requestId, content);
+            }
+        }
+    }
+
+    @Override
+    public void onStderr(int requestId, ByteBuffer content) {
+        FCGIRecordListener listener = this.active.get(requestId);
+        if (listener != null) {
+            this.responded.add(requestId);
+            listener.onStderr(requestId, content);
+        }
+    }
+
+    @Override
+    public void onEndRequest(int requestId, int appStatus, int protocolStatus) {
+        this.retries.remove(requestId);
+        this.uploading.remove(requestId);
+        FCGIRecordListener listener = this.active.remove(requestId);
+        if (listener != null) {
+            listener.onEndRequest(requestId, appStatus, protocolStatus);
+        }
+        this.client.release(this);
+    }
+
+    @Override
+    public void onGetValuesResult(Properties result) {
+        this.values.complete(result);
+    }
+}
@@ -0,0 +1,294 @@
+package com.fastcgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Класс FCGIClientResponse принимает ответ внешнего FastCGI-приложения на запрос {@link FCGIClient}.
+ * Вывод приложения (stdout) доступен через {@link #getInputStream()} по мере поступления записей,
+ * не дожидаясь конца ответа; вывод ошибок накапливается и доступен через {@link #getStderr()}.
+ * Завершение запроса сообщает {@link #completion()}: код завершения приложения либо исключение,
+ * если соединение оборвалось или приложение отклонило запрос.
+ * <p>
+ * Непрочитанный вывод ограничен {@link #bufferLimit} байтами. Когда предел достигнут, соединение без
+ * мультиплексирования перестает читать ответ, пока вывод не будет прочитан, и приложение ждет на записи.
+ * Соединение с мультиплексированием остановить нельзя, не задерживая другие запросы, поэтому запрос
+ * прерывается записью AbortRequest и завершается ошибкой. Пока тело запроса еще отправляется, вывод
+ * принимается сверх предела. Закрытие потока вывода отбрасывает остаток ответа.
+ */
+public class FCGIClientResponse implements FCGIRecordListener {
+
+    /** Предел непрочитанного вывода по умолчанию в байтах. */
+    public static final int DEFAULT_BUFFER_LIMIT = 1 << 20;
+
+    /** Признак конца потока вывода в очереди фрагментов. */
+    private static final byte[] EOF = new byte[0];
+
+    /** Предел непрочитанного вывода в байтах; один фрагмент принимается всегда, даже если он больше предела. */
+    public final int bufferLimit;
+
+    /** Фрагменты вывода приложения в порядке поступления. */
+    private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+
+    /** Монитор учета непрочитанного вывода; на нем поток чтения соединения ждет освобождения места. */
+    private final Object credit = new Object();
+
+    /** Объем фрагментов в очереди в байтах; изменяется под монитором {@link #credit}. */
+    private long buffered;
+
+    /** Флаг закрытия потока вывода: дальнейший вывод отбрасывается. */
+    private volatile boolean discarded;
+
+    /** Накопленный вывод ошибок приложения. */
+    private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+    /** Завершение запроса: код завершения приложения. */
+    private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+
+    /** Поток чтения вывода приложения. */
+    private final InputStream stdout = new InputStream() {
+
+        /** Текущий фрагмент. */
+        private byte[] chunk;
+
+        /** Позиция в текущем фрагменте. */
+        private int pos;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return this.read(one, 0, 1) == 1 ? one[0] & 255 : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (this.chunk == null || this.pos == this.chunk.length) {
+                if (this.chunk == EOF) {
+                    return this.fail();
+                }
+                try {
+                    this.chunk = FCGIClientResponse.this.chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                this.pos = 0;
+                FCGIClientResponse.this.consumed(this.chunk.length);
+            }
+            int n = Math.min(len, this.chunk.length - this.pos);
+            System.arraycopy(this.chunk, this.pos, b, off, n);
+            this.pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return this.chunk == null || this.chunk == EOF ? 0 : this.chunk.length - this.pos;
+        }
+
+        @Override
+        public void close() {
+            FCGIClientResponse.this.discard();
+        }
+
+        /**
+         * Завершает чтение в конце потока: -1, если запрос завершен успешно, иначе исключение.
+         */
+        private int fail() throws IOException {
+            Throwable error = FCGIClientResponse.this.completion.handle((status, ex) -> ex).join();
+            if (error != null) {
+                throw error instanceof IOException io ? io : new IOException(error);
+            }
+            return -1;
+        }
+    };
+
+    /**
+     * Конструктор класса FCGIClientResponse с пределом непрочитанного вывода {@link #DEFAULT_BUFFER_LIMIT}.
+     */
+    public FCGIClientResponse() {
+        this(DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * Конструктор класса FCGIClientResponse.
+     *
+     * @param bufferLimit Предел непрочитанного вывода в байтах.
+     */
+    public FCGIClientResponse(int bufferLimit) {
+        this.bufferLimit = Math.max(1, bufferLimit);
+    }
+
+    /**
+     * Возвращает поток вывода приложения. Чтение блокируется до поступления очередной записи stdout.
+     *
+     * @return Поток вывода.
+     */
+    public InputStream getInputStream() {
+        return this.stdout;
+    }
+
+    /**
+     * Возвращает накопленный к этому моменту вывод ошибок приложения.
+     *
+     * @return Вывод ошибок.
+     */
+    public synchronized byte[] getStderr() {
+        return this.stderr.toByteArray();
+    }
+
+    /**
+     * Возвращает завершение запроса.
+     *
+     * @return Код завершения приложения.
+     */
+    public CompletableFuture<Integer> completion() {
+        return this.completion;
+    }
+
+    /**
+     * Возвращает объем непрочитанного вывода.
+     *
+     * @return Объем в байтах.
+     */
+    public long getBuffered() {
+        synchronized (this.credit) {
+            return this.buffered;
+        }
+    }
+
+    @Override
+    public void onStdout(int requestId, ByteBuffer content) {
+        this.offer(content, true);
+    }
+
+    /**
+     * Добавляет фрагмент вывода в очередь, если он укладывается в предел непрочитанного вывода.
+     * Вызывается из потока чтения соединения.
+     *
+     * @param content Фрагмент вывода.
+     * @param wait {@code true} — ждать, пока вывод будет прочитан; {@code false} — сразу вернуть {@code false}.
+     * @return {@code false}, если фрагмент не поместился в предел; фрагмент при этом не добавляется.
+     */
+    boolean offer(ByteBuffer content, boolean wait) {
+        // Вывод отброшенного или уже завершенного ошибкой запроса не сохраняется
+        if (!content.hasRemaining() || this.discarded || this.completion.isCompletedExceptionally()) {
+            return true;
+        }
+        int length = content.remaining();
+        synchronized (this.credit) {
+            // Пустая очередь принимает фрагмент любого размера, иначе чтение могло бы не начаться никогда
+            while (this.buffered > 0 && this.buffered + length > this.bufferLimit) {
+                if (!wait) {
+                    return false;
+                }
+                try {
+                    this.credit.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (this.discarded || this.completion.isCompletedExceptionally()) {
+                    return true;
+                }
+            }
+            this.buffered += length;
+        }
+        this.enqueue(content);
+        return true;
+    }
+
+    /**
+     * Добавляет фрагмент вывода в очередь без проверки предела непрочитанного вывода.
+     * Вызывается из потока чтения соединения, пока тело запроса еще отправляется.
+     *
+     * @param content Фрагмент вывода.
+     */
+    void push(ByteBuffer content) {
+        if (!content.hasRemaining() || this.discarded || this.completion.isCompletedExceptionally()) {
+            return;
+        }
+        synchronized (this.credit) {
+            this.buffered += content.remaining();
+        }
+        this.enqueue(content);
+    }
+
+    /**
+     * Копирует фрагмент вывода в очередь.
+     *
+     * @param content Фрагмент вывода.
+     */
+    private void enqueue(ByteBuffer content) {
+        byte[] chunk = new byte[content.remaining()];
+        content.get(chunk);
+        this.chunks.add(chunk);
+    }
+
+    /**
+     * Возвращает место фрагмента, взятого из очереди, в предел непрочитанного вывода.
+     *
+     * @param length Длина фрагмента.
+     */
+    private void consumed(int length) {
+        if (length > 0) {
+            synchronized (this.credit) {
+                // Фрагмент мог быть взят из очереди одновременно с ее очисткой в discard()
+                this.buffered = Math.max(0, this.buffered - length);
+                this.credit.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Отбрасывает непрочитанный и будущий вывод приложения.
+     */
+    private void discard() {
+        this.discarded = true;
+        synchronized (this.credit) {
+            this.chunks.removeIf(chunk -> chunk != EOF);
+            this.buffered = 0;
+            this.credit.notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void onStderr(int requestId, ByteBuffer content) {
+        while (content.hasRemaining()) {
+            this.stderr.write(content.get());
+        }
+    }
+
+    @Override
+    public void onEndRequest(int requestId, int appStatus, int protocolStatus) {
+        if (protocolStatus == FCGIGlobalDefs.def_FCGIRequestComplete) {
+            this.completion.complete(appStatus);
+        } else {
+            this.completion.completeExceptionally(new IOException("Запрос FastCGI отклонен, статус протокола " + protocolStatus));
+        }
+        this.chunks.add(EOF);
+    }
+
+    /**
+     * Завершает запрос ошибкой, например при обрыве соединения.
+     *
+     * @param error Причина.
+     */
+    void fail(Throwable error) {
+        if (this.completion.completeExceptionally(error)) {
+            this.chunks.add(EOF);
+            // Поток чтения соединения, ожидающий места, не должен ждать завершенного запроса
+            synchronized (this.credit) {
+                this.credit.notifyAll();
+            }
+        }
+    }
+}
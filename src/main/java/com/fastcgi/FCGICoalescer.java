@@ -0,0 +1,114 @@
+package com.fastcgi;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Класс FCGICoalescer объединяет одинаковые одновременные запросы (single-flight): пока обработчик выполняет
+ * запрос, такие же запросы не вызывают его повторно, а получают тот же ответ. Каждый ответ отправляется
+ * потоком stdout своего запроса, поэтому дубликаты получают побайтовую копию ответа в записях со своими
+ * идентификаторами. Это защищает внешние сервисы от лавины одинаковых запросов при промахе кэша.
+ * <p>
+ * Объединение включается свойством {@code FCGI_COALESCE_KEYS} — списком параметров через запятую, значения которых
+ * вместе с {@code REQUEST_METHOD} образуют ключ, например {@code SCRIPT_NAME,QUERY_STRING,HTTP_HOST}.
+ * Объединяются только запросы RESPONDER с методом GET или HEAD и пустым телом; остальные передаются обработчику
+ * без изменений. Ответ не кэшируется: запрос, пришедший после завершения обработки, снова вызывает обработчик.
+ */
+public class FCGICoalescer implements FCGIAsyncHandler {
+
+    /** Обработчик, вызываемый для первого из одинаковых запросов. */
+    private final FCGIAsyncHandler delegate;
+
+    /** Имена параметров, образующих ключ. */
+    private final String[] keys;
+
+    /** Выполняющиеся запросы по ключам. */
+    private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор класса FCGICoalescer.
+     *
+     * @param delegate Обработчик запросов.
+     * @param keys Имена параметров, образующих ключ.
+     */
+    public FCGICoalescer(FCGIAsyncHandler delegate, String[] keys) {
+        this.delegate = delegate;
+        this.keys = keys;
+    }
+
+    /**
+     * Добавляет объединение запросов к обработчику, если оно включено.
+     *
+     * @param handler Обработчик запросов.
+     * @param spec Значение свойства {@code FCGI_COALESCE_KEYS} или {@code null}.
+     * @return Обработчик с объединением запросов или исходный обработчик, если свойство не задано.
+     */
+    public static FCGIAsyncHandler wrap(FCGIAsyncHandler handler, String spec) {
+        if (handler == null || spec == null || spec.isBlank()) {
+            return handler;
+        }
+        String[] keys = spec.split(",");
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = keys[i].trim();
+        }
+        return new FCGICoalescer(handler, keys);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> handle(FCGIRequest request, byte[] body) {
+        String key = this.keyOf(request, body);
+        if (key == null) {
+            return this.delegate.handle(request, body);
+        }
+
+        CompletableFuture<byte[]> shared = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = this.inFlight.putIfAbsent(key, shared);
+        if (running != null) {
+            FCGIStats.add(FCGIStats.COALESCED, 1);
+            return running;
+        }
+
+        CompletableFuture<byte[]> response;
+        try {
+            response = this.delegate.handle(request, body);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        if (response == null) {
+            response = CompletableFuture.failedFuture(new NullPointerException("Обработчик вернул null"));
+        }
+        response.whenComplete((bytes, error) -> {
+            // Ключ снимается до завершения ожидающих: запрос, пришедший после ответа, снова вызывает обработчик
+            this.inFlight.remove(key, shared);
+            if (error != null) {
+                shared.completeExceptionally(error);
+            } else {
+                shared.complete(bytes);
+            }
+        });
+        return shared;
+    }
+
+    /**
+     * Формирует ключ объединения запроса.
+     *
+     * @param request Запрос.
+     * @param body Тело запроса.
+     * @return Ключ или {@code null}, если запрос не объединяется.
+     */
+    private String keyOf(FCGIRequest request, byte[] body) {
+        if (request.role != FCGIGlobalDefs.def_FCGIResponder || body.length != 0) {
+            return null;
+        }
+        String method = request.params.getProperty("REQUEST_METHOD", "GET");
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(method);
+        for (String name : this.keys) {
+            key.append('\0').append(request.params.getProperty(name, ""));
+        }
+        return key.toString();
+    }
+}
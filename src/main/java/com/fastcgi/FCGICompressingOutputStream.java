@@ -0,0 +1,453 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Класс FCGICompressingOutputStream сжимает тело ответа CGI перед записью в поток stdout.
+ * Поток разбирает заголовки ответа, и если тип содержимого не сжат заранее, а тело не меньше
+ * {@code FCGI_COMPRESSION_MIN_SIZE} байт, добавляет заголовок Content-Encoding, удаляет Content-Length
+ * и сжимает тело в формате gzip или deflate. В остальных случаях, а также для частичных ответов
+ * (статус 206 или заголовок Content-Range, диапазон которого относится к несжатому телу) данные передаются
+ * без изменений.
+ * <p>
+ * Сжатие включается свойством {@code FCGI_COMPRESSION=on}; формат выбирается по параметру
+ * запроса {@code HTTP_ACCEPT_ENCODING}.
+ */
+public class FCGICompressingOutputStream extends OutputStream {
+
+    /** Флаг, указывающий, включено ли сжатие ответов. */
+    static final boolean ENABLED = "on".equalsIgnoreCase(System.getProperty("FCGI_COMPRESSION"));
+
+    /** Минимальный размер тела, начиная с которого ответ сжимается. */
+    static final int MIN_SIZE = Integer.getInteger("FCGI_COMPRESSION_MIN_SIZE", 1024);
+
+    /** Максимальный размер блока заголовков; более длинные ответы передаются без сжатия. */
+    private static final int MAX_HEADER_LEN = 8192;
+
+    /** Заголовок формата gzip: метод deflate, без флагов и времени модификации. */
+    private static final byte[] GZIP_HEADER = {31, -117, 8, 0, 0, 0, 0, 0, 0, -1};
+
+    /** Префиксы типов содержимого, которые уже сжаты или передаются потоково. */
+    private static final String[] SKIP_TYPES = {
+            "image/", "video/", "audio/", "font/woff", "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-bzip2", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/octet-stream", "text/event-stream"
+    };
+
+    /** Чтение заголовков ответа. */
+    private static final int STATE_HEADERS = 0;
+
+    /** Накопление начала тела, пока не известно, достаточно ли оно велико. */
+    private static final int STATE_BUFFERING = 1;
+
+    /** Сжатие тела. */
+    private static final int STATE_COMPRESSING = 2;
+
+    /** Передача без изменений. */
+    private static final int STATE_PASSTHROUGH = 3;
+
+    /** Поток, в который записывается ответ. */
+    private final OutputStream out;
+
+    /** {@code true} для формата gzip, {@code false} для deflate. */
+    private final boolean gzip;
+
+    /** Текущее состояние потока. */
+    private int state = STATE_HEADERS;
+
+    /** Буфер заголовков и начала тела до принятия решения о сжатии. */
+    private byte[] pending = new byte[1024];
+
+    /** Количество байт в буфере {@link #pending}. */
+    private int pendingLen;
+
+    /** Позиция начала тела в буфере {@link #pending} или -1, если заголовки еще не прочитаны. */
+    private int headerEnd = -1;
+
+    /** Объект сжатия, полученный из {@link FCGIDeflaterPool}. */
+    private Deflater deflater;
+
+    /** Контрольная сумма несжатых данных для формата gzip. */
+    private CRC32 crc;
+
+    /** Буфер для сжатых данных. */
+    private byte[] deflateBuf;
+
+    /** Флаг, указывающий, закрыт ли поток. */
+    private boolean isClosed;
+
+    /**
+     * Конструктор класса FCGICompressingOutputStream.
+     *
+     * @param out Поток, в который записывается ответ.
+     * @param gzip {@code true} для формата gzip, {@code false} для deflate.
+     */
+    public FCGICompressingOutputStream(OutputStream out, boolean gzip) {
+        this.out = out;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Оборачивает поток stdout сжимающим потоком, если сжатие включено и клиент его поддерживает.
+     *
+     * @param out Поток stdout запроса.
+     * @param params Параметры запроса.
+     * @return Сжимающий поток или исходный поток {@code out}.
+     */
+    public static OutputStream wrap(OutputStream out, Properties params) {
+        if (!ENABLED || "HEAD".equals(params.getProperty("REQUEST_METHOD"))) {
+            return out;
+        }
+        String accept = params.getProperty("HTTP_ACCEPT_ENCODING");
+        if (accept == null) {
+            return out;
+        }
+        if (accepts(accept, "gzip")) {
+            return new FCGICompressingOutputStream(out, true);
+        }
+        if (accepts(accept, "deflate")) {
+            return new FCGICompressingOutputStream(out, false);
+        }
+        return out;
+    }
+
+    /**
+     * Проверяет, разрешает ли заголовок Accept-Encoding указанную кодировку.
+     *
+     * @param accept Значение заголовка Accept-Encoding.
+     * @param coding Название кодировки.
+     * @return {@code true}, если кодировка указана без {@code q=0}.
+     */
+    static boolean accepts(String accept, String coding) {
+        for (String item : accept.split(",")) {
+            String[] parts = item.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(coding)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; ++i) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public void write(int c) throws IOException {
+        this.write(new byte[]{(byte) c}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        switch (this.state) {
+            case STATE_PASSTHROUGH -> this.out.write(b, off, len);
+            case STATE_COMPRESSING -> this.compress(b, off, len);
+            default -> {
+                this.append(b, off, len);
+                this.decide();
+            }
+        }
+    }
+
+    /**
+     * Отправляет накопленные данные. Если тело еще накапливается, его итоговый размер неизвестен, а задерживать
+     * данные, которые обработчик просит отправить, нельзя, поэтому сжатие начинается сразу и данные выгружаются
+     * с {@link Deflater#SYNC_FLUSH}. Потоковые обработчики сбрасывают поток после каждой части ответа, и переход
+     * к передаче без сжатия здесь выключал бы сжатие всех ответов без Content-Length. Пока тело не начато,
+     * сброс ничего не отправляет: заголовки уходят вместе с решением о сжатии. Ответ, закрытый до порога
+     * без сбросов, передается без сжатия.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    public void flush() throws IOException {
+        if (this.state == STATE_BUFFERING) {
+            if (this.pendingLen == this.headerEnd) {
+                return;
+            }
+            this.startCompression();
+        }
+        if (this.state == STATE_COMPRESSING) {
+            this.drain(Deflater.SYNC_FLUSH);
+        }
+        if (this.state != STATE_HEADERS) {
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Завершает сжатие, возвращает объект сжатия в пул и закрывает поток stdout.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    public void close() throws IOException {
+        if (this.isClosed) {
+            return;
+        }
+        this.isClosed = true;
+        try {
+            if (this.state == STATE_HEADERS || this.state == STATE_BUFFERING) {
+                this.passthrough();
+            } else if (this.state == STATE_COMPRESSING) {
+                this.deflater.finish();
+                while (!this.deflater.finished()) {
+                    int count = this.deflater.deflate(this.deflateBuf, 0, this.deflateBuf.length);
+                    this.out.write(this.deflateBuf, 0, count);
+                }
+                if (this.gzip) {
+                    this.writeTrailer();
+                }
+            }
+        } finally {
+            if (this.deflater != null) {
+                FCGIDeflaterPool.release(this.deflater, this.gzip);
+                this.deflater = null;
+            }
+        }
+        this.out.close();
+    }
+
+    /**
+     * Проверяет, был ли записан в поток хотя бы один байт.
+     *
+     * @return {@code true}, если обработчик уже начал ответ.
+     */
+    public boolean isAnythingWritten() {
+        return this.pendingLen > 0 || this.state != STATE_HEADERS;
+    }
+
+    /**
+     * Добавляет данные в буфер {@link #pending}, расширяя его при необходимости.
+     */
+    private void append(byte[] b, int off, int len) {
+        if (this.pendingLen + len > this.pending.length) {
+            byte[] grown = new byte[Math.max(this.pending.length * 2, this.pendingLen + len)];
+            System.arraycopy(this.pending, 0, grown, 0, this.pendingLen);
+            this.pending = grown;
+        }
+        System.arraycopy(b, off, this.pending, this.pendingLen, len);
+        this.pendingLen += len;
+    }
+
+    /**
+     * Принимает решение о сжатии, как только прочитаны заголовки или накоплено достаточно данных тела.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    private void decide() throws IOException {
+        if (this.state == STATE_HEADERS) {
+            this.headerEnd = findHeaderEnd(this.pending, this.pendingLen);
+            if (this.headerEnd < 0) {
+                if (this.pendingLen > MAX_HEADER_LEN) {
+                    this.passthrough();
+                }
+                return;
+            }
+
+            String headers = new String(this.pending, 0, this.headerEnd, StandardCharsets.ISO_8859_1);
+            long contentLength = -1;
+            for (String line : headers.split("\r?\n")) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+                if (name.equals("content-encoding") || name.equals("content-range")
+                        || (name.equals("status") && (value.startsWith("204") || value.startsWith("206")
+                        || value.startsWith("304")))
+                        || (name.equals("content-type") && isPrecompressed(value))) {
+                    this.passthrough();
+                    return;
+                }
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        this.passthrough();
+                        return;
+                    }
+                }
+            }
+
+            if (contentLength >= 0 && contentLength < MIN_SIZE) {
+                this.passthrough();
+                return;
+            }
+            this.state = STATE_BUFFERING;
+            if (contentLength >= 0) {
+                this.startCompression();
+                return;
+            }
+        }
+
+        if (this.state == STATE_BUFFERING && this.pendingLen - this.headerEnd >= MIN_SIZE) {
+            this.startCompression();
+        }
+    }
+
+    /**
+     * Проверяет, относится ли тип содержимого к уже сжатым или потоковым типам.
+     */
+    private static boolean isPrecompressed(String contentType) {
+        if (contentType.startsWith("image/svg")) {
+            return false;
+        }
+        for (String prefix : SKIP_TYPES) {
+            if (contentType.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ищет конец блока заголовков (пустую строку).
+     *
+     * @return Позиция первого байта тела или -1, если блок заголовков не завершен.
+     */
+    private static int findHeaderEnd(byte[] buf, int len) {
+        for (int i = 0; i < len; ++i) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < len && buf[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < len && buf[i + 1] == '\r' && buf[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Отправляет накопленные данные без сжатия и переводит поток в режим прямой передачи.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    private void passthrough() throws IOException {
+        this.state = STATE_PASSTHROUGH;
+        if (this.pendingLen > 0) {
+            this.out.write(this.pending, 0, this.pendingLen);
+        }
+        this.pending = null;
+    }
+
+    /**
+     * Отправляет измененные заголовки и начинает сжатие накопленной части тела.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    private void startCompression() throws IOException {
+        StringBuilder headers = new StringBuilder();
+        String original = new String(this.pending, 0, this.headerEnd, StandardCharsets.ISO_8859_1);
+        boolean varied = false;
+        for (String line : original.split("\r?\n")) {
+            if (line.isEmpty() || line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                continue;
+            }
+            if (!varied && line.regionMatches(true, 0, "Vary:", 0, 5)) {
+                // Accept-Encoding добавляется в заголовок Vary обработчика, а не вторым заголовком
+                varied = true;
+                line = mergeVary(line);
+            }
+            headers.append(line).append("\r\n");
+        }
+        headers.append("Content-Encoding: ").append(this.gzip ? "gzip" : "deflate").append("\r\n");
+        if (!varied) {
+            headers.append("Vary: Accept-Encoding\r\n");
+        }
+        headers.append("\r\n");
+        this.out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        this.deflater = FCGIDeflaterPool.acquire(this.gzip);
+        this.deflateBuf = new byte[8192];
+        if (this.gzip) {
+            this.crc = new CRC32();
+            this.out.write(GZIP_HEADER);
+        }
+        this.state = STATE_COMPRESSING;
+        this.compress(this.pending, this.headerEnd, this.pendingLen - this.headerEnd);
+        this.pending = null;
+    }
+
+    /**
+     * Добавляет Accept-Encoding в строку заголовка Vary, если он еще не перечислен и значение не {@code *}.
+     *
+     * @param line Строка заголовка Vary.
+     * @return Строка заголовка с Accept-Encoding.
+     */
+    private static String mergeVary(String line) {
+        String value = line.substring(5).trim();
+        for (String field : value.split(",")) {
+            String name = field.trim();
+            if (name.equals("*") || name.equalsIgnoreCase("Accept-Encoding")) {
+                return line;
+            }
+        }
+        return value.isEmpty() ? "Vary: Accept-Encoding" : line.stripTrailing() + ", Accept-Encoding";
+    }
+
+    /**
+     * Сжимает часть тела ответа.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    private void compress(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        if (this.gzip) {
+            this.crc.update(b, off, len);
+        }
+        this.deflater.setInput(b, off, len);
+        while (!this.deflater.needsInput()) {
+            int count = this.deflater.deflate(this.deflateBuf, 0, this.deflateBuf.length, Deflater.NO_FLUSH);
+            if (count > 0) {
+                this.out.write(this.deflateBuf, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Выгружает из объекта сжатия все данные, доступные при указанном режиме сброса.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    private void drain(int flushMode) throws IOException {
+        int count;
+        do {
+            count = this.deflater.deflate(this.deflateBuf, 0, this.deflateBuf.length, flushMode);
+            if (count > 0) {
+                this.out.write(this.deflateBuf, 0, count);
+            }
+        } while (count == this.deflateBuf.length);
+    }
+
+    /**
+     * Записывает завершающий блок формата gzip: контрольную сумму и размер несжатых данных.
+     *
+     * @throws IOException Если произошла ошибка при записи данных.
+     */
+    private void writeTrailer() throws IOException {
+        long value = this.crc.getValue();
+        long size = this.deflater.getBytesRead();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; ++i) {
+            trailer[i] = (byte) (value >> (8 * i) & 255);
+            trailer[4 + i] = (byte) (size >> (8 * i) & 255);
+        }
+        this.out.write(trailer);
+    }
+}
@@ -0,0 +1,414 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Класс FCGIConnectionWriter — общий поток записи в соединение для всех потоков вывода запросов
+ * (stdout, stderr и ответы на записи управления). Каждый вызов {@link #write(byte[], int, int)}
+ * должен содержать только целые записи FastCGI, поэтому записи разных потоков не перемешиваются.
+ * <p>
+ * Записывающие потоки добавляют свои данные в очередь без блокировок. Один из них становится
+ * записывающим: забирает всю очередь и отправляет ее одной собирающей записью
+ * ({@link SocketChannel#write(ByteBuffer[])}) или, если у соединения нет канала, одной записью
+ * в поток сокета. Остальные ждут, пока их данные будут отправлены, поэтому данные не копируются,
+ * а буфер вызывающего можно использовать сразу после возврата. При одновременной записи
+ * нескольких потоков это объединяет их данные и уменьшает число системных вызовов.
+ * <p>
+ * В режиме отложенной записи ({@link #defer(int)}) данные накапливаются в памяти, чтобы готовый ответ
+ * можно было отправить целиком через {@link FCGIResponseDrainer}, не занимая поток записи. Буфер растет,
+ * только пока его прирост укладывается в {@link FCGIMemoryBudget}; иначе данные отправляются сразу.
+ */
+public class FCGIConnectionWriter extends OutputStream {
+
+    /** Максимальное количество фрагментов в одной собирающей записи. */
+    private static final int MAX_BATCH = 64;
+
+    /** Максимальный объем данных, объединяемых в буфере для записи в поток сокета. */
+    private static final int JOIN_LIMIT = 65536;
+
+    /**
+     * Элемент очереди: данные одного вызова записи и ожидающий их отправки поток.
+     */
+    private static final class Node {
+
+        /** Данные. */
+        final byte[] b;
+
+        /** Смещение начала данных. */
+        final int off;
+
+        /** Длина данных. */
+        final int len;
+
+        /** Поток, ожидающий отправки. */
+        final Thread waiter = Thread.currentThread();
+
+        /** Следующий элемент. */
+        Node next;
+
+        /** Ошибка отправки или {@code null}. */
+        IOException error;
+
+        /** Флаг завершения отправки. */
+        volatile boolean done;
+
+        Node(byte[] b, int off, int len) {
+            this.b = b;
+            this.off = off;
+            this.len = len;
+        }
+    }
+
+    /** Поток сокета; используется, если у соединения нет канала. */
+    private final OutputStream out;
+
+    /** Канал соединения или {@code null}. */
+    private final SocketChannel channel;
+
+    /** Номер соединения в журнале {@link FCGICapture}. */
+    private final int connectionId;
+
+    /** Вершина очереди: элементы добавляются в начало и забираются целиком. */
+    private final AtomicReference<Node> head = new AtomicReference<>();
+
+    /** Флаг наличия записывающего потока. */
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    /** Фрагменты собирающей записи; используются только записывающим потоком. */
+    private final ByteBuffer[] vector = new ByteBuffer[MAX_BATCH];
+
+    /** Буфер объединения данных для записи в поток сокета; используется только записывающим потоком. */
+    private byte[] joined = new byte[0];
+
+    /** Первая ошибка записи; после нее все записи завершаются этой ошибкой. */
+    private volatile IOException failure;
+
+    /** Максимальный объем отложенных данных; 0 — данные отправляются сразу. */
+    private volatile int deferLimit;
+
+    /** Отложенные данные. */
+    private byte[] deferred;
+
+    /** Объем отложенных данных. */
+    private int deferredLen;
+
+    /** Память буфера отложенных данных, учтенная в {@link FCGIMemoryBudget}, в байтах. */
+    private int deferredReserved;
+
+    /**
+     * Конструктор класса FCGIConnectionWriter.
+     *
+     * @param socket Соединение с веб-сервером.
+     * @param connectionId Номер соединения в журнале {@link FCGICapture}.
+     * @throws IOException Если не удалось получить поток вывода сокета.
+     */
+    public FCGIConnectionWriter(Socket socket, int connectionId) throws IOException {
+        this.out = socket.getOutputStream();
+        this.channel = socket.getChannel();
+        this.connectionId = connectionId;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * Отправляет данные, содержащие целые записи FastCGI. Возвращает управление после отправки.
+     *
+     * @param b Данные.
+     * @param off Смещение начала данных.
+     * @param len Длина данных.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        if (len <= 0) {
+            return;
+        }
+
+        FCGICapture.record(this.connectionId, FCGICapture.OUT, b, off, len);
+        if (this.deferLimit > 0 && this.append(b, off, len)) {
+            return;
+        }
+        this.writeNow(b, off, len);
+    }
+
+    /**
+     * Включает отложенную запись: последующие данные накапливаются в памяти, пока их объем не превысит
+     * {@code limit}; после этого накопленные и новые данные отправляются сразу. Предназначена для ответа,
+     * который записывает один поток.
+     *
+     * @param limit Максимальный объем отложенных данных в байтах.
+     */
+    public synchronized void defer(int limit) {
+        this.deferredLen = 0;
+        this.deferLimit = limit;
+    }
+
+    /**
+     * Выключает отложенную запись и возвращает накопленные данные. Память буфера, учтенная в
+     * {@link FCGIMemoryBudget} (см. {@link #getDeferredReserved()}), с этого момента возвращает вызывающий.
+     *
+     * @return Накопленные данные или {@code null}, если их нет или они уже отправлены.
+     */
+    public synchronized ByteBuffer takeDeferred() {
+        ByteBuffer data = this.deferLimit > 0 && this.deferredLen > 0 ? ByteBuffer.wrap(this.deferred, 0, this.deferredLen) : null;
+        this.deferLimit = 0;
+        this.deferred = null;
+        this.deferredLen = 0;
+        this.deferredReserved = 0;
+        return data;
+    }
+
+    /**
+     * Добавляет данные к отложенным. Прирост буфера учитывается в {@link FCGIMemoryBudget} до его выделения.
+     * Если объем превышает ограничение или памяти в бюджете нет, отложенная запись выключается,
+     * а накопленные данные отправляются.
+     *
+     * @param b Данные.
+     * @param off Смещение начала данных.
+     * @param len Длина данных.
+     * @return {@code true}, если данные отложены; {@code false}, если их нужно отправить сразу.
+     * @throws IOException Если накопленные данные не удалось отправить.
+     */
+    private synchronized boolean append(byte[] b, int off, int len) throws IOException {
+        if (this.deferLimit <= 0) {
+            return false;
+        }
+        if (this.deferredLen + len <= this.deferLimit) {
+            int capacity = this.deferred == null ? 0 : this.deferred.length;
+            int size = capacity;
+            if (capacity < this.deferredLen + len) {
+                size = Math.min(this.deferLimit, Math.max(this.deferredLen + len, capacity == 0 ? 8192 : capacity * 2));
+            }
+            if (size == capacity || FCGIMemoryBudget.tryReserve(size - capacity)) {
+                if (size != capacity) {
+                    this.deferred = Arrays.copyOf(this.deferred == null ? new byte[0] : this.deferred, size);
+                    this.deferredReserved += size - capacity;
+                }
+                System.arraycopy(b, off, this.deferred, this.deferredLen, len);
+                this.deferredLen += len;
+                return true;
+            }
+        }
+
+        byte[] data = this.deferred;
+        int count = this.deferredLen;
+        int reserved = this.deferredReserved;
+        this.deferLimit = 0;
+        this.deferred = null;
+        this.deferredLen = 0;
+        this.deferredReserved = 0;
+        try {
+            if (count > 0) {
+                this.writeNow(data, 0, count);
+            }
+        } finally {
+            FCGIMemoryBudget.release(reserved);
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает объем отложенных данных.
+     *
+     * @return Объем в байтах; 0, если отложенная запись выключена.
+     */
+    public synchronized int getDeferredSize() {
+        return this.deferLimit > 0 ? this.deferredLen : 0;
+    }
+
+    /**
+     * Возвращает память буфера отложенных данных, учтенную в {@link FCGIMemoryBudget}.
+     *
+     * @return Объем в байтах.
+     */
+    public synchronized int getDeferredReserved() {
+        return this.deferredReserved;
+    }
+
+    /**
+     * Выключает отложенную запись, отправляет накопленные данные и возвращает память их буфера в бюджет.
+     *
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public void flushDeferred() throws IOException {
+        int reserved;
+        ByteBuffer data;
+        synchronized (this) {
+            reserved = this.deferredReserved;
+            data = this.takeDeferred();
+        }
+        try {
+            if (data != null) {
+                this.writeNow(data.array(), data.position(), data.remaining());
+            }
+        } finally {
+            FCGIMemoryBudget.release(reserved);
+        }
+    }
+
+    /**
+     * Отправляет данные через очередь записи. Возвращает управление после отправки.
+     *
+     * @param b Данные.
+     * @param off Смещение начала данных.
+     * @param len Длина данных.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    private void writeNow(byte[] b, int off, int len) throws IOException {
+        Node node = new Node(b, off, len);
+        Node top;
+        do {
+            // Ссылка на следующий элемент записывается до публикации элемента в очереди
+            top = this.head.get();
+            node.next = top;
+        } while (!this.head.compareAndSet(top, node));
+
+        while (!node.done) {
+            if (this.writing.compareAndSet(false, true)) {
+                this.drain();
+                continue;
+            }
+            LockSupport.park(this);
+        }
+        if (node.error != null) {
+            throw node.error;
+        }
+    }
+
+    /**
+     * Отправляет очередь, пока в ней есть элементы, и снимает флаг записывающего потока. Поток, добавивший
+     * элемент после последней проверки очереди, мог не стать записывающим и ждать; поэтому после снятия флага
+     * очередь проверяется снова, и при наличии элементов вызывающий пытается снова стать записывающим.
+     * Выполняется только записывающим потоком.
+     */
+    private void drain() {
+        do {
+            try {
+                this.combine();
+            } finally {
+                this.writing.set(false);
+            }
+        } while (this.head.get() != null && this.writing.compareAndSet(false, true));
+    }
+
+    /**
+     * Отправляет очередь, пока в ней есть элементы. Выполняется только записывающим потоком.
+     */
+    private void combine() {
+        Node batch;
+        while ((batch = this.head.getAndSet(null)) != null) {
+            // Элементы забираются в обратном порядке добавления
+            Node fifo = null;
+            while (batch != null) {
+                Node next = batch.next;
+                batch.next = fifo;
+                fifo = batch;
+                batch = next;
+            }
+            while (fifo != null) {
+                fifo = this.writeBatch(fifo);
+            }
+        }
+    }
+
+    /**
+     * Отправляет до {@link #MAX_BATCH} элементов и сообщает ожидающим потокам о завершении.
+     *
+     * @param first Первый элемент.
+     * @return Первый неотправленный элемент или {@code null}.
+     */
+    private Node writeBatch(Node first) {
+        int count = 0;
+        int total = 0;
+        Node node = first;
+        while (node != null && count < MAX_BATCH) {
+            this.vector[count++] = ByteBuffer.wrap(node.b, node.off, node.len);
+            total += node.len;
+            node = node.next;
+        }
+        Node rest = node;
+
+        IOException error = this.failure;
+        if (error == null) {
+            try {
+                this.send(count, total);
+            } catch (IOException e) {
+                this.failure = e;
+                error = e;
+            } catch (RuntimeException e) {
+                // Ожидающие потоки должны быть освобождены при любой ошибке отправки
+                this.failure = new IOException(e);
+                error = this.failure;
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            this.vector[i] = null;
+        }
+
+        node = first;
+        while (node != rest) {
+            Node next = node.next;
+            node.error = error;
+            node.done = true;
+            if (node.waiter != Thread.currentThread()) {
+                LockSupport.unpark(node.waiter);
+            }
+            node = next;
+        }
+        return rest;
+    }
+
+    /**
+     * Отправляет фрагменты {@link #vector} в соединение.
+     *
+     * @param count Количество фрагментов.
+     * @param total Общий объем данных.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    private void send(int count, int total) throws IOException {
+        if (count == 1) {
+            ByteBuffer single = this.vector[0];
+            this.out.write(single.array(), single.position(), single.remaining());
+            return;
+        }
+        if (this.channel != null && this.channel.isBlocking()) {
+            long remaining = total;
+            while (remaining > 0) {
+                remaining -= this.channel.write(this.vector, 0, count);
+            }
+            return;
+        }
+
+        if (total > JOIN_LIMIT) {
+            for (int i = 0; i < count; ++i) {
+                ByteBuffer part = this.vector[i];
+                this.out.write(part.array(), part.position(), part.remaining());
+            }
+            return;
+        }
+        if (this.joined.length < total) {
+            this.joined = new byte[Math.max(total, this.joined.length * 2)];
+        }
+        int pos = 0;
+        for (int i = 0; i < count; ++i) {
+            ByteBuffer part = this.vector[i];
+            System.arraycopy(part.array(), part.position(), this.joined, pos, part.remaining());
+            pos += part.remaining();
+        }
+        this.out.write(this.joined, 0, pos);
+    }
+}
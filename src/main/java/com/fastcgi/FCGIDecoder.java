@@ -0,0 +1,405 @@
+package com.fastcgi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Класс FCGIDecoder — инкрементальный разборщик записей FastCGI, не зависящий от способа ввода-вывода.
+ * Данные передаются методу {@link #decode(ByteBuffer)} фрагментами произвольного размера
+ * (например, из неблокирующего канала или тестового буфера), а разобранные записи сообщаются
+ * слушателю {@link FCGIRecordListener}. Разборщик не выполняет чтения сам и никогда не блокируется.
+ * <p>
+ * Содержимое потоковых записей (stdin, stdout, stderr, data) передается слушателю срезами входного
+ * фрагмента без копирования. Пары параметров собираются из нескольких записей и фрагментов;
+ * незавершенная пара одного запроса не мешает параметрам других запросов мультиплексированного соединения.
+ * Пара длиннее {@link FCGIMessage#MAX_PARAMS}, как и незавершенные пары всех запросов суммарно больше этого
+ * объема, считается ошибкой {@link FCGIGlobalDefs#def_FCGIParamsError}: длины пар не проверены отправителем,
+ * и буферы не должны расти без ограничения.
+ * <p>
+ * Ошибки протокола возвращаются отрицательными кодами {@link FCGIGlobalDefs}; после ошибки
+ * разборщик остается в состоянии ошибки до вызова {@link #reset()}.
+ */
+public class FCGIDecoder {
+
+    /** Состояние: чтение заголовка записи. */
+    private static final int STATE_HEADER = 0;
+
+    /** Состояние: чтение содержимого записи. */
+    private static final int STATE_CONTENT = 1;
+
+    /** Состояние: пропуск выравнивания записи. */
+    private static final int STATE_PADDING = 2;
+
+    /** Пустой буфер, обозначающий конец потока. */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    /** Слушатель событий разбора. */
+    private final FCGIRecordListener listener;
+
+    /** Текущее состояние. */
+    private int state;
+
+    /** Заголовок текущей записи. */
+    private final byte[] header = new byte[FCGIGlobalDefs.def_FCGIHeaderLen];
+
+    /** Количество прочитанных байт заголовка. */
+    private int headerLen;
+
+    /** Тип текущей записи. */
+    private int type;
+
+    /** Идентификатор запроса текущей записи. */
+    private int requestId;
+
+    /** Длина содержимого текущей записи. */
+    private int contentLen;
+
+    /** Длина выравнивания текущей записи. */
+    private int paddingLen;
+
+    /** Оставшаяся часть содержимого или выравнивания текущей записи. */
+    private int remaining;
+
+    /** Тело записи фиксированной длины (BeginRequest, EndRequest). */
+    private final byte[] body = new byte[FCGIGlobalDefs.def_FCGIBeginReqBodyLen];
+
+    /** Количество прочитанных байт тела фиксированной длины. */
+    private int bodyLen;
+
+    /** Буфер пар имя-значение текущей записи. */
+    private byte[] nvBuf = new byte[1024];
+
+    /** Количество байт в буфере пар. */
+    private int nvLen;
+
+    /** Незавершенные пары параметров по идентификаторам запросов. */
+    private final Map<Integer, byte[]> pendingParams = new HashMap<>();
+
+    /** Суммарный размер незавершенных пар в {@link #pendingParams}. */
+    private int pendingBytes;
+
+    /** Код ошибки или 0. */
+    private int errno;
+
+    /**
+     * Конструктор класса FCGIDecoder.
+     *
+     * @param listener Слушатель событий разбора.
+     */
+    public FCGIDecoder(FCGIRecordListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Разбирает очередной фрагмент данных. Все байты фрагмента потребляются, если не произошла ошибка.
+     *
+     * @param src Фрагмент данных; позиция буфера сдвигается на количество разобранных байт.
+     * @return 0 — фрагмент разобран, отрицательное значение — код ошибки протокола.
+     */
+    public int decode(ByteBuffer src) {
+        while (this.errno == 0 && src.hasRemaining()) {
+            switch (this.state) {
+                case STATE_HEADER -> {
+                    int n = Math.min(this.header.length - this.headerLen, src.remaining());
+                    src.get(this.header, this.headerLen, n);
+                    this.headerLen += n;
+                    if (this.headerLen == this.header.length) {
+                        this.startRecord();
+                    }
+                }
+                case STATE_CONTENT -> {
+                    int n = Math.min(this.remaining, src.remaining());
+                    this.consumeContent(src, n);
+                    this.remaining -= n;
+                    if (this.remaining == 0 && this.errno == 0) {
+                        this.finishRecord();
+                    }
+                }
+                default -> {
+                    int n = Math.min(this.remaining, src.remaining());
+                    src.position(src.position() + n);
+                    this.remaining -= n;
+                    if (this.remaining == 0) {
+                        this.state = STATE_HEADER;
+                    }
+                }
+            }
+        }
+        return this.errno;
+    }
+
+    /**
+     * Проверяет, находится ли разборщик на границе записей.
+     *
+     * @return {@code true}, если последняя запись разобрана полностью.
+     */
+    public boolean isAtRecordBoundary() {
+        return this.state == STATE_HEADER && this.headerLen == 0;
+    }
+
+    /**
+     * Возвращает код ошибки разбора.
+     *
+     * @return Код ошибки или 0.
+     */
+    public int getFCGIError() {
+        return this.errno;
+    }
+
+    /**
+     * Сбрасывает состояние разборщика для разбора нового соединения.
+     */
+    public void reset() {
+        this.state = STATE_HEADER;
+        this.headerLen = 0;
+        this.bodyLen = 0;
+        this.nvLen = 0;
+        this.pendingParams.clear();
+        this.pendingBytes = 0;
+        this.errno = 0;
+    }
+
+    /**
+     * Разбирает заголовок записи и подготавливает чтение содержимого.
+     */
+    private void startRecord() {
+        this.headerLen = 0;
+        if ((this.header[0] & 255) != FCGIGlobalDefs.def_FCGIVersion1) {
+            this.errno = FCGIGlobalDefs.def_FCGIUnsupportedVersion;
+            return;
+        }
+        this.type = this.header[1] & 255;
+        this.requestId = (this.header[2] & 255) << 8 | this.header[3] & 255;
+        this.contentLen = (this.header[4] & 255) << 8 | this.header[5] & 255;
+        this.paddingLen = this.header[6] & 255;
+        this.bodyLen = 0;
+        this.nvLen = 0;
+
+        if ((this.type == FCGIGlobalDefs.def_FCGIBeginRequest || this.type == FCGIGlobalDefs.def_FCGIEndRequest)
+                && this.contentLen != this.body.length) {
+            this.errno = FCGIGlobalDefs.def_FCGIProtocolError;
+            return;
+        }
+        if (this.type == FCGIGlobalDefs.def_FCGIParams) {
+            byte[] pending = this.pendingParams.remove(this.requestId);
+            if (pending != null) {
+                this.pendingBytes -= pending.length;
+                this.appendPairs(pending, 0, pending.length);
+            }
+        }
+
+        this.state = STATE_CONTENT;
+        this.remaining = this.contentLen;
+        if (this.remaining == 0) {
+            this.finishRecord();
+        }
+    }
+
+    /**
+     * Обрабатывает часть содержимого текущей записи.
+     *
+     * @param src Входной фрагмент.
+     * @param n Количество байт содержимого во фрагменте.
+     */
+    private void consumeContent(ByteBuffer src, int n) {
+        switch (this.type) {
+            case FCGIGlobalDefs.def_FCGIStdin, FCGIGlobalDefs.def_FCGIStdout,
+                 FCGIGlobalDefs.def_FCGIStderr, FCGIGlobalDefs.def_FCGIData -> {
+                ByteBuffer slice = src.slice();
+                slice.limit(n);
+                src.position(src.position() + n);
+                this.emitStream(slice);
+            }
+            case FCGIGlobalDefs.def_FCGIBeginRequest, FCGIGlobalDefs.def_FCGIEndRequest -> {
+                src.get(this.body, this.bodyLen, n);
+                this.bodyLen += n;
+            }
+            case FCGIGlobalDefs.def_FCGIParams, FCGIGlobalDefs.def_FCGIGetValues, FCGIGlobalDefs.def_FCGIGetValuesResult -> {
+                if (!this.ensureCapacity(n)) {
+                    src.position(src.position() + n);
+                    return;
+                }
+                if (src.hasArray()) {
+                    this.appendPairs(src.array(), src.arrayOffset() + src.position(), n);
+                    src.position(src.position() + n);
+                } else {
+                    src.get(this.nvBuf, this.nvLen, n);
+                    this.nvLen += n;
+                }
+                if (this.type == FCGIGlobalDefs.def_FCGIParams) {
+                    this.parsePairs(null);
+                }
+            }
+            default -> src.position(src.position() + n);
+        }
+    }
+
+    /**
+     * Завершает разбор записи и сообщает о ней слушателю.
+     */
+    private void finishRecord() {
+        switch (this.type) {
+            case FCGIGlobalDefs.def_FCGIBeginRequest -> {
+                if (this.requestId == FCGIGlobalDefs.def_FCGINullRequestID) {
+                    this.errno = FCGIGlobalDefs.def_FCGIProtocolError;
+                    return;
+                }
+                this.listener.onBeginRequest(this.requestId, (this.body[0] & 255) << 8 | this.body[1] & 255, this.body[2] & 255);
+            }
+            case FCGIGlobalDefs.def_FCGIEndRequest -> this.listener.onEndRequest(this.requestId,
+                    (this.body[0] & 255) << 24 | (this.body[1] & 255) << 16 | (this.body[2] & 255) << 8 | this.body[3] & 255,
+                    this.body[4] & 255);
+            case FCGIGlobalDefs.def_FCGIAbortRequest -> this.listener.onAbortRequest(this.requestId);
+            case FCGIGlobalDefs.def_FCGIParams -> {
+                if (this.contentLen == 0) {
+                    if (this.nvLen != 0) {
+                        this.errno = FCGIGlobalDefs.def_FCGIParamsError;
+                        return;
+                    }
+                    this.listener.onParamsEnd(this.requestId);
+                } else if (this.nvLen > 0) {
+                    if (this.pendingBytes + this.nvLen > FCGIMessage.MAX_PARAMS) {
+                        this.errno = FCGIGlobalDefs.def_FCGIParamsError;
+                        return;
+                    }
+                    this.pendingParams.put(this.requestId, Arrays.copyOf(this.nvBuf, this.nvLen));
+                    this.pendingBytes += this.nvLen;
+                    this.nvLen = 0;
+                }
+            }
+            case FCGIGlobalDefs.def_FCGIStdin, FCGIGlobalDefs.def_FCGIStdout,
+                 FCGIGlobalDefs.def_FCGIStderr, FCGIGlobalDefs.def_FCGIData -> {
+                if (this.contentLen == 0) {
+                    this.emitStream(EMPTY);
+                }
+            }
+            case FCGIGlobalDefs.def_FCGIGetValues, FCGIGlobalDefs.def_FCGIGetValuesResult -> {
+                Properties values = new Properties();
+                this.parsePairs(values);
+                if (this.nvLen != 0) {
+                    this.errno = FCGIGlobalDefs.def_FCGIParamsError;
+                    return;
+                }
+                if (this.type == FCGIGlobalDefs.def_FCGIGetValues) {
+                    this.listener.onGetValues(values);
+                } else {
+                    this.listener.onGetValuesResult(values);
+                }
+            }
+            default -> this.listener.onUnknownType(this.type, this.requestId);
+        }
+        this.remaining = this.paddingLen;
+        this.state = this.paddingLen > 0 ? STATE_PADDING : STATE_HEADER;
+    }
+
+    /**
+     * Передает фрагмент потоковой записи слушателю.
+     *
+     * @param content Фрагмент данных.
+     */
+    private void emitStream(ByteBuffer content) {
+        switch (this.type) {
+            case FCGIGlobalDefs.def_FCGIStdin -> this.listener.onStdin(this.requestId, content);
+            case FCGIGlobalDefs.def_FCGIStdout -> this.listener.onStdout(this.requestId, content);
+            case FCGIGlobalDefs.def_FCGIStderr -> this.listener.onStderr(this.requestId, content);
+            default -> this.listener.onData(this.requestId, content);
+        }
+    }
+
+    /**
+     * Добавляет байты в буфер пар имя-значение.
+     *
+     * @param src Массив данных.
+     * @param off Смещение.
+     * @param len Длина.
+     */
+    private void appendPairs(byte[] src, int off, int len) {
+        this.ensureCapacity(len);
+        System.arraycopy(src, off, this.nvBuf, this.nvLen, len);
+        this.nvLen += len;
+    }
+
+    /**
+     * Увеличивает буфер пар так, чтобы в нем поместилось еще {@code len} байт. Буфер не растет больше
+     * {@link FCGIMessage#MAX_PARAMS} с учетом заголовков пары.
+     *
+     * @param len Требуемое свободное место.
+     * @return {@code false}, если буфер превысил бы ограничение; код ошибки установлен.
+     */
+    private boolean ensureCapacity(int len) {
+        if (this.nvLen + len > FCGIMessage.MAX_PARAMS + 8) {
+            this.errno = FCGIGlobalDefs.def_FCGIParamsError;
+            return false;
+        }
+        if (this.nvLen + len > this.nvBuf.length) {
+            this.nvBuf = Arrays.copyOf(this.nvBuf, Math.max(this.nvBuf.length * 2, this.nvLen + len));
+        }
+        return true;
+    }
+
+    /**
+     * Разбирает все полные пары из буфера и удаляет их из него. Незавершенная пара остается в буфере.
+     *
+     * @param values Набор для сохранения пар или {@code null}, чтобы передавать их слушателю как параметры запроса.
+     */
+    private void parsePairs(Properties values) {
+        int pos = 0;
+        while (pos < this.nvLen) {
+            int p = pos;
+            long nameLen = this.readLength(p);
+            if (nameLen < 0) {
+                break;
+            }
+            p += (this.nvBuf[p] & 128) != 0 ? 4 : 1;
+            long valueLen = this.readLength(p);
+            if (valueLen < 0) {
+                break;
+            }
+            p += (this.nvBuf[p] & 128) != 0 ? 4 : 1;
+            if (nameLen + valueLen > FCGIMessage.MAX_PARAMS) {
+                // Пара не поместится в буфер: ошибка сообщается сразу, не дожидаясь ее данных
+                this.errno = FCGIGlobalDefs.def_FCGIParamsError;
+                return;
+            }
+            if (p + nameLen + valueLen > this.nvLen) {
+                break;
+            }
+            String name = new String(this.nvBuf, p, (int) nameLen, StandardCharsets.UTF_8);
+            String value = new String(this.nvBuf, p + (int) nameLen, (int) valueLen, StandardCharsets.UTF_8);
+            if (values != null) {
+                values.put(name, value);
+            } else {
+                this.listener.onParam(this.requestId, name, value);
+            }
+            pos = p + (int) nameLen + (int) valueLen;
+        }
+        if (pos > 0) {
+            System.arraycopy(this.nvBuf, pos, this.nvBuf, 0, this.nvLen - pos);
+            this.nvLen -= pos;
+        }
+    }
+
+    /**
+     * Читает длину имени или значения в кодировке FastCGI (1 или 4 байта).
+     *
+     * @param pos Позиция в буфере пар.
+     * @return Длина или -1, если в буфере недостаточно байт.
+     */
+    private long readLength(int pos) {
+        if (pos >= this.nvLen) {
+            return -1;
+        }
+        int b = this.nvBuf[pos] & 255;
+        if ((b & 128) == 0) {
+            return b;
+        }
+        if (pos + 4 > this.nvLen) {
+            return -1;
+        }
+        return (long) (b & 127) << 24 | (this.nvBuf[pos + 1] & 255) << 16 | (this.nvBuf[pos + 2] & 255) << 8 | this.nvBuf[pos + 3] & 255;
+    }
+}
@@ -0,0 +1,65 @@
+package com.fastcgi;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Класс FCGIDeflaterPool хранит готовые к использованию объекты {@link Deflater}.
+ * Создание {@link Deflater} выделяет внутренние буферы zlib вне кучи, поэтому сжатие ответов
+ * повторно использует объекты, возвращенные в пул после завершения запросов.
+ */
+public class FCGIDeflaterPool {
+
+    /** Максимальное число свободных объектов каждого вида, хранимых в пуле. */
+    private static final int MAX_IDLE = 64;
+
+    /** Уровень сжатия; задается свойством {@code FCGI_COMPRESSION_LEVEL}. */
+    static final int LEVEL = Integer.getInteger("FCGI_COMPRESSION_LEVEL", Deflater.DEFAULT_COMPRESSION);
+
+    /** Свободные объекты для формата gzip (без обертки zlib). */
+    private static final ConcurrentLinkedQueue<Deflater> rawIdle = new ConcurrentLinkedQueue<>();
+
+    /** Свободные объекты для формата deflate (с оберткой zlib). */
+    private static final ConcurrentLinkedQueue<Deflater> zlibIdle = new ConcurrentLinkedQueue<>();
+
+    /** Число свободных объектов для формата gzip. */
+    private static final AtomicInteger rawCount = new AtomicInteger();
+
+    /** Число свободных объектов для формата deflate. */
+    private static final AtomicInteger zlibCount = new AtomicInteger();
+
+    private FCGIDeflaterPool() {
+    }
+
+    /**
+     * Возвращает объект {@link Deflater} из пула или создает новый.
+     *
+     * @param nowrap {@code true} для данных без обертки zlib (используется в формате gzip).
+     * @return Объект, готовый к сжатию нового потока.
+     */
+    public static Deflater acquire(boolean nowrap) {
+        Deflater deflater = (nowrap ? rawIdle : zlibIdle).poll();
+        if (deflater == null) {
+            return new Deflater(LEVEL, nowrap);
+        }
+        (nowrap ? rawCount : zlibCount).decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * Возвращает объект в пул. Если пул заполнен, ресурсы объекта освобождаются.
+     *
+     * @param deflater Объект, полученный из {@link #acquire(boolean)}.
+     * @param nowrap Значение, с которым объект был получен.
+     */
+    public static void release(Deflater deflater, boolean nowrap) {
+        if ((nowrap ? rawCount : zlibCount).incrementAndGet() > MAX_IDLE) {
+            (nowrap ? rawCount : zlibCount).decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        (nowrap ? rawIdle : zlibIdle).add(deflater);
+    }
+}
@@ -0,0 +1,332 @@
+package com.fastcgi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Класс FCGIEncoder формирует записи FastCGI в буферах, предоставленных вызывающим кодом,
+ * без выделения памяти. Методы не выполняют ввода-вывода, поэтому подходят как для блокирующих потоков,
+ * так и для неблокирующих каналов.
+ * <p>
+ * Методы для {@link ByteBuffer} пишут с текущей позиции буфера и сдвигают ее. Если записи не хватает
+ * места, методы возвращают {@code false} (или -1) и не изменяют позицию.
+ * Записи переменной длины (например, параметры) формируются так: {@link #reserveHeader(ByteBuffer)},
+ * затем содержимое, затем {@link #finishRecord(ByteBuffer, int, int, int)}.
+ */
+public class FCGIEncoder {
+
+    /** Длина заголовка записи. */
+    private static final int HEADER_LEN = FCGIGlobalDefs.def_FCGIHeaderLen;
+
+    private FCGIEncoder() {
+    }
+
+    /**
+     * Записывает заголовок записи FastCGI в массив.
+     *
+     * @param dst Массив назначения.
+     * @param off Смещение заголовка.
+     * @param type Тип записи.
+     * @param requestId Идентификатор запроса.
+     * @param contentLength Длина содержимого.
+     * @param paddingLength Длина выравнивания.
+     * @return Смещение после заголовка.
+     */
+    public static int putHeader(byte[] dst, int off, int type, int requestId, int contentLength, int paddingLength) {
+        dst[off] = (byte) FCGIGlobalDefs.def_FCGIVersion1;
+        dst[off + 1] = (byte) type;
+        dst[off + 2] = (byte) (requestId >> 8);
+        dst[off + 3] = (byte) requestId;
+        dst[off + 4] = (byte) (contentLength >> 8);
+        dst[off + 5] = (byte) contentLength;
+        dst[off + 6] = (byte) paddingLength;
+        dst[off + 7] = 0;
+        return off + HEADER_LEN;
+    }
+
+    /**
+     * Записывает запись EndRequest (заголовок и тело) в массив.
+     *
+     * @param dst Массив назначения; необходимо 16 байт.
+     * @param off Смещение записи.
+     * @param requestId Идентификатор запроса.
+     * @param appStatus Код завершения приложения.
+     * @param protocolStatus Статус протокола.
+     * @return Смещение после записи.
+     */
+    public static int putEndRequest(byte[] dst, int off, int requestId, int appStatus, int protocolStatus) {
+        off = putHeader(dst, off, FCGIGlobalDefs.def_FCGIEndRequest, requestId, FCGIGlobalDefs.def_FCGIEndReqBodyLen, 0);
+        dst[off] = (byte) (appStatus >> 24);
+        dst[off + 1] = (byte) (appStatus >> 16);
+        dst[off + 2] = (byte) (appStatus >> 8);
+        dst[off + 3] = (byte) appStatus;
+        dst[off + 4] = (byte) protocolStatus;
+        dst[off + 5] = 0;
+        dst[off + 6] = 0;
+        dst[off + 7] = 0;
+        return off + FCGIGlobalDefs.def_FCGIEndReqBodyLen;
+    }
+
+    /**
+     * Записывает заголовок записи FastCGI в буфер.
+     *
+     * @param dst Буфер назначения.
+     * @param type Тип записи.
+     * @param requestId Идентификатор запроса.
+     * @param contentLength Длина содержимого.
+     * @param paddingLength Длина выравнивания.
+     * @return {@code false}, если в буфере нет места.
+     */
+    public static boolean putHeader(ByteBuffer dst, int type, int requestId, int contentLength, int paddingLength) {
+        if (dst.remaining() < HEADER_LEN) {
+            return false;
+        }
+        dst.put((byte) FCGIGlobalDefs.def_FCGIVersion1).put((byte) type)
+                .putShort((short) requestId).putShort((short) contentLength)
+                .put((byte) paddingLength).put((byte) 0);
+        return true;
+    }
+
+    /**
+     * Записывает запись BeginRequest.
+     *
+     * @param dst Буфер назначения.
+     * @param requestId Идентификатор запроса.
+     * @param role Роль приложения.
+     * @param flags Флаги запроса ({@link FCGIGlobalDefs#def_FCGIKeepConn}).
+     * @return {@code false}, если в буфере нет места.
+     */
+    public static boolean putBeginRequest(ByteBuffer dst, int requestId, int role, int flags) {
+        if (dst.remaining() < HEADER_LEN + FCGIGlobalDefs.def_FCGIBeginReqBodyLen) {
+            return false;
+        }
+        putHeader(dst, FCGIGlobalDefs.def_FCGIBeginRequest, requestId, FCGIGlobalDefs.def_FCGIBeginReqBodyLen, 0);
+        dst.putShort((short) role).put((byte) flags).put((byte) 0).putInt(0);
+        return true;
+    }
+
+    /**
+     * Записывает запись EndRequest.
+     *
+     * @param dst Буфер назначения.
+     * @param requestId Идентификатор запроса.
+     * @param appStatus Код завершения приложения.
+     * @param protocolStatus Статус протокола.
+     * @return {@code false}, если в буфере нет места.
+     */
+    public static boolean putEndRequest(ByteBuffer dst, int requestId, int appStatus, int protocolStatus) {
+        if (dst.remaining() < HEADER_LEN + FCGIGlobalDefs.def_FCGIEndReqBodyLen) {
+            return false;
+        }
+        putHeader(dst, FCGIGlobalDefs.def_FCGIEndRequest, requestId, FCGIGlobalDefs.def_FCGIEndReqBodyLen, 0);
+        dst.putInt(appStatus).put((byte) protocolStatus).put((byte) 0).putShort((short) 0);
+        return true;
+    }
+
+    /**
+     * Записывает запись AbortRequest.
+     *
+     * @param dst Буфер назначения.
+     * @param requestId Идентификатор запроса.
+     * @return {@code false}, если в буфере нет места.
+     */
+    public static boolean putAbortRequest(ByteBuffer dst, int requestId) {
+        return putHeader(dst, FCGIGlobalDefs.def_FCGIAbortRequest, requestId, 0, 0);
+    }
+
+    /**
+     * Записывает запись UnknownType в ответ на управляющую запись неизвестного типа.
+     *
+     * @param dst Буфер назначения.
+     * @param unknownType Тип полученной записи.
+     * @return {@code false}, если в буфере нет места.
+     */
+    public static boolean putUnknownType(ByteBuffer dst, int unknownType) {
+        if (dst.remaining() < HEADER_LEN + FCGIGlobalDefs.def_FCGIUnknownBodyTypeBodyLen) {
+            return false;
+        }
+        putHeader(dst, FCGIGlobalDefs.def_FCGIUnknownType, FCGIGlobalDefs.def_FCGINullRequestID,
+                FCGIGlobalDefs.def_FCGIUnknownBodyTypeBodyLen, 0);
+        dst.put((byte) unknownType).put((byte) 0).putShort((short) 0).putInt(0);
+        return true;
+    }
+
+    /**
+     * Записывает одну потоковую запись (stdin, stdout, stderr, data) с максимально возможной частью данных.
+     * Пустой источник дает пустую запись — признак конца потока.
+     *
+     * @param dst Буфер назначения.
+     * @param type Тип записи.
+     * @param requestId Идентификатор запроса.
+     * @param src Источник данных; позиция сдвигается на количество записанных байт.
+     * @return Количество записанных байт данных или -1, если в буфере нет места даже для заголовка.
+     */
+    public static int putStream(ByteBuffer dst, int type, int requestId, ByteBuffer src) {
+        if (dst.remaining() < HEADER_LEN || (src.hasRemaining() && dst.remaining() == HEADER_LEN)) {
+            return -1;
+        }
+        int n = Math.min(Math.min(src.remaining(), dst.remaining() - HEADER_LEN), FCGIGlobalDefs.def_FCGIMaxLen);
+        putHeader(dst, type, requestId, n, 0);
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+        return n;
+    }
+
+    /**
+     * Резервирует место под заголовок записи переменной длины.
+     *
+     * @param dst Буфер назначения.
+     * @return Позиция заголовка для {@link #finishRecord(ByteBuffer, int, int, int)} или -1, если в буфере нет места.
+     */
+    public static int reserveHeader(ByteBuffer dst) {
+        if (dst.remaining() < HEADER_LEN) {
+            return -1;
+        }
+        int mark = dst.position();
+        dst.position(mark + HEADER_LEN);
+        return mark;
+    }
+
+    /**
+     * Заполняет зарезервированный заголовок: длина содержимого — все, что записано после него.
+     *
+     * @param dst Буфер назначения.
+     * @param mark Позиция заголовка, полученная от {@link #reserveHeader(ByteBuffer)}.
+     * @param type Тип записи.
+     * @param requestId Идентификатор запроса.
+     * @return Длина содержимого записи.
+     */
+    public static int finishRecord(ByteBuffer dst, int mark, int type, int requestId) {
+        int contentLength = dst.position() - mark - HEADER_LEN;
+        dst.put(mark, (byte) FCGIGlobalDefs.def_FCGIVersion1).put(mark + 1, (byte) type)
+                .putShort(mark + 2, (short) requestId).putShort(mark + 4, (short) contentLength)
+                .put(mark + 6, (byte) 0).put(mark + 7, (byte) 0);
+        return contentLength;
+    }
+
+    /**
+     * Записывает пару имя-значение в кодировке FastCGI.
+     *
+     * @param dst Буфер назначения.
+     * @param name Имя в байтах.
+     * @param value Значение в байтах.
+     * @return {@code false}, если в буфере нет места.
+     */
+    public static boolean putNameValue(ByteBuffer dst, byte[] name, byte[] value) {
+        if (dst.remaining() < lengthSize(name.length) + lengthSize(value.length) + name.length + value.length) {
+            return false;
+        }
+        putLength(dst, name.length);
+        putLength(dst, value.length);
+        dst.put(name).put(value);
+        return true;
+    }
+
+    /**
+     * Записывает пару имя-значение в кодировке FastCGI, кодируя строки в UTF-8 прямо в буфер.
+     *
+     * @param dst Буфер назначения.
+     * @param name Имя.
+     * @param value Значение.
+     * @return {@code false}, если в буфере нет места.
+     */
+    public static boolean putNameValue(ByteBuffer dst, CharSequence name, CharSequence value) {
+        int nameLen = utf8Length(name);
+        int valueLen = utf8Length(value);
+        if (dst.remaining() < nameValueLength(nameLen, valueLen)) {
+            return false;
+        }
+        putLength(dst, nameLen);
+        putLength(dst, valueLen);
+        putUtf8(dst, name);
+        putUtf8(dst, value);
+        return true;
+    }
+
+    /**
+     * Возвращает размер закодированной пары имя-значение.
+     *
+     * @param nameLen Длина имени в байтах.
+     * @param valueLen Длина значения в байтах.
+     * @return Размер пары в байтах.
+     */
+    public static int nameValueLength(int nameLen, int valueLen) {
+        return lengthSize(nameLen) + lengthSize(valueLen) + nameLen + valueLen;
+    }
+
+    /**
+     * Возвращает длину строки в кодировке UTF-8.
+     *
+     * @param s Строка.
+     * @return Длина в байтах.
+     */
+    public static int utf8Length(CharSequence s) {
+        int len = 0;
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len += 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                ++i;
+            } else if (Character.isSurrogate(c)) {
+                len += 1;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Возвращает размер поля длины: 1 байт для значений меньше 128, иначе 4 байта.
+     *
+     * @param len Длина.
+     * @return Размер поля.
+     */
+    private static int lengthSize(int len) {
+        return len < 128 ? 1 : 4;
+    }
+
+    /**
+     * Записывает поле длины пары имя-значение.
+     *
+     * @param dst Буфер назначения.
+     * @param len Длина.
+     */
+    private static void putLength(ByteBuffer dst, int len) {
+        if (len < 128) {
+            dst.put((byte) len);
+        } else {
+            dst.putInt(len | 0x80000000);
+        }
+    }
+
+    /**
+     * Кодирует строку в UTF-8 прямо в буфер. Одиночные суррогаты заменяются символом '?'.
+     *
+     * @param dst Буфер назначения.
+     * @param s Строка.
+     */
+    private static void putUtf8(ByteBuffer dst, CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.fastcgi;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Класс FCGIFlushPolicy определяет, как явный вызов {@link FCGIOutputStream#flush()} превращается
+ * в запись FastCGI и системный вызов записи в сокет.
+ * <ul>
+ *     <li>{@code immediate} — каждый сброс сразу отправляет накопленные данные (поведение по умолчанию);</li>
+ *     <li>{@code size:M} — сброс отправляет данные, только если накоплено не меньше M байт;</li>
+ *     <li>{@code time:N[:M]} — данные отправляются не позже чем через N микросекунд после первого сброса
+ *     или сразу, если накоплено не меньше M байт.</li>
+ * </ul>
+ * Политика задается свойством {@code FCGI_FLUSH_POLICY}. В любом режиме данные отправляются
+ * при заполнении буфера и при закрытии потока. Свойство {@code FCGI_TCP_NODELAY} управляет
+ * алгоритмом Нейгла на принятых соединениях.
+ * <p>
+ * Отложенные сбросы режима {@code time} отсчитывает общий таймер, но сам сброс выполняется в отдельном пуле:
+ * запись в сокет веб-сервера, который медленно читает ответ, не задерживает сбросы других соединений.
+ */
+public class FCGIFlushPolicy {
+
+    /** Режим немедленной отправки при каждом сбросе. */
+    public static final int MODE_IMMEDIATE = 0;
+
+    /** Режим отправки по достижении порога размера. */
+    public static final int MODE_SIZE = 1;
+
+    /** Режим отправки с ограничением задержки. */
+    public static final int MODE_TIME = 2;
+
+    /** Политика, заданная свойствами {@code FCGI_FLUSH_POLICY} и {@code FCGI_TCP_NODELAY}. */
+    public static final FCGIFlushPolicy DEFAULT = parse(System.getProperty("FCGI_FLUSH_POLICY"), System.getProperty("FCGI_TCP_NODELAY"));
+
+    /** Таймер отложенных сбросов; создается при первом использовании режима {@link #MODE_TIME}. */
+    private static ScheduledExecutorService timer;
+
+    /** Пул потоков, выполняющих отложенные сбросы; создается вместе с таймером. */
+    private static ExecutorService flushers;
+
+    /** Режим сброса. */
+    public final int mode;
+
+    /** Порог накопленных данных в байтах, при котором сброс выполняется сразу. */
+    public final int maxBytes;
+
+    /** Максимальная задержка отправки после сброса в наносекундах. */
+    public final long maxDelayNanos;
+
+    /** Значение TCP_NODELAY для принятых соединений или {@code null}, чтобы не менять системное значение. */
+    public final Boolean tcpNoDelay;
+
+    /**
+     * Конструктор класса FCGIFlushPolicy.
+     *
+     * @param mode Режим сброса.
+     * @param maxBytes Порог накопленных данных в байтах.
+     * @param maxDelayNanos Максимальная задержка отправки в наносекундах.
+     * @param tcpNoDelay Значение TCP_NODELAY или {@code null}.
+     */
+    public FCGIFlushPolicy(int mode, int maxBytes, long maxDelayNanos, Boolean tcpNoDelay) {
+        this.mode = mode;
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = maxDelayNanos;
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Разбирает описание политики в формате {@code immediate}, {@code size:M} или {@code time:N[:M]}.
+     * Некорректное или пустое описание означает режим {@code immediate}.
+     *
+     * @param spec Описание политики.
+     * @param tcpNoDelay Значение TCP_NODELAY ({@code true}/{@code false}) или {@code null}.
+     * @return Политика сброса.
+     */
+    public static FCGIFlushPolicy parse(String spec, String tcpNoDelay) {
+        Boolean noDelay = tcpNoDelay == null || tcpNoDelay.isEmpty() ? null : Boolean.valueOf(tcpNoDelay);
+        if (spec != null) {
+            String[] parts = spec.trim().split(":");
+            try {
+                if (parts[0].equals("size") && parts.length == 2) {
+                    return new FCGIFlushPolicy(MODE_SIZE, Integer.parseInt(parts[1]), 0, noDelay);
+                }
+                if (parts[0].equals("time") && parts.length >= 2) {
+                    int bytes = parts.length > 2 ? Integer.parseInt(parts[2]) : Integer.MAX_VALUE;
+                    return new FCGIFlushPolicy(MODE_TIME, bytes, Long.parseLong(parts[1]) * 1000L, noDelay);
+                }
+            } catch (NumberFormatException e) {
+                // Некорректное описание: используем немедленный сброс
+            }
+        }
+        return new FCGIFlushPolicy(MODE_IMMEDIATE, 0, 0, noDelay);
+    }
+
+    /**
+     * Проверяет, нужно ли отправить данные при явном сбросе.
+     *
+     * @param pending Количество накопленных и еще не отправленных байт.
+     * @param requestedAt Время первого неисполненного сброса ({@link System#nanoTime()}) или 0.
+     * @return {@code true}, если данные нужно отправить сейчас.
+     */
+    public boolean shouldFlush(int pending, long requestedAt) {
+        return switch (this.mode) {
+            case MODE_SIZE -> pending >= this.maxBytes;
+            case MODE_TIME -> pending >= this.maxBytes || (requestedAt != 0 && System.nanoTime() - requestedAt >= this.maxDelayNanos);
+            default -> true;
+        };
+    }
+
+    /**
+     * Применяет параметры политики к принятому соединению.
+     *
+     * @param socket Принятое соединение.
+     */
+    public void applyTo(Socket socket) {
+        if (this.tcpNoDelay == null) {
+            return;
+        }
+        try {
+            socket.setTcpNoDelay(this.tcpNoDelay);
+        } catch (SocketException e) {
+            // Параметр не поддерживается соединением
+        }
+    }
+
+    /**
+     * Планирует отложенный сброс. По истечении задержки поток таймера только передает сброс пулу
+     * и сам в сокет не пишет. Отмененная задача сразу удаляется из очереди таймера и не удерживает поток вывода.
+     *
+     * @param flush Сброс потока вывода.
+     * @param delayNanos Задержка в наносекундах.
+     * @return Задача таймера.
+     */
+    static ScheduledFuture<?> schedule(Runnable flush, long delayNanos) {
+        ScheduledExecutorService scheduler;
+        ExecutorService pool;
+        synchronized (FCGIFlushPolicy.class) {
+            if (timer == null) {
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+                    Thread thread = new Thread(task, "fcgi-flush-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                executor.setRemoveOnCancelPolicy(true);
+                timer = executor;
+                flushers = Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task, "fcgi-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            scheduler = timer;
+            pool = flushers;
+        }
+        return scheduler.schedule(() -> pool.execute(flush), delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
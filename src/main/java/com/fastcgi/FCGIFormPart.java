@@ -0,0 +1,120 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Класс FCGIFormPart — одно поле формы, полученное от {@link FCGIFormReader}.
+ * Значение обычного поля доступно как срез {@link FCGIByteSlice} без копирования и декодирования.
+ * Файл доступен как поток: пока обработчик не перешел к следующему полю, данные читаются прямо
+ * из тела запроса; при переходе непрочитанный остаток сохраняется в памяти или во временном файле.
+ */
+public class FCGIFormPart {
+
+    /** Имя поля. */
+    public final String name;
+
+    /** Имя файла или {@code null}, если поле не является файлом. */
+    public final String filename;
+
+    /** Тип содержимого части или {@code null}, если он не указан. */
+    public final String contentType;
+
+    /** Значение обычного поля или {@code null} для файла. */
+    final FCGIByteSlice value;
+
+    /** Источник данных файла; заменяется сохраненным остатком при переходе к следующему полю. */
+    InputStream source;
+
+    /** Поток данных файла, выдаваемый обработчику. */
+    private final InputStream stream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            return FCGIFormPart.this.source.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return FCGIFormPart.this.source.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return FCGIFormPart.this.source.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            FCGIFormPart.this.source.close();
+        }
+    };
+
+    /**
+     * Конструктор класса FCGIFormPart.
+     *
+     * @param name Имя поля.
+     * @param filename Имя файла или {@code null}.
+     * @param contentType Тип содержимого или {@code null}.
+     * @param value Значение обычного поля или {@code null} для файла.
+     * @param source Источник данных файла или {@code null}.
+     */
+    FCGIFormPart(String name, String filename, String contentType, FCGIByteSlice value, InputStream source) {
+        this.name = name;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.value = value;
+        this.source = source;
+    }
+
+    /**
+     * Проверяет, является ли поле файлом.
+     *
+     * @return {@code true} для файла.
+     */
+    public boolean isFile() {
+        return this.value == null;
+    }
+
+    /**
+     * Возвращает значение обычного поля.
+     *
+     * @return Срез значения; для файла — {@code null}.
+     */
+    public FCGIByteSlice getValue() {
+        return this.value;
+    }
+
+    /**
+     * Возвращает значение обычного поля строкой UTF-8.
+     *
+     * @return Строка; для файла — {@code null}.
+     */
+    public String getString() {
+        return this.value == null ? null : this.value.toString();
+    }
+
+    /**
+     * Возвращает поток данных поля. Для файла данные читаются однократно.
+     *
+     * @return Поток данных.
+     */
+    public InputStream getInputStream() {
+        return this.value != null ? this.value.newInputStream() : this.stream;
+    }
+
+    /**
+     * Записывает непрочитанные данные поля в файл.
+     *
+     * @param target Путь к файлу.
+     * @return Количество записанных байт.
+     * @throws IOException Если данные не удалось прочитать или записать.
+     */
+    public long transferTo(Path target) throws IOException {
+        try (InputStream in = this.getInputStream(); OutputStream out = Files.newOutputStream(target)) {
+            return in.transferTo(out);
+        }
+    }
+}
@@ -0,0 +1,680 @@
+package com.fastcgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Класс FCGIFormReader последовательно разбирает тело запроса с формой, не загружая его в память целиком.
+ * Тип тела определяется параметрами {@code CONTENT_TYPE} и {@code CONTENT_LENGTH} запроса; поддерживаются
+ * {@code application/x-www-form-urlencoded} и {@code multipart/form-data}.
+ * <p>
+ * Поля выдаются по одному методом {@link #next()}. Значения обычных полей декодируются в общую
+ * область памяти читателя и выдаются срезами {@link FCGIByteSlice}; размер одного значения ограничен
+ * свойством {@code FCGI_FORM_MAX_FIELD} (по умолчанию 1 МБ). Файлы выдаются потоками, читающими прямо
+ * из тела запроса. Если обработчик переходит к следующему полю, не дочитав файл, остаток сохраняется
+ * в памяти, а при превышении {@code FCGI_FORM_SPILL_THRESHOLD} байт (по умолчанию 64 КБ) — во временном
+ * файле в каталоге {@code FCGI_FORM_TMPDIR}. Временные файлы удаляются методом {@link #close()}.
+ * <pre>
+ * try (FCGIFormReader form = new FCGIFormReader(System.in, System.getProperties())) {
+ *     for (FCGIFormPart part; (part = form.next()) != null; ) { ... }
+ * }
+ * </pre>
+ */
+public class FCGIFormReader implements Closeable {
+
+    /** Тело в формате {@code application/x-www-form-urlencoded}. */
+    public static final int TYPE_URLENCODED = 1;
+
+    /** Тело в формате {@code multipart/form-data}. */
+    public static final int TYPE_MULTIPART = 2;
+
+    /** Размер буфера чтения. */
+    private static final int BUFFER_SIZE = 16384;
+
+    /** Размер блока общей области значений. */
+    private static final int ARENA_SIZE = 8192;
+
+    /** Максимальный размер заголовков одной части multipart. */
+    private static final int MAX_HEADER_SIZE = 16384;
+
+    /** Максимальный размер значения обычного поля. */
+    private static final int MAX_FIELD = Integer.getInteger("FCGI_FORM_MAX_FIELD", 1 << 20);
+
+    /** Размер остатка файла, после которого он сохраняется во временный файл. */
+    private static final int SPILL_THRESHOLD = Integer.getInteger("FCGI_FORM_SPILL_THRESHOLD", 65536);
+
+    /** Тип тела. */
+    public final int type;
+
+    /** Тело запроса, ограниченное {@code CONTENT_LENGTH}. */
+    private final InputStream in;
+
+    /** Разделитель частей multipart: CRLF, "--" и граница. */
+    private final byte[] delimiter;
+
+    /** Буфер чтения. */
+    private final byte[] buf;
+
+    /** Позиция чтения в буфере. */
+    private int pos;
+
+    /** Конец данных в буфере. */
+    private int lim;
+
+    /** Флаг конца тела. */
+    private boolean eof;
+
+    /** Флаг окончания разбора: больше полей нет. */
+    private boolean done;
+
+    /** Текущий блок общей области значений. */
+    private byte[] arena = new byte[ARENA_SIZE];
+
+    /** Позиция записи в блоке общей области. */
+    private int arenaPos;
+
+    /** Начало накапливаемого значения в блоке общей области. */
+    private int fieldStart;
+
+    /** Последнее выданное поле. */
+    private FCGIFormPart current;
+
+    /** Поток данных текущей части multipart. */
+    private PartStream partStream;
+
+    /** Созданные временные файлы. */
+    private final List<Path> tempFiles = new ArrayList<>();
+
+    /** Открытые потоки чтения временных файлов. */
+    private final List<InputStream> tempStreams = new ArrayList<>();
+
+    /** Память частей, сохраненных в памяти, учтенная в {@link FCGIMemoryBudget}, в байтах. */
+    private long reservedBytes;
+
+    /**
+     * Конструктор класса FCGIFormReader.
+     *
+     * @param body Тело запроса (stdin).
+     * @param params Параметры запроса с {@code CONTENT_TYPE} и, возможно, {@code CONTENT_LENGTH}.
+     * @throws IOException Если тип содержимого не поддерживается.
+     */
+    public FCGIFormReader(InputStream body, Properties params) throws IOException {
+        String contentType = params.getProperty("CONTENT_TYPE", "");
+        String mime = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        if (mime.equals("application/x-www-form-urlencoded")) {
+            this.type = TYPE_URLENCODED;
+            this.delimiter = null;
+        } else if (mime.equals("multipart/form-data")) {
+            String boundary = parameter(contentType, "boundary");
+            if (boundary == null || boundary.isEmpty()) {
+                throw new IOException("multipart/form-data без параметра boundary");
+            }
+            this.type = TYPE_MULTIPART;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        } else {
+            throw new IOException("Неподдерживаемый тип содержимого формы: " + contentType);
+        }
+
+        this.in = bounded(body, params.getProperty("CONTENT_LENGTH"));
+        this.buf = new byte[BUFFER_SIZE + (this.delimiter == null ? 0 : this.delimiter.length)];
+        if (this.type == TYPE_MULTIPART) {
+            // Первый разделитель не предваряется CRLF: добавляем его, чтобы искать один и тот же разделитель
+            this.buf[0] = '\r';
+            this.buf[1] = '\n';
+            this.lim = 2;
+        }
+    }
+
+    /**
+     * Проверяет, может ли тело запроса с заданными параметрами быть разобрано как форма.
+     *
+     * @param params Параметры запроса.
+     * @return {@code true}, если тип содержимого поддерживается.
+     */
+    public static boolean isForm(Properties params) {
+        String mime = params.getProperty("CONTENT_TYPE", "").split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        return mime.equals("application/x-www-form-urlencoded") || mime.equals("multipart/form-data");
+    }
+
+    /**
+     * Возвращает следующее поле формы.
+     *
+     * @return Поле или {@code null}, если полей больше нет.
+     * @throws IOException Если тело не удалось прочитать или оно имеет неверный формат.
+     */
+    public FCGIFormPart next() throws IOException {
+        if (this.done) {
+            return null;
+        }
+        this.current = this.type == TYPE_URLENCODED ? this.nextUrlencoded() : this.nextMultipart();
+        if (this.current == null) {
+            this.done = true;
+        }
+        return this.current;
+    }
+
+    /**
+     * Закрывает потоки чтения и удаляет временные файлы, созданные для сохранения остатков файлов,
+     * и возвращает в {@link FCGIMemoryBudget} память остатков, сохраненных в памяти.
+     */
+    @Override
+    public void close() {
+        for (InputStream stream : this.tempStreams) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Файл удаляется ниже независимо от результата закрытия
+            }
+        }
+        this.tempStreams.clear();
+        for (Path path : this.tempFiles) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // Файл будет удален позже операционной системой или вручную
+            }
+        }
+        this.tempFiles.clear();
+        FCGIMemoryBudget.release(this.reservedBytes);
+        this.reservedBytes = 0;
+    }
+
+    /**
+     * Разбирает следующее поле {@code application/x-www-form-urlencoded}.
+     *
+     * @return Поле или {@code null} в конце тела.
+     * @throws IOException Если тело не удалось прочитать или значение слишком длинное.
+     */
+    private FCGIFormPart nextUrlencoded() throws IOException {
+        String name = null;
+        this.fieldStart = this.arenaPos;
+        while (true) {
+            int b = this.readByte();
+            if (b == -1 || b == '&') {
+                if (name == null && this.arenaPos == this.fieldStart) {
+                    if (b == -1) {
+                        return null;
+                    }
+                    continue; // Пустое поле между '&'
+                }
+                if (name == null) {
+                    name = this.arenaString();
+                }
+                return new FCGIFormPart(name, null, null, this.takeField(), null);
+            }
+            if (b == '=' && name == null) {
+                name = this.arenaString();
+                continue;
+            }
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%') {
+                // Некорректная последовательность сохраняется как есть, а байт, не являющийся
+                // шестнадцатеричной цифрой, возвращается в буфер: '&' и '=' после '%' остаются разделителями
+                int hi = this.readByte();
+                if (hexValue(hi) < 0) {
+                    this.putArena('%');
+                    this.unreadByte(hi);
+                    continue;
+                }
+                int lo = this.readByte();
+                if (hexValue(lo) < 0) {
+                    this.putArena('%');
+                    this.putArena(hi);
+                    this.unreadByte(lo);
+                    continue;
+                }
+                b = hexValue(hi) << 4 | hexValue(lo);
+            }
+            this.putArena(b);
+        }
+    }
+
+    /**
+     * Разбирает следующую часть {@code multipart/form-data}.
+     *
+     * @return Поле или {@code null}, если частей больше нет.
+     * @throws IOException Если тело не удалось прочитать или оно имеет неверный формат.
+     */
+    private FCGIFormPart nextMultipart() throws IOException {
+        if (this.partStream == null) {
+            // Пропуск преамбулы до первого разделителя
+            this.partStream = new PartStream();
+            this.partStream.skip(Long.MAX_VALUE);
+        } else if (!this.partStream.finished) {
+            FCGIFormPart previous = this.current;
+            if (previous != null && previous.isFile()) {
+                previous.source = this.spill(this.partStream);
+            } else {
+                this.partStream.skip(Long.MAX_VALUE);
+            }
+        }
+
+        // После разделителя: "--" — конец тела, иначе CRLF и заголовки части
+        if (!this.ensure(2)) {
+            throw new IOException("Неожиданный конец тела multipart");
+        }
+        if (this.buf[this.pos] == '-' && this.buf[this.pos + 1] == '-') {
+            return null;
+        }
+        // Пробелы после разделителя допускаются
+        String line = this.readLine();
+        if (!line.isBlank()) {
+            throw new IOException("Некорректная строка разделителя multipart");
+        }
+
+        String disposition = null;
+        String contentType = null;
+        int headerBytes = 0;
+        while (!(line = this.readLine()).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_SIZE) {
+                throw new IOException("Слишком большие заголовки части multipart");
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String header = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            if (header.equals("content-disposition")) {
+                disposition = value;
+            } else if (header.equals("content-type")) {
+                contentType = value;
+            }
+        }
+        String name = disposition == null ? null : parameter(disposition, "name");
+        String filename = disposition == null ? null : parameter(disposition, "filename");
+        if (name == null) {
+            name = "";
+        }
+
+        this.partStream = new PartStream();
+        if (filename != null) {
+            return new FCGIFormPart(name, filename, contentType, null, this.partStream);
+        }
+        this.fieldStart = this.arenaPos;
+        int n;
+        while ((n = this.partStream.read(this.arena, this.arenaPos, this.arena.length - this.arenaPos)) != -1) {
+            this.arenaPos += n;
+            if (this.arenaPos == this.arena.length) {
+                this.growArena();
+            }
+        }
+        return new FCGIFormPart(name, null, contentType, this.takeField(), null);
+    }
+
+    /**
+     * Сохраняет непрочитанный остаток файла: в памяти или, если он велик, во временном файле.
+     *
+     * @param part Поток данных части.
+     * @return Поток чтения сохраненного остатка.
+     * @throws IOException Если остаток не удалось прочитать или записать.
+     */
+    private InputStream spill(PartStream part) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        // Если бюджет памяти исчерпан, остаток сразу сохраняется во временном файле
+        long reserved = SPILL_THRESHOLD + chunk.length;
+        if (FCGIMemoryBudget.tryReserve(reserved)) {
+            int n;
+            while (memory.size() <= SPILL_THRESHOLD && (n = part.read(chunk)) != -1) {
+                memory.write(chunk, 0, n);
+            }
+            if (part.finished) {
+                this.reservedBytes += reserved;
+                return new ByteArrayInputStream(memory.toByteArray());
+            }
+            FCGIMemoryBudget.release(reserved);
+        }
+
+        String dir = System.getProperty("FCGI_FORM_TMPDIR");
+        Path file = dir != null ? Files.createTempFile(Paths.get(dir), "fcgi-upload", ".tmp")
+                : Files.createTempFile("fcgi-upload", ".tmp");
+        this.tempFiles.add(file);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            memory.writeTo(out);
+            part.transferTo(out);
+        }
+        InputStream stream = Files.newInputStream(file);
+        this.tempStreams.add(stream);
+        return stream;
+    }
+
+    /**
+     * Читает строку заголовка части, завершенную CRLF.
+     *
+     * @return Строка без CRLF.
+     * @throws IOException Если тело закончилось или строка слишком длинная.
+     */
+    private String readLine() throws IOException {
+        int start = this.arenaPos;
+        this.fieldStart = start;
+        while (true) {
+            int b = this.readByte();
+            if (b == -1) {
+                throw new IOException("Неожиданный конец заголовков части multipart");
+            }
+            if (b == '\n') {
+                int end = this.arenaPos;
+                if (end > this.fieldStart && this.arena[end - 1] == '\r') {
+                    --end;
+                }
+                String line = new String(this.arena, this.fieldStart, end - this.fieldStart, StandardCharsets.UTF_8);
+                this.arenaPos = this.fieldStart;
+                return line;
+            }
+            if (this.arenaPos - this.fieldStart >= MAX_HEADER_SIZE) {
+                throw new IOException("Слишком длинная строка заголовка части multipart");
+            }
+            this.putArena(b);
+        }
+    }
+
+    /**
+     * Читает один байт тела.
+     *
+     * @return Байт или -1 в конце тела.
+     * @throws IOException Если тело не удалось прочитать.
+     */
+    private int readByte() throws IOException {
+        if (this.pos == this.lim && !this.ensure(1)) {
+            return -1;
+        }
+        return this.buf[this.pos++] & 255;
+    }
+
+    /**
+     * Возвращает в буфер байт, только что прочитанный методом {@link #readByte()}. Байт остается
+     * в буфере: после его чтения буфер не сдвигается.
+     *
+     * @param b Прочитанный байт или -1 в конце тела.
+     */
+    private void unreadByte(int b) {
+        if (b != -1) {
+            --this.pos;
+        }
+    }
+
+    /**
+     * Дочитывает тело, пока в буфере не окажется хотя бы {@code n} байт.
+     *
+     * @param n Необходимое количество байт.
+     * @return {@code false}, если тело закончилось раньше.
+     * @throws IOException Если тело не удалось прочитать.
+     */
+    private boolean ensure(int n) throws IOException {
+        while (this.lim - this.pos < n) {
+            if (this.eof) {
+                return false;
+            }
+            if (this.pos > 0) {
+                System.arraycopy(this.buf, this.pos, this.buf, 0, this.lim - this.pos);
+                this.lim -= this.pos;
+                this.pos = 0;
+            }
+            int count = this.in.read(this.buf, this.lim, this.buf.length - this.lim);
+            if (count < 0) {
+                this.eof = true;
+            } else {
+                this.lim += count;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Добавляет байт к накапливаемому значению.
+     *
+     * @param b Байт.
+     * @throws IOException Если значение превышает допустимый размер.
+     */
+    private void putArena(int b) throws IOException {
+        if (this.arenaPos == this.arena.length) {
+            this.growArena();
+        }
+        this.arena[this.arenaPos++] = (byte) b;
+    }
+
+    /**
+     * Переносит накапливаемое значение в новый блок общей области. Прежний блок остается
+     * доступным через уже выданные срезы.
+     *
+     * @throws IOException Если значение превышает допустимый размер.
+     */
+    private void growArena() throws IOException {
+        int len = this.arenaPos - this.fieldStart;
+        if (len >= MAX_FIELD) {
+            throw new IOException("Поле формы превышает " + MAX_FIELD + " байт");
+        }
+        byte[] next = new byte[Math.max(ARENA_SIZE, Math.min(MAX_FIELD, len * 2))];
+        System.arraycopy(this.arena, this.fieldStart, next, 0, len);
+        this.arena = next;
+        this.fieldStart = 0;
+        this.arenaPos = len;
+    }
+
+    /**
+     * Завершает накапливаемое значение и возвращает его срез.
+     *
+     * @return Срез значения.
+     */
+    private FCGIByteSlice takeField() {
+        int len = this.arenaPos - this.fieldStart;
+        return len == 0 ? FCGIByteSlice.EMPTY : new FCGIByteSlice(this.arena, this.fieldStart, len);
+    }
+
+    /**
+     * Завершает накапливаемое значение как строку UTF-8 и освобождает его место в общей области.
+     *
+     * @return Строка.
+     */
+    private String arenaString() {
+        String s = new String(this.arena, this.fieldStart, this.arenaPos - this.fieldStart, StandardCharsets.UTF_8);
+        this.arenaPos = this.fieldStart;
+        return s;
+    }
+
+    /**
+     * Возвращает значение шестнадцатеричной цифры.
+     *
+     * @param c Символ.
+     * @return Значение или -1.
+     */
+    private static int hexValue(int c) {
+        return c >= '0' && c <= '9' ? c - '0'
+                : c >= 'a' && c <= 'f' ? c - 'a' + 10
+                : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+    }
+
+    /**
+     * Извлекает параметр заголовка вида {@code ; name="value"} или {@code ; name=value}.
+     *
+     * @param header Значение заголовка.
+     * @param name Имя параметра.
+     * @return Значение параметра или {@code null}.
+     */
+    static String parameter(String header, String name) {
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            int eq = header.indexOf('=', i);
+            if (eq < 0) {
+                return null;
+            }
+            String key = header.substring(i + 1, eq).trim();
+            int start = eq + 1;
+            String value;
+            int next;
+            if (start < header.length() && header.charAt(start) == '"') {
+                StringBuilder sb = new StringBuilder();
+                int j = start + 1;
+                while (j < header.length() && header.charAt(j) != '"') {
+                    char c = header.charAt(j);
+                    if (c == '\\' && j + 1 < header.length()) {
+                        c = header.charAt(++j);
+                    }
+                    sb.append(c);
+                    ++j;
+                }
+                value = sb.toString();
+                next = header.indexOf(';', j);
+            } else {
+                next = header.indexOf(';', start);
+                value = header.substring(start, next < 0 ? header.length() : next).trim();
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return value;
+            }
+            i = next;
+        }
+        return null;
+    }
+
+    /**
+     * Ограничивает тело длиной {@code CONTENT_LENGTH}, если она указана.
+     *
+     * @param body Тело запроса.
+     * @param contentLength Значение {@code CONTENT_LENGTH} или {@code null}.
+     * @return Ограниченный поток.
+     */
+    private static InputStream bounded(InputStream body, String contentLength) {
+        long length;
+        try {
+            length = contentLength == null || contentLength.isEmpty() ? -1 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            length = -1;
+        }
+        if (length < 0) {
+            return body;
+        }
+        long limit = length;
+        return new FilterInputStream(body) {
+            private long remaining = limit;
+
+            @Override
+            public int read() throws IOException {
+                if (this.remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    --this.remaining;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (this.remaining <= 0) {
+                    return -1;
+                }
+                int n = super.read(b, off, (int) Math.min(len, this.remaining));
+                if (n > 0) {
+                    this.remaining -= n;
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Поток данных одной части multipart: читает тело до следующего разделителя.
+     */
+    private class PartStream extends InputStream {
+
+        /** Флаг: разделитель достигнут и пропущен. */
+        boolean finished;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return this.read(one, 0, 1) == 1 ? one[0] & 255 : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.finished) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            FCGIFormReader r = FCGIFormReader.this;
+            byte[] delim = r.delimiter;
+            while (true) {
+                int found = indexOf(r.buf, r.pos, r.lim, delim);
+                if (found == r.pos) {
+                    r.pos += delim.length;
+                    this.finished = true;
+                    return -1;
+                }
+                int safe = found >= 0 ? found - r.pos : r.lim - r.pos - (delim.length - 1);
+                if (safe > 0) {
+                    int n = Math.min(len, safe);
+                    System.arraycopy(r.buf, r.pos, b, off, n);
+                    r.pos += n;
+                    return n;
+                }
+                if (!r.ensure(r.lim - r.pos + 1)) {
+                    throw new IOException("Неожиданный конец тела multipart");
+                }
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] scratch = new byte[4096];
+            long skipped = 0;
+            int count;
+            while (skipped < n && (count = this.read(scratch, 0, (int) Math.min(scratch.length, n - skipped))) != -1) {
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            // Остаток части пропускается или сохраняется при переходе к следующему полю
+        }
+    }
+
+    /**
+     * Ищет последовательность байт в буфере.
+     *
+     * @param a Буфер.
+     * @param from Начало поиска.
+     * @param to Конец данных.
+     * @param needle Искомая последовательность.
+     * @return Позиция начала или -1.
+     */
+    private static int indexOf(byte[] a, int from, int to, byte[] needle) {
+        byte first = needle[0];
+        int last = to - needle.length;
+        outer:
+        for (int i = from; i <= last; ++i) {
+            if (a[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < needle.length; ++j) {
+                if (a[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -24,6 +24,9 @@ public abstract class FCGIGlobalDefs {
     /** Длина тела сообщения неизвестного типа (8 байт). */
     public static final int def_FCGIUnknownBodyTypeBodyLen = 8;
 
+    /** Дескриптор слушающего сокета, передаваемого приложению менеджером процессов (стандартный ввод). */
+    public static final int def_FCGIListenSockFileno = 0;
+
     /** Версия протокола FastCGI, используется версия 1. */
     public static int def_FCGIVersion1 = 1;
 
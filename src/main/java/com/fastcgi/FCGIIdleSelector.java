@@ -0,0 +1,118 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Класс FCGIIdleSelector следит за соединениями, ожидающими следующего запроса, без выделения потока
+ * на каждое из них. Соединение временно переводится в неблокирующий режим и регистрируется в селекторе;
+ * как только в нем появляются данные, соединение возвращается в блокирующий режим и передается исполнителю.
+ */
+public class FCGIIdleSelector implements Runnable {
+
+    /**
+     * Соединение, ожидающее регистрации в селекторе.
+     *
+     * @param channel Канал соединения в неблокирующем режиме.
+     * @param onReadable Задача, выполняемая при появлении данных или закрытии соединения.
+     */
+    private record Park(SocketChannel channel, Runnable onReadable) {
+    }
+
+    /** Селектор, в котором зарегистрированы ожидающие соединения. */
+    private final Selector selector;
+
+    /** Соединения, ожидающие регистрации в селекторе. */
+    private final ConcurrentLinkedQueue<Park> pending = new ConcurrentLinkedQueue<>();
+
+    /** Исполнитель, которому передаются соединения с готовыми данными. */
+    private final Executor executor;
+
+    /**
+     * Конструктор класса FCGIIdleSelector. Поток селектора запускается методом {@link #start(Executor)}.
+     *
+     * @param executor Исполнитель, которому передаются соединения с готовыми данными.
+     * @throws IOException Если селектор не удалось открыть.
+     */
+    private FCGIIdleSelector(Executor executor) throws IOException {
+        this.selector = Selector.open();
+        this.executor = executor;
+    }
+
+    /**
+     * Создает селектор ожидающих соединений и запускает его поток.
+     *
+     * @param executor Исполнитель, которому передаются соединения с готовыми данными.
+     * @return Селектор ожидающих соединений.
+     * @throws IOException Если селектор не удалось открыть.
+     */
+    public static FCGIIdleSelector start(Executor executor) throws IOException {
+        FCGIIdleSelector idleSelector = new FCGIIdleSelector(executor);
+        Thread thread = new Thread(idleSelector, "fcgi-idle-selector");
+        thread.setDaemon(true);
+        thread.start();
+        return idleSelector;
+    }
+
+    /**
+     * Ставит соединение в ожидание данных. Когда данные появятся, задача {@code onReadable}
+     * будет выполнена исполнителем; соединение к этому моменту снова находится в блокирующем режиме.
+     *
+     * @param channel Канал соединения.
+     * @param onReadable Задача, выполняемая при появлении данных или закрытии соединения.
+     * @throws IOException Если канал не удалось перевести в неблокирующий режим.
+     */
+    public void park(SocketChannel channel, Runnable onReadable) throws IOException {
+        channel.configureBlocking(false);
+        this.pending.add(new Park(channel, onReadable));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Цикл селектора: регистрирует новые соединения и передает исполнителю соединения с готовыми данными.
+     */
+    public void run() {
+        List<SelectionKey> ready = new ArrayList<>();
+        while (this.selector.isOpen()) {
+            try {
+                Park entry;
+                while ((entry = this.pending.poll()) != null) {
+                    try {
+                        entry.channel().register(this.selector, SelectionKey.OP_READ, entry.onReadable());
+                    } catch (ClosedChannelException e) {
+                        // Соединение закрыто до регистрации: задача обнаружит это при чтении
+                        this.executor.execute(entry.onReadable());
+                    }
+                }
+
+                this.selector.select();
+                ready.addAll(this.selector.selectedKeys());
+                this.selector.selectedKeys().clear();
+                for (SelectionKey key : ready) {
+                    key.cancel();
+                }
+                // Снимаем отмененные ключи, иначе канал нельзя вернуть в блокирующий режим
+                this.selector.selectNow();
+
+                for (SelectionKey key : ready) {
+                    try {
+                        key.channel().configureBlocking(true);
+                    } catch (IOException e) {
+                        // Закрытое соединение: задача обнаружит это при чтении
+                    }
+                    this.executor.execute((Runnable) key.attachment());
+                }
+                ready.clear();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
@@ -59,6 +59,16 @@ public class FCGIInputStream extends InputStream {
     /** Входной поток данных, который передаётся FastCGI-сервером. */
     public InputStream in;
 
+    /**
+     * Максимальный объем непрочитанного тела запроса, который отбрасывается при завершении запроса,
+     * чтобы сохранить соединение keep-alive (свойство {@code FCGI_DRAIN_LIMIT}, по умолчанию 64 КБ).
+     * Если непрочитанных данных больше, соединение закрывается.
+     */
+    public static final long DRAIN_LIMIT = Long.getLong("FCGI_DRAIN_LIMIT", 65536);
+
+    /** Буфер заголовка записи, переиспользуемый методом {@link #fill()}. */
+    private final byte[] headerBuf = new byte[8];
+
     /**
      * Конструктор класса FCGIInputStream. Инициализирует входной поток с буфером заданного размера.
      *
@@ -116,7 +126,7 @@ public class FCGIInputStream extends InputStream {
      * @param b Массив байт для записи данных.
      * @param off Смещение, с которого начинается запись.
      * @param len Количество байт для чтения.
-     * @return Количество прочитанных байт.
+     * @return Количество прочитанных байт или -1, если достигнут конец потока.
      * @throws IOException Если произошла ошибка при чтении данных.
      */
     public int read(byte[] b, int off, int len) throws IOException {
@@ -143,7 +153,7 @@ public class FCGIInputStream extends InputStream {
                 }
 
                 if (this.isClosed) {
-                    return bytesMoved;
+                    return bytesMoved > 0 ? bytesMoved : -1;
                 }
 
                 this.fill();
@@ -158,7 +168,29 @@ public class FCGIInputStream extends InputStream {
      * @throws IOException Если произошла ошибка при чтении данных.
      */
     public void fill() throws IOException {
-        byte[] headerBuf = new byte[8];
+        // Тайм-аут тела ограничивает ожидание очередной порции stdin, а не чтение тела целиком:
+        // медленная загрузка, данные которой продолжают поступать, и обработчик, не запрашивающий
+        // данные (например, издатель Flow без спроса), соединение не закрывают
+        if (this.type != 5 || this.request.deadline != null || !FCGIReaper.isEnabled(FCGIReaper.PHASE_BODY)) {
+            this.fillRecords();
+            return;
+        }
+        FCGIReaper.start(this.request, FCGIReaper.PHASE_BODY);
+        try {
+            this.fillRecords();
+        } finally {
+            FCGIReaper.disarm(this.request);
+        }
+    }
+
+    /**
+     * Читает из входного потока FastCGI, пока в буфере не появятся данные текущего потока
+     * или поток не закончится.
+     *
+     * @throws IOException Если произошла ошибка при чтении данных.
+     */
+    private void fillRecords() throws IOException {
+        byte[] headerBuf = this.headerBuf;
         int headerLen = 0;
 
         while (true) {
@@ -166,6 +198,8 @@ public class FCGIInputStream extends InputStream {
             do {
                 while (true) {
                     if (this.rdNext == this.buffStop) {
+                        FCGIRecordReadEvent event = new FCGIRecordReadEvent();
+                        event.begin();
                         try {
                             count = this.in.read(this.buff, 0, this.buffLen);
                         } catch (IOException var6) {
@@ -173,12 +207,23 @@ public class FCGIInputStream extends InputStream {
                             this.setException(e);
                             return;
                         }
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.requestId = this.request.requestID;
+                            event.recordType = this.type;
+                            event.bytes = count;
+                            event.commit();
+                        }
 
-                        if (count == 0) {
+                        // Конец потока: веб-сервер закрыл соединение (например, неиспользуемое keep-alive соединение)
+                        if (count <= 0) {
                             this.setFCGIError(-3);
                             return;
                         }
 
+                        FCGIStats.add(FCGIStats.BYTES_IN, count);
+                        this.request.bytesIn += count;
+                        FCGICapture.record(this.request.connectionId, FCGICapture.IN, this.buff, 0, count);
                         this.rdNext = 0;
                         this.buffStop = count;
                     }
@@ -243,7 +288,7 @@ public class FCGIInputStream extends InputStream {
                     case 3:
                         break;
                     default:
-                        this.setFCGIError(status);
+                        this.protocolError(status);
                         return;
                 }
             }
@@ -251,19 +296,70 @@ public class FCGIInputStream extends InputStream {
     }
 
     /**
-     * Пропускает указанное количество байт в потоке.
+     * Пропускает указанное количество байт потока. Данные пропускаются на уровне записей FastCGI:
+     * заголовки и выравнивание разбираются как при чтении, а содержимое не копируется.
      *
      * @param n Количество байт для пропуска.
-     * @return Количество фактически пропущенных байт.
+     * @return Количество фактически пропущенных байт; меньше {@code n}, если поток закончился.
      * @throws IOException Если произошла ошибка при чтении данных.
      */
     public long skip(long n) throws IOException {
-        byte[] data = new byte[(int) n];
-        return (long) this.in.read(data);
+        long skipped = 0;
+        while (skipped < n) {
+            if (this.rdNext == this.stop) {
+                if (this.isClosed) {
+                    break;
+                }
+                this.fill();
+                continue;
+            }
+            int m = (int) Math.min(n - skipped, this.stop - this.rdNext);
+            this.rdNext += m;
+            skipped += m;
+        }
+        return skipped;
     }
 
     /**
-     * Устанавливает код ошибки FastCGI и закрывает поток.
+     * Отбрасывает непрочитанный остаток потока, если он не превышает {@code limit} байт.
+     * Используется при завершении запроса, тело которого обработчик не дочитал,
+     * чтобы соединение keep-alive осталось пригодным для следующего запроса.
+     *
+     * @param limit Максимальное количество отбрасываемых байт.
+     * @return Количество отброшенных байт или -1, если остаток больше {@code limit} и поток не дочитан.
+     * @throws IOException Если произошла ошибка при чтении данных.
+     */
+    public synchronized long drain(long limit) throws IOException {
+        long skipped = this.skip(limit);
+        if (this.rdNext == this.stop && !this.isClosed) {
+            // Лимит исчерпан ровно на границе данных: проверяем, не следует ли конец потока
+            this.fill();
+        }
+        return this.rdNext == this.stop && this.isClosed ? skipped : -1;
+    }
+
+    /**
+     * Учитывает ошибку протокола во входящих данных и закрывает поток с ее кодом.
+     * В отличие от {@link #setFCGIError(int)}, не используется для обычного конца потока.
+     *
+     * @param errnum Код ошибки.
+     */
+    void protocolError(int errnum) {
+        if (this.errno == 0) {
+            FCGIStats.add(FCGIStats.PROTOCOL_ERRORS, 1);
+            FCGIProtocolErrorEvent event = new FCGIProtocolErrorEvent();
+            if (event.shouldCommit()) {
+                event.requestId = this.request.requestID;
+                event.code = errnum;
+                event.recordType = this.type;
+                event.commit();
+            }
+        }
+        this.setFCGIError(errnum);
+    }
+
+    /**
+     * Устанавливает код ошибки FastCGI и закрывает поток. Данные, оставшиеся в буфере, больше не читаются.
      *
      * @param errnum Код ошибки.
      */
@@ -273,10 +369,12 @@ public class FCGIInputStream extends InputStream {
         }
 
         this.isClosed = true;
+        this.stop = this.rdNext;
     }
 
     /**
      * Устанавливает исключение, произошедшее при чтении данных, и закрывает поток.
+     * Данные, оставшиеся в буфере, больше не читаются.
      *
      * @param errexpt Исключение.
      */
@@ -286,6 +384,7 @@ public class FCGIInputStream extends InputStream {
         }
 
         this.isClosed = true;
+        this.stop = this.rdNext;
     }
 
     /**
@@ -322,6 +421,8 @@ public class FCGIInputStream extends InputStream {
 
     /**
      * Устанавливает тип потока для чтения (stdin, stdout, stderr).
+     * Данные, уже находящиеся в буфере, сохраняются, поэтому один поток может читать
+     * несколько последовательных запросов одного keep-alive соединения.
      *
      * @param streamType Тип потока.
      */
@@ -3,9 +3,17 @@ package com.fastcgi;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Класс FCGIInterface представляет интерфейс для работы с запросами FastCGI.
@@ -32,6 +40,18 @@ public class FCGIInterface {
     /** Сокет сервера для приема соединений FastCGI. */
     public static ServerSocket srvSocket;
 
+    /** Поток ответа текущего запроса: stdout запроса или стадия сжатия перед ним. */
+    private static OutputStream stdout;
+
+    /** Писатель ответа текущего запроса или {@code null}, если он еще не запрашивался. */
+    private static FCGIResponseWriter responseWriter;
+
+    /** Значение {@link FCGIAccounting#cpuTime()} в начале текущего запроса. */
+    private static long cpuMark;
+
+    /** Значение {@link FCGIAccounting#allocated()} в начале текущего запроса. */
+    private static long allocatedMark;
+
     /**
      * Конструктор по умолчанию.
      * Создает новый экземпляр интерфейса FastCGI, но не инициализирует подключение.
@@ -42,6 +62,8 @@ public class FCGIInterface {
     /**
      * Принимает и обрабатывает соединения FastCGI. Этот метод инициализирует сокет сервера
      * и настраивает потоки ввода/вывода для взаимодействия с клиентами FastCGI.
+     * Если свойство {@code FCGI_PORT} не задано, используется слушающий сокет,
+     * унаследованный через {@link System#inheritedChannel()}.
      *
      * @return 0 — если соединение успешно обработано, -1 — если произошла ошибка.
      */
@@ -50,28 +72,8 @@ public class FCGIInterface {
 
         // Проверяем, был ли уже вызван accept
         if (!acceptCalled) {
-            isFCGI = System.getProperties().containsKey("FCGI_PORT");
-            acceptCalled = true;
-
-            // Если это FastCGI соединение, создаем серверный сокет
-            if (isFCGI) {
-                startupProps = new Properties(System.getProperties());
-                String portStr = System.getProperty("FCGI_PORT");
-                if (portStr.length() <= 0) {
-                    return -1;
-                }
-
-                int portNum = Integer.parseInt(portStr);
-                try {
-                    srvSocket = new ServerSocket(portNum);
-                } catch (IOException e) {
-                    if (request != null) {
-                        request.socket = null;
-                    }
-                    srvSocket = null;
-                    request = null;
-                    return -1;
-                }
+            if (!openListener()) {
+                return -1;
             }
         } else if (!isFCGI) {
             return -1;
@@ -91,7 +93,9 @@ public class FCGIInterface {
 
             // Настраиваем стандартные потоки ввода/вывода для работы с запросом FastCGI
             System.setIn(new BufferedInputStream(request.inStream, 8192));
-            System.setOut(new PrintStream(new BufferedOutputStream(request.outStream, 8192)));
+            // Поток stdout сам буферизует данные в записи FastCGI, дополнительный буфер нужен только перед сжатием
+            stdout = FCGICompressingOutputStream.wrap(request.outStream, request.params);
+            System.setOut(new PrintStream(stdout == request.outStream ? stdout : new BufferedOutputStream(stdout, 8192)));
             System.setErr(new PrintStream(new BufferedOutputStream(request.errStream, 512)));
             System.setProperties(request.params);
         }
@@ -99,6 +103,261 @@ public class FCGIInterface {
         return 0;
     }
 
+    /**
+     * Обслуживает соединения FastCGI асинхронно: запросы читаются пулом потоков,
+     * а ответы отправляются по завершении {@link java.util.concurrent.CompletableFuture},
+     * возвращенного обработчиком. Метод не возвращает управление, пока слушающий сокет открыт.
+     * Размер пула задается свойством {@code FCGI_THREADS}; без него используется пул,
+     * расширяющийся по мере необходимости. Если задано свойство {@code FCGI_PRIORITY_RULES},
+     * обработчик вызывается потоками {@link FCGIScheduler} (их число задается {@code FCGI_SCHEDULER_THREADS}).
+     * Дополнительные слушающие сокеты с собственными пулами потоков задаются свойством {@code FCGI_LISTENERS}
+     * (см. {@link FCGIListener}); оно может использоваться и без {@code FCGI_PORT}. Свойство {@code FCGI_COALESCE_KEYS}
+     * включает объединение одинаковых одновременных запросов {@link FCGICoalescer}.
+     *
+     * @param handler Асинхронный обработчик запросов.
+     * @return -1 — если сокет не удалось открыть или произошла ошибка при приеме соединений.
+     * @throws IllegalArgumentException Если {@code FCGI_LISTENERS} или {@code FCGI_PRIORITY_RULES} содержит некорректный элемент.
+     */
+    public int FCGIserve(FCGIAsyncHandler handler) {
+        return serveAll(handler, null);
+    }
+
+    /**
+     * Обслуживает соединения FastCGI потоковым обработчиком: тело запроса и ответ передаются
+     * по частям через {@link java.util.concurrent.Flow}. В остальном аналогичен {@link #FCGIserve(FCGIAsyncHandler)}.
+     *
+     * @param handler Потоковый обработчик запросов.
+     * @return -1 — если сокет не удалось открыть или произошла ошибка при приеме соединений.
+     * @throws IllegalArgumentException Если {@code FCGI_LISTENERS} или {@code FCGI_PRIORITY_RULES} содержит некорректный элемент.
+     */
+    public int FCGIserveStream(FCGIStreamHandler handler) {
+        return serveAll(null, handler);
+    }
+
+    /**
+     * Открывает основной слушающий сокет и слушающие сокеты {@code FCGI_LISTENERS} и обслуживает их,
+     * каждый — в собственном потоке приема и собственным пулом потоков.
+     *
+     * @param handler Асинхронный обработчик запросов или {@code null}.
+     * @param streamHandler Потоковый обработчик запросов, если асинхронный равен {@code null}.
+     * @return -1 — если сокеты не удалось открыть или произошла ошибка при приеме соединений.
+     * @throws IllegalArgumentException Если {@code FCGI_LISTENERS} или {@code FCGI_PRIORITY_RULES} содержит некорректный элемент.
+     */
+    private static int serveAll(FCGIAsyncHandler handler, FCGIStreamHandler streamHandler) {
+        List<FCGIListener> listeners = FCGIListener.parse(System.getProperty("FCGI_LISTENERS"));
+        handler = FCGICoalescer.wrap(handler, System.getProperty("FCGI_COALESCE_KEYS"));
+        if (!acceptCalled) {
+            if (!openListener()) {
+                return -1;
+            }
+        }
+        if (!isFCGI && listeners.isEmpty()) {
+            return -1;
+        }
+
+        List<FCGIServer> servers = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        if (isFCGI) {
+            servers.add(new FCGIServer(srvSocket, FCGIServer.newWorkerPool(System.getProperty("FCGI_THREADS")), handler));
+            names.add("main");
+        }
+        try {
+            for (FCGIListener listener : listeners) {
+                servers.add(listener.newServer(handler));
+                names.add(listener.name);
+            }
+            // Каждый слушающий сокет получает собственный планировщик, как и собственный пул потоков
+            String rules = System.getProperty("FCGI_PRIORITY_RULES");
+            if (rules != null) {
+                for (FCGIServer server : servers) {
+                    server.scheduler = new FCGIScheduler(rules);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            for (int i = isFCGI ? 1 : 0; i < servers.size(); ++i) {
+                try {
+                    servers.get(i).srvSocket.close();
+                } catch (IOException ignored) {
+                    // Сокет уже закрыт
+                }
+                servers.get(i).workers.shutdown();
+            }
+            if (e instanceof IllegalArgumentException invalid) {
+                throw invalid;
+            }
+            return -1;
+        }
+        if (startupProps == null) {
+            startupProps = new Properties(System.getProperties());
+        }
+        for (FCGIServer server : servers) {
+            server.streamHandler = streamHandler;
+        }
+        if (servers.size() == 1) {
+            return serve(servers.get(0));
+        }
+
+        // Каждый слушающий сокет принимает соединения в своем потоке; ошибка одного не останавливает остальные
+        AtomicInteger result = new AtomicInteger();
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 0; i < servers.size(); ++i) {
+            FCGIServer server = servers.get(i);
+            Thread acceptor = new Thread(() -> {
+                if (serve(server) < 0) {
+                    result.set(-1);
+                }
+            }, "fcgi-acceptor-" + names.get(i));
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        try {
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return result.get();
+    }
+
+    /**
+     * Запускает цикл приема соединений сервера.
+     *
+     * @param server Сервер со своим слушающим сокетом и пулом потоков.
+     * @return -1 — если произошла ошибка при приеме соединений.
+     */
+    private static int serve(FCGIServer server) {
+        server.startupProps = startupProps;
+        if (server.scheduler != null) {
+            server.scheduler.start(Integer.getInteger("FCGI_SCHEDULER_THREADS", Runtime.getRuntime().availableProcessors()));
+        }
+        try {
+            server.serve();
+        } catch (IOException e) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Открывает слушающий сокет при первом вызове {@link #FCGIaccept()} или {@link #FCGIserve(FCGIAsyncHandler)}.
+     * Если свойство {@code FCGI_PORT} не задано, используется слушающий сокет,
+     * унаследованный через {@link System#inheritedChannel()}; если нет и его, приложение работает как CGI.
+     * Если включен прогрев {@link FCGIWarmup}, первые соединения обслуживаются в памяти.
+     *
+     * @return {@code false}, если задан некорректный порт или сокет не удалось открыть.
+     */
+    private static boolean openListener() {
+        isFCGI = System.getProperties().containsKey("FCGI_PORT");
+        acceptCalled = true;
+
+        // Если это FastCGI соединение, создаем серверный сокет
+        if (isFCGI) {
+            startupProps = new Properties(System.getProperties());
+            String portStr = System.getProperty("FCGI_PORT");
+            if (portStr.length() <= 0) {
+                return false;
+            }
+
+            int portNum = Integer.parseInt(portStr);
+            try {
+                // Сокет открывается через канал, чтобы принятые соединения поддерживали ожидание в селекторе.
+                // При включенном прогреве сокет открывается только после него
+                srvSocket = FCGIWarmup.wrap(() -> ServerSocketChannel.open().bind(new InetSocketAddress(portNum)).socket());
+            } catch (IOException e) {
+                if (request != null) {
+                    request.socket = null;
+                }
+                srvSocket = null;
+                request = null;
+                return false;
+            }
+        } else {
+            // Без FCGI_PORT пробуем слушающий сокет, унаследованный от менеджера процессов (spawn-fcgi и т.п.)
+            ServerSocket inherited = inheritedServerSocket();
+            isFCGI = inherited != null;
+            if (isFCGI) {
+                startupProps = new Properties(System.getProperties());
+                try {
+                    srvSocket = FCGIWarmup.wrap(() -> inherited);
+                } catch (IOException e) {
+                    srvSocket = inherited;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Возвращает слушающий сокет, переданный процессу менеджером процессов как дескриптор
+     * {@link FCGIGlobalDefs#def_FCGIListenSockFileno} (стандартный ввод).
+     * Несколько JVM-воркеров, запущенных с одним и тем же сокетом, принимают соединения из общей очереди,
+     * что позволяет запускать новое поколение воркеров до остановки старого. Сокет Unix
+     * ({@code spawn-fcgi -s}, сокеты supervisord) оборачивается в {@link FCGIUnixServerSocket},
+     * который не удаляет файл сокета менеджера.
+     *
+     * @return Слушающий сокет или {@code null}, если унаследованный канал отсутствует или не является
+     *         слушающим сокетом TCP или Unix.
+     */
+    static ServerSocket inheritedServerSocket() {
+        try {
+            Channel channel = System.inheritedChannel();
+            if (channel instanceof ServerSocketChannel serverChannel) {
+                serverChannel.configureBlocking(true);
+                if (serverChannel.getLocalAddress() instanceof UnixDomainSocketAddress) {
+                    return new FCGIUnixServerSocket(serverChannel);
+                }
+                return serverChannel.socket();
+            }
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            // Канал недоступен или не поддерживает потоковый API сокетов
+        }
+        return null;
+    }
+
+    /**
+     * Возвращает писатель ответа текущего запроса {@link #FCGIaccept()}. Данные, уже записанные
+     * в {@code System.out}, отправляются в ответ перед данными писателя.
+     *
+     * @return Писатель ответа или {@code null}, если запрос не принят.
+     */
+    public static FCGIResponseWriter getResponseWriter() {
+        if (responseWriter == null && stdout != null && request != null) {
+            System.out.flush();
+            responseWriter = new FCGIResponseWriter(stdout);
+        }
+        return responseWriter;
+    }
+
+    /**
+     * Завершает без передачи приложению запрос, превысивший ограничение {@link FCGIRateLimiter} (ответом
+     * {@link FCGIRateLimiter#RESPONSE}) или поступивший при исчерпанном {@link FCGIMemoryBudget} (статусом FCGI_OVERLOAD).
+     *
+     * @param request Начатый запрос.
+     * @param limited {@code true} — ограничение частоты, {@code false} — исчерпание бюджета памяти.
+     * @return {@code true}, если соединение можно использовать для следующего запроса.
+     */
+    private static boolean rejectRequest(FCGIRequest request, boolean limited) {
+        try {
+            if (limited) {
+                request.outStream.write(FCGIRateLimiter.RESPONSE);
+            } else {
+                request.protocolStatus = FCGIGlobalDefs.def_FCGIOverload;
+                FCGIStats.add(FCGIStats.OVERLOADED, 1);
+            }
+            boolean drained = !request.keepConnection || request.inStream.isClosed
+                    || request.inStream.drain(FCGIInputStream.DRAIN_LIMIT) >= 0;
+            request.errStream.close();
+            request.outStream.close();
+            FCGIAccounting.finish(request, cpuMark, allocatedMark);
+            return drained && request.keepConnection && request.outStream.getException() == null
+                    && request.inStream.getFCGIError() == 0 && request.inStream.getException() == null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Вспомогательный метод для приема и обработки нового соединения FastCGI.
      * Настраивает сокет, инициализирует входной и выходной потоки и проверяет, был ли запрос завершен.
@@ -112,19 +371,39 @@ public class FCGIInterface {
 
         // Закрываем предыдущий запрос, если он существует
         if (request != null) {
+            // Непрочитанный остаток тела отбрасывается до записи EndRequest, чтобы сохранить соединение
+            boolean drained = true;
+            if (request.keepConnection && !request.inStream.isClosed) {
+                try {
+                    drained = request.inStream.drain(FCGIInputStream.DRAIN_LIMIT) >= 0;
+                } catch (IOException e) {
+                    drained = false;
+                }
+            }
+            FCGIReaper.disarm(request);
+            if (responseWriter != null) {
+                try {
+                    responseWriter.finish();
+                } catch (IOException e) {
+                    outCloseEx = true;
+                }
+                responseWriter = null;
+            }
             System.err.close();
             System.out.close();
+            FCGIAccounting.finish(request, cpuMark, allocatedMark);
 
             boolean prevRequestFailed = errCloseEx || outCloseEx || request.inStream.getFCGIError() != 0 || request.inStream.getException() != null;
-            if (prevRequestFailed || !request.keepConnection) {
+            // Ошибка чтения предыдущего запроса затрагивает только его соединение: оно закрывается,
+            // и принимается следующее
+            if (prevRequestFailed || !request.keepConnection || !drained) {
+                FCGIStats.requestFinished(request, false);
+                FCGIRequestEvent.end(request, false);
+                FCGICapture.closed(request);
+                FCGIMemoryBudget.releaseConnection(request);
                 request.socket.close();
                 request.socket = null;
             }
-
-            if (prevRequestFailed) {
-                request = null;
-                return -1;
-            }
         } else {
             // Инициализируем новый запрос
             request = new FCGIRequest();
@@ -138,7 +417,10 @@ public class FCGIInterface {
         do {
             if (request.socket == null) {
                 try {
+                    FCGIMemoryBudget.awaitAvailable();
                     request.socket = srvSocket.accept();
+                    FCGIStats.add(FCGIStats.CONNECTIONS, 1);
+                    FCGIFlushPolicy.DEFAULT.applyTo(request.socket);
                 } catch (IOException e) {
                     request.socket = null;
                     request = null;
@@ -147,42 +429,109 @@ public class FCGIInterface {
                 isNewConnection = true;
             }
 
-            // Читаем данные из входного потока
-            request.isBeginProcessed = false;
-            request.inStream = new FCGIInputStream(request.socket.getInputStream(), 8192, 0, request);
-            request.inStream.fill();
-
-            if (request.isBeginProcessed) {
-                // Инициализируем параметры запроса
-                request.params = new Properties(startupProps);
-                switch (request.role) {
-                    case 1 -> request.params.put("ROLE", "RESPONDER");
-                    case 2 -> request.params.put("ROLE", "AUTHORIZER");
-                    case 3 -> request.params.put("ROLE", "FILTER");
-                    default -> {
-                        return -1;
-                    }
-                }
-
-                // Чтение параметров запроса
-                request.inStream.setReaderType(4);
-                if ((new FCGIMessage(request.inStream)).readParams(request.params) < 0) {
-                    return -1;
-                }
-
-                // Настройка потоков вывода и ошибок
-                request.inStream.setReaderType(5);
-                request.outStream = new FCGIOutputStream(request.socket.getOutputStream(), 8192, 6, request);
-                request.errStream = new FCGIOutputStream(request.socket.getOutputStream(), 512, 7, request);
-                request.numWriters = 2;
+            cpuMark = FCGIAccounting.cpuTime();
+            allocatedMark = FCGIAccounting.allocated();
+            int begun = beginRequest(request, isNewConnection, startupProps);
+            if (begun == 0) {
                 return 0;
             }
+            if ((begun == 2 || begun == 3) && rejectRequest(request, begun == 2)) {
+                isNewConnection = false;
+                continue;
+            }
 
-            // Закрытие сокета, если запрос не завершен
+            // Закрытие сокета, если запрос не начат или прочитан с ошибкой (в том числе соединения,
+            // закрытого FCGIReaper), и прием следующего соединения
+            FCGICapture.closed(request);
+            FCGIMemoryBudget.releaseConnection(request);
             request.socket.close();
             request.socket = null;
-        } while (!isNewConnection);
+        } while (true);
+    }
+
+    /**
+     * Читает начало очередного запроса с сокета {@code request.socket}: запись BeginRequest и параметры.
+     * После успешного чтения поток {@code request.inStream} установлен на чтение stdin,
+     * а потоки stdout и stderr созданы.
+     *
+     * @param request Запрос, сокет которого уже подключен.
+     * @param isNewConnection {@code true}, если соединение только что принято.
+     * @param defaults Параметры по умолчанию для нового запроса.
+     * @return 0 — запрос начат, 1 — в соединении нет нового запроса, 2 — запрос начат, но превышает ограничение
+     *         {@link FCGIRateLimiter} и должен быть завершен ответом {@link FCGIRateLimiter#RESPONSE}
+     *         без вызова обработчика, 3 — запрос начат, но бюджет {@link FCGIMemoryBudget} исчерпан и запрос
+     *         должен быть завершен со статусом FCGI_OVERLOAD, -1 — если произошла ошибка.
+     * @throws IOException Если произошла ошибка при чтении данных.
+     */
+    static int beginRequest(FCGIRequest request, boolean isNewConnection, Properties defaults) throws IOException {
+        // Читаем данные из входного потока. Поток живет столько же, сколько соединение:
+        // байты следующего запроса, уже прочитанные в буфер, не теряются между запросами
+        request.isBeginProcessed = false;
+        request.bytesIn = 0;
+        request.bytesOut = 0;
+        if (isNewConnection || request.inStream == null) {
+            request.connectionId = FCGICapture.nextConnectionId();
+            request.inStream = new FCGIInputStream(request.socket.getInputStream(), request.bufferSize, 0, request);
+            FCGIMemoryBudget.reserveConnection(request, request.bufferSize);
+            request.writer = new FCGIConnectionWriter(request.socket, request.connectionId);
+        } else {
+            request.inStream.setReaderType(0);
+        }
+        FCGIReaper.start(request, isNewConnection ? FCGIReaper.PHASE_HEADER : FCGIReaper.PHASE_IDLE);
+        try {
+            request.inStream.fill();
+        } finally {
+            FCGIReaper.disarm(request);
+        }
+
+        if (!request.isBeginProcessed) {
+            return 1;
+        }
+        FCGIRequestEvent.begin(request);
+
+        // Инициализируем параметры запроса
+        request.appStatus = 0;
+        request.protocolStatus = FCGIGlobalDefs.def_FCGIRequestComplete;
+        request.cpuNanos = 0;
+        request.allocatedBytes = 0;
+        request.params = new Properties(defaults);
+        switch (request.role) {
+            case 1 -> request.params.put("ROLE", "RESPONDER");
+            case 2 -> request.params.put("ROLE", "AUTHORIZER");
+            case 3 -> request.params.put("ROLE", "FILTER");
+            default -> {
+                return -1;
+            }
+        }
+
+        // Чтение параметров запроса. Если бюджет уже исчерпан, запрос отклоняется без выделения памяти
+        // под параметры: они пропускаются на уровне записей, как непрочитанное тело
+        request.inStream.setReaderType(4);
+        boolean overloaded = FCGIMemoryBudget.isExhausted();
+        FCGIReaper.start(request, FCGIReaper.PHASE_PARAMS);
+        try {
+            // Параметры, оборванные закрытием соединения, также считаются ошибкой
+            int status = overloaded
+                    ? (request.inStream.drain(FCGIMessage.MAX_PARAMS) < 0 ? -1 : 0)
+                    : (new FCGIMessage(request.inStream)).readParams(request.params, request);
+            if (status < 0 || request.inStream.getFCGIError() != 0 || request.inStream.getException() != null) {
+                return -1;
+            }
+        } finally {
+            FCGIReaper.disarm(request);
+        }
+        // Запросы прогрева должны проходить путь обработчика, а не отказа, и не расходуют ограничение клиентов
+        boolean limited = !overloaded && !(request.socket instanceof FCGIMemorySocket) && !FCGIRateLimiter.tryAcquire(request.params);
+        // Память параметров учтена при чтении; бюджет проверяется еще раз для решения о приеме запроса
+        overloaded = overloaded || FCGIMemoryBudget.isExhausted();
 
-        return -1;
+        // Настройка потоков вывода и ошибок
+        request.inStream.setReaderType(5);
+        FCGIMemoryBudget.reserve(request, 2L * request.bufferSize);
+        request.outStream = new FCGIOutputStream(request.writer, request.bufferSize, 6, request);
+        request.errStream = FCGIStderrLog.newErrStream(request.writer, request);
+        request.numWriters = 2;
+        FCGIStats.requestStarted(request);
+        return overloaded ? 3 : limited ? 2 : 0;
     }
 }
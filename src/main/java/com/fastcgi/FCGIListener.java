@@ -0,0 +1,160 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Класс FCGIListener описывает дополнительный слушающий сокет {@link FCGIInterface#FCGIserve(FCGIAsyncHandler)}
+ * с собственным потоком приема, пулом потоков, ограничением очереди и размерами буферов. Каждый слушающий
+ * сокет обслуживается отдельным {@link FCGIServer}, поэтому всплеск запросов от одного upstream веб-сервера
+ * не занимает потоки, отведенные другим: например, публичный трафик, административные вызовы
+ * и запросы AUTHORIZER можно принимать на разных сокетах.
+ * <p>
+ * Слушающие сокеты задаются свойством {@code FCGI_LISTENERS} в виде списка через запятую. Каждый элемент —
+ * адрес и параметры {@code имя=значение} через пробел, например
+ * {@code FCGI_LISTENERS=9001 threads=32 queue=256, unix:/run/app/admin.sock name=admin threads=2 queue=16}.
+ * Адрес — порт, {@code хост:порт} или {@code unix:путь} для сокета Unix. Параметры:
+ * <ul>
+ *     <li>{@code name} — имя для потоков слушающего сокета (по умолчанию {@code listener<номер>});</li>
+ *     <li>{@code threads} — число потоков пула (по умолчанию пул расширяется по мере необходимости);</li>
+ *     <li>{@code queue} — {@link FCGIServer#queueLimit};</li>
+ *     <li>{@code backlog} — длина очереди входящих соединений сокета;</li>
+ *     <li>{@code buffer} — {@link FCGIServer#bufferSize};</li>
+ *     <li>{@code rcvbuf} и {@code sndbuf} — размеры буферов сокета принятых соединений.</li>
+ * </ul>
+ */
+public class FCGIListener {
+
+    /** Префикс адреса сокета Unix. */
+    public static final String UNIX_PREFIX = "unix:";
+
+    /** Имя слушающего сокета. */
+    public String name;
+
+    /** Адрес: порт, {@code хост:порт} или {@code unix:путь}. */
+    public final String address;
+
+    /** Число потоков пула; 0 — пул, расширяющийся по мере необходимости. */
+    public int threads;
+
+    /** Ограничение очереди пула {@link FCGIServer#queueLimit}; 0 — без ограничения. */
+    public int queueLimit;
+
+    /** Длина очереди входящих соединений сокета; 0 — значение по умолчанию. */
+    public int backlog;
+
+    /** Размер буферов записей {@link FCGIServer#bufferSize}. */
+    public int bufferSize = 8192;
+
+    /** Размер приемного буфера сокета; 0 — значение по умолчанию. */
+    public int receiveBufferSize;
+
+    /** Размер буфера отправки сокета; 0 — значение по умолчанию. */
+    public int sendBufferSize;
+
+    /**
+     * Конструктор класса FCGIListener.
+     *
+     * @param name Имя слушающего сокета.
+     * @param address Адрес: порт, {@code хост:порт} или {@code unix:путь}.
+     */
+    public FCGIListener(String name, String address) {
+        this.name = name;
+        this.address = address;
+    }
+
+    /**
+     * Разбирает список слушающих сокетов в формате {@code FCGI_LISTENERS}.
+     *
+     * @param spec Значение свойства или {@code null}.
+     * @return Слушающие сокеты; пустой список, если свойство не задано.
+     * @throws IllegalArgumentException Если элемент списка содержит неизвестный параметр или некорректное значение.
+     */
+    public static List<FCGIListener> parse(String spec) {
+        List<FCGIListener> listeners = new ArrayList<>();
+        if (spec == null || spec.isBlank()) {
+            return listeners;
+        }
+        for (String item : spec.split(",")) {
+            String[] tokens = item.trim().split("\\s+");
+            if (tokens[0].isEmpty()) {
+                continue;
+            }
+            FCGIListener listener = new FCGIListener("listener" + (listeners.size() + 1), tokens[0]);
+            for (int i = 1; i < tokens.length; ++i) {
+                int eq = tokens[i].indexOf('=');
+                String key = eq > 0 ? tokens[i].substring(0, eq) : tokens[i];
+                String value = eq > 0 ? tokens[i].substring(eq + 1) : "";
+                try {
+                    switch (key) {
+                        case "name" -> listener.name = value;
+                        case "threads" -> listener.threads = Integer.parseInt(value);
+                        case "queue" -> listener.queueLimit = Integer.parseInt(value);
+                        case "backlog" -> listener.backlog = Integer.parseInt(value);
+                        case "buffer" -> listener.bufferSize = Integer.parseInt(value);
+                        case "rcvbuf" -> listener.receiveBufferSize = Integer.parseInt(value);
+                        case "sndbuf" -> listener.sendBufferSize = Integer.parseInt(value);
+                        default -> throw new IllegalArgumentException("Неизвестный параметр слушающего сокета: " + tokens[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Некорректное значение параметра слушающего сокета: " + tokens[i], e);
+                }
+            }
+            listeners.add(listener);
+        }
+        return listeners;
+    }
+
+    /**
+     * Открывает слушающий сокет. Сокет TCP открывается через канал, чтобы принятые соединения
+     * поддерживали ожидание в селекторе.
+     *
+     * @return Слушающий сокет.
+     * @throws IOException Если сокет не удалось открыть.
+     */
+    public ServerSocket open() throws IOException {
+        if (this.address.startsWith(UNIX_PREFIX)) {
+            return new FCGIUnixServerSocket(Paths.get(this.address.substring(UNIX_PREFIX.length())), this.backlog);
+        }
+
+        int colon = this.address.lastIndexOf(':');
+        InetSocketAddress bindAddress = colon < 0
+                ? new InetSocketAddress(Integer.parseInt(this.address))
+                : new InetSocketAddress(this.address.substring(0, colon), Integer.parseInt(this.address.substring(colon + 1)));
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            // Приемный буфер задается до привязки, чтобы он учитывался при согласовании окна TCP
+            if (this.receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, this.receiveBufferSize);
+            }
+            channel.bind(bindAddress, this.backlog);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    /**
+     * Открывает слушающий сокет и создает сервер с собственным пулом потоков.
+     *
+     * @param handler Асинхронный обработчик запросов или {@code null}, если серверу будет задан потоковый обработчик.
+     * @return Сервер, готовый к вызову {@link FCGIServer#serve()}.
+     * @throws IOException Если сокет не удалось открыть.
+     */
+    public FCGIServer newServer(FCGIAsyncHandler handler) throws IOException {
+        FCGIServer server = new FCGIServer(this.open(),
+                FCGIServer.newWorkerPool(this.threads > 0 ? Integer.toString(this.threads) : null, "fcgi-" + this.name + "-worker-"), handler);
+        server.queueLimit = this.queueLimit;
+        server.bufferSize = this.bufferSize;
+        server.receiveBufferSize = this.receiveBufferSize;
+        server.sendBufferSize = this.sendBufferSize;
+        return server;
+    }
+}
@@ -0,0 +1,100 @@
+package com.fastcgi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Класс FCGILogRing — ограниченное кольцо фрагментов журнала без блокировок.
+ * Фрагменты добавляют потоки обработчиков, забирает один фоновый поток записи.
+ * Каждая ячейка кольца хранит порядковый номер, по которому производитель и потребитель
+ * определяют, свободна ли ячейка; захват ячейки выполняется одной операцией CAS.
+ * <p>
+ * Если кольцо заполнено, фрагмент отбрасывается и учитывается в счетчике {@link #getDropped()}:
+ * запись в журнал никогда не задерживает формирование ответа.
+ */
+public class FCGILogRing {
+
+    /** Маска индекса ячейки (емкость кольца — степень двойки). */
+    private final int mask;
+
+    /** Фрагменты в ячейках кольца. */
+    private final AtomicReferenceArray<byte[]> slots;
+
+    /** Порядковые номера ячеек. */
+    private final AtomicLongArray sequences;
+
+    /** Позиция следующей записи. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Позиция следующего чтения; изменяется только потребителем. */
+    private long head;
+
+    /** Количество отброшенных фрагментов. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Конструктор класса FCGILogRing.
+     *
+     * @param capacity Минимальное количество ячеек; округляется вверх до степени двойки.
+     */
+    public FCGILogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Добавляет фрагмент в кольцо. Может вызываться из любого потока.
+     *
+     * @param chunk Фрагмент журнала; после вызова не должен изменяться.
+     * @return {@code true}, если фрагмент добавлен; {@code false}, если кольцо заполнено и фрагмент отброшен.
+     */
+    public boolean offer(byte[] chunk) {
+        while (true) {
+            long pos = this.tail.get();
+            int index = (int) pos & this.mask;
+            long diff = this.sequences.get(index) - pos;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(pos, pos + 1)) {
+                    this.slots.set(index, chunk);
+                    this.sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                this.dropped.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Забирает следующий фрагмент. Вызывается только потоком-потребителем.
+     *
+     * @return Фрагмент или {@code null}, если кольцо пусто.
+     */
+    public byte[] poll() {
+        int index = (int) this.head & this.mask;
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+        byte[] chunk = this.slots.get(index);
+        this.slots.set(index, null);
+        this.sequences.set(index, this.head + this.mask + 1);
+        ++this.head;
+        return chunk;
+    }
+
+    /**
+     * Возвращает количество фрагментов, отброшенных из-за заполнения кольца.
+     *
+     * @return Количество фрагментов.
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+}
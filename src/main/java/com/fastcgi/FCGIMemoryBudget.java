@@ -0,0 +1,295 @@
+package com.fastcgi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс FCGIMemoryBudget ограничивает общий объем памяти, занятой данными запросов: буферами записей
+ * {@link FCGIInputStream} и {@link FCGIOutputStream}, параметрами, телами запросов, которые
+ * {@link FCGIServer} читает целиком для асинхронного обработчика, ответами, отложенными в
+ * {@link FCGIConnectionWriter}, буферами {@link FCGIStderrStream} и частями форм {@link FCGIFormReader},
+ * сохраняемыми в памяти. Буферы библиотеки учитываются до выделения. Бюджет задается свойством
+ * {@code FCGI_MEMORY_BUDGET} в байтах; без него учет выключен.
+ * <p>
+ * Буферы, без которых запрос нельзя прочитать, учитываются всегда, даже сверх бюджета. Буферы чтения соединений
+ * учитываются в {@link FCGIStats#MEMORY_USED}, но не в бюджете: они занимают память и между запросами, и простаивающие
+ * соединения keep-alive, которые веб-сервер держит открытыми, иначе могли бы исчерпать бюджет без единого запроса,
+ * и освободить его было бы некому. Когда бюджет исчерпан:
+ * <ul>
+ *     <li>потоки приема не принимают новые соединения, пока память не освободится;</li>
+ *     <li>новые запросы завершаются записью EndRequest со статусом {@link FCGIGlobalDefs#def_FCGIOverload}
+ *     без вызова обработчика;</li>
+ *     <li>тело запроса читается, только если для него удалось выделить память в течение
+ *     {@code FCGI_MEMORY_WAIT} миллисекунд (по умолчанию 100), иначе запрос также завершается с FCGI_OVERLOAD;
+ *     тело без CONTENT_LENGTH или длиннее него учитывается по блокам до чтения каждого блока;</li>
+ *     <li>отложенный ответ и буфер stderr перестают расти, и данные отправляются веб-серверу сразу;</li>
+ *     <li>части форм сохраняются сразу во временный файл.</li>
+ * </ul>
+ * Текущий объем учтенной памяти публикуется в {@link FCGIStats#MEMORY_USED}. Потоки, ожидающие памяти,
+ * пробуждаются при ее возврате в бюджет.
+ */
+public class FCGIMemoryBudget {
+
+    /** Бюджет в байтах; 0 — учет выключен. */
+    private static final long LIMIT = Math.max(0, Long.getLong("FCGI_MEMORY_BUDGET", 0));
+
+    /** Флаг учета памяти. */
+    public static final boolean ENABLED = LIMIT > 0;
+
+    /** Время ожидания памяти для тела запроса в наносекундах. */
+    private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("FCGI_MEMORY_WAIT", 100));
+
+    /** Объем памяти запросов в байтах, проверяемый по бюджету. */
+    private static final AtomicLong used = new AtomicLong();
+
+    /** Объем буферов чтения соединений в байтах; не проверяется по бюджету. */
+    private static final AtomicLong connectionsUsed = new AtomicLong();
+
+    /** Монитор, на котором потоки ждут возврата памяти в бюджет. */
+    private static final Object released = new Object();
+
+    /** Количество потоков, ожидающих памяти. */
+    private static final AtomicInteger waiters = new AtomicInteger();
+
+    private FCGIMemoryBudget() {
+    }
+
+    /**
+     * Возвращает учтенный объем памяти, включая буферы чтения соединений.
+     *
+     * @return Объем в байтах.
+     */
+    public static long getUsed() {
+        return used.get() + connectionsUsed.get();
+    }
+
+    /**
+     * Возвращает объем буферов чтения соединений, не проверяемый по бюджету.
+     *
+     * @return Объем в байтах.
+     */
+    public static long getConnectionUsed() {
+        return connectionsUsed.get();
+    }
+
+    /**
+     * Возвращает бюджет.
+     *
+     * @return Бюджет в байтах; 0, если учет выключен.
+     */
+    public static long getLimit() {
+        return LIMIT;
+    }
+
+    /**
+     * Проверяет, исчерпан ли бюджет.
+     *
+     * @return {@code true}, если объем памяти запросов достиг бюджета.
+     */
+    public static boolean isExhausted() {
+        return ENABLED && used.get() >= LIMIT;
+    }
+
+    /**
+     * Учитывает память независимо от остатка бюджета.
+     *
+     * @param bytes Объем в байтах.
+     */
+    public static void reserve(long bytes) {
+        if (ENABLED && bytes > 0) {
+            used.addAndGet(bytes);
+            FCGIStats.add(FCGIStats.MEMORY_USED, bytes);
+        }
+    }
+
+    /**
+     * Учитывает память, если она укладывается в остаток бюджета.
+     *
+     * @param bytes Объем в байтах.
+     * @return {@code true}, если память учтена.
+     */
+    public static boolean tryReserve(long bytes) {
+        if (!ENABLED || bytes <= 0) {
+            return true;
+        }
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > LIMIT) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        FCGIStats.add(FCGIStats.MEMORY_USED, bytes);
+        return true;
+    }
+
+    /**
+     * Возвращает память в бюджет.
+     *
+     * @param bytes Объем в байтах.
+     */
+    public static void release(long bytes) {
+        if (ENABLED && bytes > 0) {
+            used.addAndGet(-bytes);
+            FCGIStats.add(FCGIStats.MEMORY_USED, -bytes);
+            // Счетчик ожидающих увеличивается до проверки бюджета, поэтому освобождение памяти не теряется
+            if (waiters.get() > 0) {
+                synchronized (released) {
+                    released.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Учитывает память запроса независимо от остатка бюджета; она возвращается при завершении запроса.
+     *
+     * @param request Запрос.
+     * @param bytes Объем в байтах.
+     */
+    public static void reserve(FCGIRequest request, long bytes) {
+        if (ENABLED && bytes > 0) {
+            reserve(bytes);
+            synchronized (request) {
+                request.reservedBytes += bytes;
+            }
+        }
+    }
+
+    /**
+     * Учитывает память запроса, если она укладывается в остаток бюджета; она возвращается при завершении запроса.
+     *
+     * @param request Запрос.
+     * @param bytes Объем в байтах.
+     * @return {@code true}, если память учтена.
+     */
+    public static boolean tryReserve(FCGIRequest request, long bytes) {
+        if (!ENABLED || bytes <= 0) {
+            return true;
+        }
+        if (!tryReserve(bytes)) {
+            return false;
+        }
+        synchronized (request) {
+            request.reservedBytes += bytes;
+        }
+        return true;
+    }
+
+    /**
+     * Учитывает буфер чтения соединения; он не проверяется по бюджету и возвращается при закрытии соединения.
+     *
+     * @param request Запрос, связанный с соединением.
+     * @param bytes Объем в байтах.
+     */
+    public static void reserveConnection(FCGIRequest request, long bytes) {
+        if (ENABLED && bytes > 0) {
+            connectionsUsed.addAndGet(bytes);
+            FCGIStats.add(FCGIStats.MEMORY_USED, bytes);
+            synchronized (request) {
+                request.connectionBytes += bytes;
+            }
+        }
+    }
+
+    /**
+     * Учитывает память запроса, ожидая ее освобождения не дольше {@code FCGI_MEMORY_WAIT} миллисекунд.
+     * Пока поток ждет, данные соединения не читаются, и веб-сервер придерживает остаток запроса.
+     *
+     * @param request Запрос.
+     * @param bytes Объем в байтах.
+     * @return {@code true}, если память учтена; {@code false}, если бюджет так и не освободился.
+     */
+    public static boolean awaitReserve(FCGIRequest request, long bytes) {
+        if (!ENABLED || bytes <= 0) {
+            return true;
+        }
+        if (bytes > LIMIT) {
+            return false;
+        }
+        if (!tryReserve(bytes)) {
+            long deadline = System.nanoTime() + WAIT_NANOS;
+            waiters.incrementAndGet();
+            try {
+                synchronized (released) {
+                    while (!tryReserve(bytes)) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(released, remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+        synchronized (request) {
+            request.reservedBytes += bytes;
+        }
+        return true;
+    }
+
+    /**
+     * Возвращает в бюджет память, учтенную за время запроса.
+     *
+     * @param request Завершенный запрос.
+     */
+    public static void releaseRequest(FCGIRequest request) {
+        if (!ENABLED) {
+            return;
+        }
+        long bytes;
+        synchronized (request) {
+            bytes = request.reservedBytes;
+            request.reservedBytes = 0;
+        }
+        release(bytes);
+    }
+
+    /**
+     * Возвращает в бюджет всю память соединения запроса, включая буфер чтения.
+     *
+     * @param request Запрос, соединение которого закрывается.
+     */
+    public static void releaseConnection(FCGIRequest request) {
+        if (!ENABLED) {
+            return;
+        }
+        releaseRequest(request);
+        long bytes;
+        synchronized (request) {
+            bytes = request.connectionBytes;
+            request.connectionBytes = 0;
+        }
+        if (bytes > 0) {
+            connectionsUsed.addAndGet(-bytes);
+            FCGIStats.add(FCGIStats.MEMORY_USED, -bytes);
+        }
+    }
+
+    /**
+     * Ожидает, пока бюджет перестанет быть исчерпанным. Вызывается потоками приема перед приемом соединения.
+     */
+    public static void awaitAvailable() {
+        if (!isExhausted()) {
+            return;
+        }
+        waiters.incrementAndGet();
+        try {
+            synchronized (released) {
+                while (isExhausted()) {
+                    released.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.fastcgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Класс FCGIMemorySocket — соединение в памяти без сетевого ввода-вывода. Входящие данные берутся
+ * из заданного массива, а вывод приложения отбрасывается (учитывается только его объем).
+ * Используется для прогрева {@link FCGIWarmup}, чтобы запросы проходили через настоящий код
+ * разбора и обработки без участия веб-сервера.
+ */
+public class FCGIMemorySocket extends Socket {
+
+    /** Поток входящих данных. */
+    private final InputStream in;
+
+    /** Поток, отбрасывающий вывод. */
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) {
+            ++FCGIMemorySocket.this.written;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            FCGIMemorySocket.this.written += len;
+        }
+    };
+
+    /** Количество байт, записанных приложением. */
+    private long written;
+
+    /** Флаг закрытия соединения. */
+    private volatile boolean closed;
+
+    /**
+     * Конструктор класса FCGIMemorySocket.
+     *
+     * @param input Данные, которые будут прочитаны из соединения.
+     */
+    public FCGIMemorySocket(byte[] input) {
+        this.in = new ByteArrayInputStream(input) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return FCGIMemorySocket.this.closed ? -1 : super.read(b, off, len);
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (this.closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (this.closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.out;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // Параметр не имеет смысла для соединения в памяти
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+    }
+
+    /**
+     * Возвращает количество байт, записанных приложением в соединение.
+     *
+     * @return Количество байт.
+     */
+    public long getWritten() {
+        return this.written;
+    }
+}
@@ -2,6 +2,7 @@ package com.fastcgi;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Properties;
 
 /**
@@ -14,6 +15,13 @@ public class FCGIMessage {
     /** Идентификатор версии исходного кода. */
     private static final String RCSID = "$Id: FCGIMessage.java,v 1.4 2000/10/02 15:09:07 robs Exp $";
 
+    /**
+     * Максимальный суммарный объем имен и значений параметров одного запроса в байтах
+     * (свойство {@code FCGI_MAX_PARAMS}, по умолчанию 1 МБ). Длины пар проверяются до выделения памяти:
+     * 31-битная длина из заголовка пары не должна приводить к выделению массива такого размера.
+     */
+    static final int MAX_PARAMS = Integer.getInteger("FCGI_MAX_PARAMS", 1 << 20);
+
     /** Версия FastCGI протокола в заголовке. */
     private int h_version;
 
@@ -143,8 +151,7 @@ public class FCGIMessage {
      * @throws IOException Если произошла ошибка при отправке ответа.
      */
     public int processManagementRecord(int type) throws IOException {
-        byte[] response = new byte[64];
-        int wrndx = response[8];
+        ByteBuffer response = ByteBuffer.allocate(64);
         if (type == 9) {
             Properties tmpProps = new Properties();
             this.readParams(tmpProps);
@@ -152,24 +159,24 @@ public class FCGIMessage {
                 return -3;
             }
 
-            if (tmpProps.containsKey("FCGI_MAX_CONNS")) {
-                this.makeNameVal("FCGI_MAX_CONNS", "1", response, wrndx);
-            } else if (tmpProps.containsKey("FCGI_MAX_REQS")) {
-                this.makeNameVal("FCGI_MAX_REQS", "1", response, wrndx);
-            } else if (tmpProps.containsKey("FCGI_MPXS_CONNS")) {
-                this.makeNameVal("FCGI_MPXS_CONNS", "0", response, wrndx);
+            // Ответ содержит все запрошенные переменные, известные приложению
+            int mark = FCGIEncoder.reserveHeader(response);
+            if (tmpProps.containsKey(FCGIGlobalDefs.def_FCGIMaxConns)) {
+                FCGIEncoder.putNameValue(response, FCGIGlobalDefs.def_FCGIMaxConns, "1");
             }
-
-            int plen = 64 - wrndx;
-            int len = wrndx - 8;
-            System.arraycopy(this.makeHeader(10, 0, len, plen), 0, response, 0, 8);
+            if (tmpProps.containsKey(FCGIGlobalDefs.def_FCGIMaxReqs)) {
+                FCGIEncoder.putNameValue(response, FCGIGlobalDefs.def_FCGIMaxReqs, "1");
+            }
+            if (tmpProps.containsKey(FCGIGlobalDefs.def_FCGIMpxsConns)) {
+                FCGIEncoder.putNameValue(response, FCGIGlobalDefs.def_FCGIMpxsConns, "0");
+            }
+            FCGIEncoder.finishRecord(response, mark, 10, 0);
         } else {
-            System.arraycopy(this.makeHeader(11, 0, 8, 0), 0, response, 0, 8);
-            System.arraycopy(this.makeUnknownTypeBodyBody(this.h_type), 0, response, 8, 8);
+            FCGIEncoder.putUnknownType(response, this.h_type);
         }
 
         try {
-            this.in.request.socket.getOutputStream().write(response, 0, 16);
+            this.in.request.writer.write(response.array(), 0, response.position());
             return 3;
         } catch (IOException var8) {
             return -1;
@@ -186,7 +193,9 @@ public class FCGIMessage {
      * @return Массив байт, представляющий заголовок FastCGI.
      */
     public byte[] makeHeader(int type, int requestId, int contentLength, int paddingLength) {
-        return new byte[]{(byte) FCGIGlobalDefs.def_FCGIVersion1, (byte) type, (byte) (requestId >> 8 & 255), (byte) (requestId & 255), (byte) (contentLength >> 8 & 255), (byte) (contentLength & 255), (byte) paddingLength, 0};
+        byte[] header = new byte[FCGIGlobalDefs.def_FCGIHeaderLen];
+        FCGIEncoder.putHeader(header, 0, type, requestId, contentLength, paddingLength);
+        return header;
     }
 
     /**
@@ -219,15 +228,30 @@ public class FCGIMessage {
      * @throws IOException Если произошла ошибка при чтении параметров.
      */
     public int readParams(Properties props) throws IOException {
+        return this.readParams(props, null);
+    }
+
+    /**
+     * Читает параметры запроса FastCGI и сохраняет их в объект Properties. Параметры, суммарный объем
+     * которых превышает {@link #MAX_PARAMS}, считаются ошибкой протокола {@link FCGIGlobalDefs#def_FCGIParamsError};
+     * память каждой пары учитывается в {@link FCGIMemoryBudget} до ее выделения.
+     *
+     * @param props Объект Properties для хранения параметров запроса.
+     * @param request Запрос, на который учитывается память параметров, или {@code null}.
+     * @return Код состояния: 0 — успешная обработка, отрицательные значения — ошибки.
+     * @throws IOException Если произошла ошибка при чтении параметров.
+     */
+    public int readParams(Properties props, FCGIRequest request) throws IOException {
         byte[] lenBuff = new byte[3];
         int i = 1;
+        long remaining = MAX_PARAMS;
 
         int nameLen;
         while ((nameLen = this.in.read()) != -1) {
             ++i;
             if ((nameLen & 128) != 0) {
                 if (this.in.read(lenBuff, 0, 3) != 3) {
-                    this.in.setFCGIError(-4);
+                    this.in.protocolError(-4);
                     return -1;
                 }
 
@@ -236,28 +260,38 @@ public class FCGIMessage {
 
             int valueLen;
             if ((valueLen = this.in.read()) == -1) {
-                this.in.setFCGIError(-4);
+                this.in.protocolError(-4);
                 return -1;
             }
 
             if ((valueLen & 128) != 0) {
                 if (this.in.read(lenBuff, 0, 3) != 3) {
-                    this.in.setFCGIError(-4);
+                    this.in.protocolError(-4);
                     return -1;
                 }
 
                 valueLen = (valueLen & 127) << 24 | (lenBuff[0] & 255) << 16 | (lenBuff[1] & 255) << 8 | lenBuff[2] & 255;
             }
 
+            // Длины не проверены веб-сервером: выделяется не больше остатка ограничения
+            remaining -= (long) nameLen + valueLen;
+            if (remaining < 0) {
+                this.in.protocolError(FCGIGlobalDefs.def_FCGIParamsError);
+                return -1;
+            }
+            if (request != null) {
+                FCGIMemoryBudget.reserve(request, (long) nameLen + valueLen);
+            }
+
             byte[] name = new byte[nameLen];
             byte[] value = new byte[valueLen];
             if (this.in.read(name, 0, nameLen) != nameLen) {
-                this.in.setFCGIError(-4);
+                this.in.protocolError(-4);
                 return -1;
             }
 
             if (this.in.read(value, 0, valueLen) != valueLen) {
-                this.in.setFCGIError(-4);
+                this.in.protocolError(-4);
                 return -1;
             }
 
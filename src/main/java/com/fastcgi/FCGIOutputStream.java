@@ -3,6 +3,7 @@ package com.fastcgi;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Класс FCGIOutputStream представляет собой поток данных для отправки информации
@@ -53,6 +54,15 @@ public class FCGIOutputStream extends OutputStream {
     /** Основной поток вывода, в который отправляются данные. */
     public OutputStream out;
 
+    /** Политика, определяющая, когда явный сброс приводит к отправке данных. */
+    public FCGIFlushPolicy flushPolicy;
+
+    /** Время первого отложенного сброса ({@link System#nanoTime()}) или 0, если отложенных сбросов нет. */
+    private long flushRequestedAt;
+
+    /** Запланированный отложенный сброс или {@code null}. */
+    private ScheduledFuture<?> deferredFlush;
+
     /**
      * Конструктор класса FCGIOutputStream. Инициализирует поток с буфером заданного размера.
      *
@@ -72,6 +82,7 @@ public class FCGIOutputStream extends OutputStream {
         this.wrNext = 8; // Отступ для заголовка FastCGI
         this.isClosed = false;
         this.request = inreq;
+        this.flushPolicy = FCGIFlushPolicy.DEFAULT;
     }
 
     /**
@@ -81,7 +92,7 @@ public class FCGIOutputStream extends OutputStream {
      * @param c Байт данных, который нужно записать.
      * @throws IOException Если произошла ошибка при записи данных.
      */
-    public void write(int c) throws IOException {
+    public synchronized void write(int c) throws IOException {
         if (this.wrNext != this.stop) {
             this.buff[this.wrNext++] = (byte) c;
         } else if (this.isClosed) {
@@ -116,7 +127,7 @@ public class FCGIOutputStream extends OutputStream {
      * @param len Длина данных для записи.
      * @throws IOException Если произошла ошибка при записи данных.
      */
-    public void write(byte[] b, int off, int len) throws IOException {
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
         if (len <= this.stop - this.wrNext) {
             System.arraycopy(b, off, this.buff, this.wrNext, len);
             this.wrNext += len;
@@ -153,10 +164,16 @@ public class FCGIOutputStream extends OutputStream {
      * @throws IOException Если произошла ошибка при отправке данных.
      */
     public void empty(boolean doClose) throws IOException {
+        this.flushRequestedAt = 0;
+        if (this.deferredFlush != null) {
+            this.deferredFlush.cancel(false);
+            this.deferredFlush = null;
+        }
+
         if (!this.rawWrite) {
             int cLen = this.wrNext - 8;
             if (cLen > 0) {
-                System.arraycopy((new FCGIMessage()).makeHeader(this.type, this.request.requestID, cLen, 0), 0, this.buff, 0, 8);
+                FCGIEncoder.putHeader(this.buff, 0, this.type, this.request.requestID, cLen, 0);
             } else {
                 this.wrNext = 0;
             }
@@ -169,13 +186,24 @@ public class FCGIOutputStream extends OutputStream {
         if (this.wrNext != 0) {
             this.isAnythingWritten = true;
 
+            FCGIRecordWriteEvent event = new FCGIRecordWriteEvent();
+            event.begin();
             try {
                 this.out.write(this.buff, 0, this.wrNext);
+                FCGIStats.add(FCGIStats.BYTES_OUT, this.wrNext);
+                this.request.bytesOut += this.wrNext;
             } catch (IOException var4) {
                 IOException e = var4;
                 this.setException(e);
                 return;
             }
+            event.end();
+            if (event.shouldCommit()) {
+                event.requestId = this.request.requestID;
+                event.recordType = this.type;
+                event.bytes = this.wrNext;
+                event.commit();
+            }
 
             this.wrNext = 0;
         }
@@ -190,7 +218,7 @@ public class FCGIOutputStream extends OutputStream {
      *
      * @throws IOException Если произошла ошибка при закрытии потока.
      */
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         if (!this.isClosed) {
             this.empty(true);
             this.isClosed = true;
@@ -201,12 +229,43 @@ public class FCGIOutputStream extends OutputStream {
     /**
      * Очищает буфер и отправляет данные в поток.
      * Данные не закрываются, поток остается открытым.
+     * В зависимости от {@link #flushPolicy} отправка может быть отложена, чтобы объединить
+     * несколько мелких сбросов в одну запись FastCGI.
      *
      * @throws IOException Если произошла ошибка при отправке данных.
      */
-    public void flush() throws IOException {
-        if (!this.isClosed) {
+    public synchronized void flush() throws IOException {
+        if (this.isClosed) {
+            return;
+        }
+
+        int pending = this.rawWrite ? this.wrNext : this.wrNext - 8;
+        if (pending <= 0) {
+            return;
+        }
+        if (this.flushRequestedAt == 0) {
+            this.flushRequestedAt = System.nanoTime();
+        }
+        if (this.flushPolicy.shouldFlush(pending, this.flushRequestedAt)) {
+            this.empty(false);
+        } else if (this.flushPolicy.mode == FCGIFlushPolicy.MODE_TIME && this.deferredFlush == null) {
+            this.deferredFlush = FCGIFlushPolicy.schedule(this::deferredFlush, this.flushPolicy.maxDelayNanos);
+        }
+    }
+
+    /**
+     * Выполняет отложенный сброс по истечении допустимой задержки. Вызывается потоком пула сбросов
+     * {@link FCGIFlushPolicy}, а не потоком таймера.
+     */
+    private synchronized void deferredFlush() {
+        this.deferredFlush = null;
+        if (this.isClosed || this.flushRequestedAt == 0) {
+            return;
+        }
+        try {
             this.empty(false);
+        } catch (IOException e) {
+            this.setException(e);
         }
     }
 
@@ -287,8 +346,11 @@ public class FCGIOutputStream extends OutputStream {
         if (this.request.numWriters == 1) {
             endReq = new byte[16];
             System.arraycopy(msg.makeHeader(3, this.request.requestID, 8, 0), 0, endReq, 0, 8);
-            System.arraycopy(msg.makeEndrequestBody(this.request.appStatus, 0), 0, endReq, 8, 8);
+            System.arraycopy(msg.makeEndrequestBody(this.request.appStatus, this.request.protocolStatus), 0, endReq, 8, 8);
             this.write(endReq, 0, 16);
+            FCGIStats.requestFinished(this.request, true);
+            FCGIRequestEvent.end(this.request, true);
+            FCGIMemoryBudget.releaseRequest(this.request);
         }
 
         --this.request.numWriters;
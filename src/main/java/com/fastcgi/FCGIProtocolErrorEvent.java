@@ -0,0 +1,30 @@
+package com.fastcgi;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Событие JDK Flight Recorder {@code com.fastcgi.FastCGIProtocolError} — ошибка протокола FastCGI
+ * во входящих данных: неподдерживаемая версия, запись неожиданного типа или некорректные параметры.
+ */
+@Name("com.fastcgi.FastCGIProtocolError")
+@Label("FastCGI Protocol Error")
+@Category("FastCGI")
+@Description("Ошибка протокола FastCGI во входящих данных")
+public class FCGIProtocolErrorEvent extends Event {
+
+    /** Идентификатор текущего запроса FastCGI. */
+    @Label("Request ID")
+    public int requestId;
+
+    /** Код ошибки (см. {@link FCGIGlobalDefs}). */
+    @Label("Error Code")
+    public int code;
+
+    /** Тип записей, которые ожидал поток. */
+    @Label("Expected Record Type")
+    public int recordType;
+}
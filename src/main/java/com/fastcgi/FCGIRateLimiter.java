@@ -0,0 +1,129 @@
+package com.fastcgi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс FCGIRateLimiter ограничивает частоту запросов каждого клиента сразу после чтения параметров запроса,
+ * до вызова обработчика и чтения тела. Запрос сверх ограничения получает заранее закодированный ответ
+ * {@link #RESPONSE} со статусом 429 и EndRequest, поэтому отказ почти ничего не стоит.
+ * <p>
+ * Ограничение включается свойством {@code FCGI_RATE_LIMIT} — допустимым числом запросов в секунду на клиента;
+ * {@code FCGI_RATE_BURST} задает число запросов, которые клиент может отправить подряд (по умолчанию равно
+ * ограничению, но не меньше 1). Клиент определяется значением параметра {@code FCGI_RATE_KEY}
+ * (по умолчанию {@code REMOTE_ADDR}); запросы без этого параметра и запросы прогрева {@link FCGIWarmup},
+ * переданные через {@link FCGIMemorySocket}, не ограничиваются.
+ * <p>
+ * Для каждого клиента хранится одно число — расчетное время следующего запроса (алгоритм GCRA, эквивалентный
+ * корзине маркеров), которое обновляется сравнением с обменом без блокировок. Клиенты хранятся
+ * в {@link ConcurrentHashMap}; записи клиентов, чья корзина снова полна, удаляются не чаще раза в секунду
+ * потоком, первым заметившим, что пора это сделать.
+ */
+public class FCGIRateLimiter {
+
+    /** Ответ на запрос сверх ограничения в формате CGI. */
+    public static final byte[] RESPONSE = ("Status: 429 Too Many Requests\r\nContent-Type: text/plain\r\nRetry-After: 1\r\n\r\n"
+            + "Too Many Requests\n").getBytes(StandardCharsets.US_ASCII);
+
+    /** Допустимое число запросов в секунду на клиента; 0 — ограничение выключено. */
+    private static final double RATE = parseRate(System.getProperty("FCGI_RATE_LIMIT"));
+
+    /** Флаг ограничения частоты запросов. */
+    public static final boolean ENABLED = RATE > 0;
+
+    /** Параметр запроса, определяющий клиента. */
+    private static final String KEY = System.getProperty("FCGI_RATE_KEY", "REMOTE_ADDR");
+
+    /** Интервал между запросами при допустимой частоте в наносекундах. */
+    private static final long INTERVAL_NANOS = ENABLED ? Math.max(1, (long) (1_000_000_000L / RATE)) : 0;
+
+    /** Допустимое опережение расчетного времени в наносекундах: число запросов подряд сверх первого. */
+    private static final long TOLERANCE_NANOS = INTERVAL_NANOS
+            * (Math.max(1, Long.getLong("FCGI_RATE_BURST", Math.max(1, (long) RATE))) - 1);
+
+    /** Интервал удаления записей клиентов с полной корзиной в наносекундах. */
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+    /** Расчетное время следующего запроса ({@link System#nanoTime()}) по клиентам. */
+    private static final ConcurrentHashMap<String, AtomicLong> clients = new ConcurrentHashMap<>();
+
+    /** Время следующего удаления записей. */
+    private static final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+    private FCGIRateLimiter() {
+    }
+
+    /**
+     * Разбирает значение {@code FCGI_RATE_LIMIT}.
+     *
+     * @param value Значение свойства или {@code null}.
+     * @return Число запросов в секунду; 0, если значение не задано или некорректно.
+     */
+    private static double parseRate(String value) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Double.parseDouble(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Учитывает запрос клиента и проверяет, укладывается ли он в ограничение.
+     *
+     * @param params Параметры запроса.
+     * @return {@code true}, если запрос допускается; {@code false}, если его нужно отклонить.
+     */
+    public static boolean tryAcquire(Properties params) {
+        if (!ENABLED) {
+            return true;
+        }
+        String client = params.getProperty(KEY);
+        if (client == null) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        sweep(now);
+        AtomicLong next = clients.computeIfAbsent(client, key -> new AtomicLong(now));
+        while (true) {
+            long expected = next.get();
+            long start = expected - now < 0 ? now : expected;
+            if (start - now > TOLERANCE_NANOS) {
+                FCGIStats.add(FCGIStats.RATE_LIMITED, 1);
+                return false;
+            }
+            if (next.compareAndSet(expected, start + INTERVAL_NANOS)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Удаляет записи клиентов, чья корзина снова полна, если с предыдущего удаления прошла секунда.
+     * Такая запись не отличается от отсутствующей; запрос, учтенный одновременно с удалением записи,
+     * может не сохраниться, что дает клиенту не более одного лишнего запроса.
+     *
+     * @param now Текущее время ({@link System#nanoTime()}).
+     */
+    private static void sweep(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+        clients.values().removeIf(next -> next.get() - now <= 0);
+    }
+
+    /**
+     * Возвращает количество отслеживаемых клиентов.
+     *
+     * @return Количество клиентов.
+     */
+    public static int getClients() {
+        return clients.size();
+    }
+}
@@ -0,0 +1,149 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Класс FCGIReaper ограничивает время каждой фазы чтения запроса, время простоя соединения keep-alive
+ * и время отправки ответа {@link FCGIResponseDrainer}.
+ * Если веб-сервер не передал заголовок, параметры или тело запроса за отведенное время,
+ * соединение простаивает дольше допустимого либо не забирает ответ, соединение закрывается: заблокированное
+ * чтение завершается ошибкой, и поток освобождается. Каждое такое событие учитывается в счетчиках.
+ * <p>
+ * Ограничения задаются в миллисекундах свойствами {@code FCGI_HEADER_TIMEOUT}, {@code FCGI_PARAMS_TIMEOUT},
+ * {@code FCGI_BODY_TIMEOUT}, {@code FCGI_IDLE_TIMEOUT} и {@code FCGI_DRAIN_TIMEOUT}; нулевое значение
+ * отключает ограничение. По умолчанию отключены все ограничения, кроме {@code FCGI_DRAIN_TIMEOUT} (60 с):
+ * без него ответ, который веб-сервер не читает, навсегда удерживал бы память {@link FCGIMemoryBudget}.
+ * {@code FCGI_BODY_TIMEOUT} — тайм-аут бездействия: он ограничивает ожидание каждой очередной порции тела,
+ * а не время чтения всего тела.
+ * Тайм-ауты обслуживаются одним колесом таймеров {@link FCGITimingWheel}.
+ */
+public class FCGIReaper {
+
+    /** Фаза ожидания записи BeginRequest в новом соединении. */
+    public static final int PHASE_HEADER = 0;
+
+    /** Фаза чтения параметров запроса. */
+    public static final int PHASE_PARAMS = 1;
+
+    /** Фаза ожидания очередной порции тела запроса (stdin). */
+    public static final int PHASE_BODY = 2;
+
+    /** Простой соединения keep-alive в ожидании следующего запроса. */
+    public static final int PHASE_IDLE = 3;
+
+    /** Отправка готового ответа потоком {@link FCGIResponseDrainer}. */
+    public static final int PHASE_DRAIN = 4;
+
+    /** Ограничения по фазам в миллисекундах. */
+    private static final long[] TIMEOUTS = {
+            Long.getLong("FCGI_HEADER_TIMEOUT", 0),
+            Long.getLong("FCGI_PARAMS_TIMEOUT", 0),
+            Long.getLong("FCGI_BODY_TIMEOUT", 0),
+            Long.getLong("FCGI_IDLE_TIMEOUT", 0),
+            Long.getLong("FCGI_DRAIN_TIMEOUT", 60000)
+    };
+
+    /** Количество соединений, закрытых по истечении времени, по фазам. */
+    private static final AtomicLongArray expired = new AtomicLongArray(TIMEOUTS.length);
+
+    /** Колесо таймеров; создается при первом использовании. */
+    private static FCGITimingWheel wheel;
+
+    private FCGIReaper() {
+    }
+
+    /**
+     * Запускает отсчет времени фазы для соединения запроса.
+     *
+     * @param request Запрос, соединение которого нужно закрыть по истечении времени.
+     * @param phase Фаза.
+     * @return Тайм-аут или {@code null}, если ограничение для фазы не задано.
+     */
+    public static FCGITimingWheel.Timeout arm(FCGIRequest request, int phase) {
+        return arm(request, phase, null);
+    }
+
+    /**
+     * Запускает отсчет времени фазы для соединения запроса.
+     *
+     * @param request Запрос, соединение которого нужно закрыть по истечении времени.
+     * @param phase Фаза.
+     * @param onExpired Действие, выполняемое потоком колеса после закрытия соединения, или {@code null}.
+     * @return Тайм-аут или {@code null}, если ограничение для фазы не задано.
+     */
+    public static FCGITimingWheel.Timeout arm(FCGIRequest request, int phase, Runnable onExpired) {
+        long timeout = TIMEOUTS[phase];
+        if (timeout <= 0) {
+            return null;
+        }
+        Socket socket = request.socket;
+        return wheel().schedule(timeout, () -> {
+            expired.incrementAndGet(phase);
+            FCGIStats.add(phase == PHASE_DRAIN ? FCGIStats.EXPIRED_DRAIN : FCGIStats.EXPIRED_HEADER + phase, 1);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Соединение уже закрыто
+            }
+            if (onExpired != null) {
+                onExpired.run();
+            }
+        });
+    }
+
+    /**
+     * Запускает отсчет времени фазы и сохраняет тайм-аут в {@code request.deadline}.
+     *
+     * @param request Запрос.
+     * @param phase Фаза.
+     */
+    public static void start(FCGIRequest request, int phase) {
+        request.deadline = arm(request, phase);
+    }
+
+    /**
+     * Отменяет тайм-аут текущей фазы запроса, если он был запущен.
+     *
+     * @param request Запрос.
+     */
+    public static void disarm(FCGIRequest request) {
+        if (request.deadline != null) {
+            request.deadline.cancel();
+            request.deadline = null;
+        }
+    }
+
+    /**
+     * Проверяет, задано ли ограничение для фазы.
+     *
+     * @param phase Фаза.
+     * @return {@code true}, если ограничение задано.
+     */
+    public static boolean isEnabled(int phase) {
+        return TIMEOUTS[phase] > 0;
+    }
+
+    /**
+     * Возвращает количество соединений, закрытых по истечении времени фазы.
+     *
+     * @param phase Фаза.
+     * @return Количество соединений.
+     */
+    public static long getExpired(int phase) {
+        return expired.get(phase);
+    }
+
+    /**
+     * Возвращает общее колесо таймеров.
+     *
+     * @return Колесо таймеров с тактом 10 мс.
+     */
+    private static synchronized FCGITimingWheel wheel() {
+        if (wheel == null) {
+            wheel = FCGITimingWheel.start(10, 512);
+        }
+        return wheel;
+    }
+}
@@ -0,0 +1,123 @@
+package com.fastcgi;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Интерфейс FCGIRecordListener получает события разбора записей FastCGI от {@link FCGIDecoder}.
+ * Все методы имеют пустую реализацию по умолчанию, поэтому приложение реализует только нужные ему события:
+ * сторона приложения — начало запроса, параметры, stdin и управляющие записи,
+ * сторона клиента — stdout, stderr и завершение запроса.
+ * <p>
+ * Буферы, передаваемые в методы потоков, являются срезами входного фрагмента без копирования
+ * и действительны только во время вызова.
+ */
+public interface FCGIRecordListener {
+
+    /**
+     * Вызывается при получении записи BeginRequest.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param role Роль приложения ({@link FCGIGlobalDefs#def_FCGIResponder} и т.д.).
+     * @param flags Флаги запроса ({@link FCGIGlobalDefs#def_FCGIKeepConn}).
+     */
+    default void onBeginRequest(int requestId, int role, int flags) {
+    }
+
+    /**
+     * Вызывается для каждой полностью прочитанной пары параметров запроса.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param name Имя параметра.
+     * @param value Значение параметра.
+     */
+    default void onParam(int requestId, String name, String value) {
+    }
+
+    /**
+     * Вызывается при получении пустой записи Params, завершающей параметры запроса.
+     *
+     * @param requestId Идентификатор запроса.
+     */
+    default void onParamsEnd(int requestId) {
+    }
+
+    /**
+     * Вызывается для фрагмента тела запроса (stdin). Пустой буфер означает конец потока.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param content Фрагмент данных.
+     */
+    default void onStdin(int requestId, ByteBuffer content) {
+    }
+
+    /**
+     * Вызывается для фрагмента дополнительных данных роли FILTER. Пустой буфер означает конец потока.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param content Фрагмент данных.
+     */
+    default void onData(int requestId, ByteBuffer content) {
+    }
+
+    /**
+     * Вызывается для фрагмента вывода приложения (stdout). Пустой буфер означает конец потока.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param content Фрагмент данных.
+     */
+    default void onStdout(int requestId, ByteBuffer content) {
+    }
+
+    /**
+     * Вызывается для фрагмента вывода ошибок приложения (stderr). Пустой буфер означает конец потока.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param content Фрагмент данных.
+     */
+    default void onStderr(int requestId, ByteBuffer content) {
+    }
+
+    /**
+     * Вызывается при получении записи AbortRequest.
+     *
+     * @param requestId Идентификатор запроса.
+     */
+    default void onAbortRequest(int requestId) {
+    }
+
+    /**
+     * Вызывается при получении записи EndRequest.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param appStatus Код завершения приложения.
+     * @param protocolStatus Статус протокола ({@link FCGIGlobalDefs#def_FCGIRequestComplete} и т.д.).
+     */
+    default void onEndRequest(int requestId, int appStatus, int protocolStatus) {
+    }
+
+    /**
+     * Вызывается при получении управляющей записи GetValues.
+     *
+     * @param names Запрошенные имена переменных (значения пусты).
+     */
+    default void onGetValues(Properties names) {
+    }
+
+    /**
+     * Вызывается при получении ответа GetValuesResult.
+     *
+     * @param values Значения переменных приложения.
+     */
+    default void onGetValuesResult(Properties values) {
+    }
+
+    /**
+     * Вызывается для записи неизвестного или неподдерживаемого типа. Содержимое записи пропускается.
+     *
+     * @param type Тип записи.
+     * @param requestId Идентификатор запроса.
+     */
+    default void onUnknownType(int type, int requestId) {
+    }
+}
@@ -0,0 +1,37 @@
+package com.fastcgi;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Событие JDK Flight Recorder {@code com.fastcgi.FastCGIRecordRead} — чтение данных записей FastCGI
+ * из соединения в буфер {@link FCGIInputStream}. Записываются только чтения дольше порога
+ * (по умолчанию 10 мс): они показывают, что запрос ждал данных от веб-сервера.
+ */
+@Name("com.fastcgi.FastCGIRecordRead")
+@Label("FastCGI Record Read")
+@Category("FastCGI")
+@Description("Чтение записей FastCGI из соединения")
+@Threshold("10 ms")
+@StackTrace(false)
+public class FCGIRecordReadEvent extends Event {
+
+    /** Идентификатор текущего запроса FastCGI. */
+    @Label("Request ID")
+    public int requestId;
+
+    /** Тип записей, которые ожидает поток (например, 5 — FCGI_STDIN). */
+    @Label("Record Type")
+    public int recordType;
+
+    /** Количество прочитанных байт; 0 или меньше — конец потока. */
+    @Label("Bytes")
+    @DataAmount
+    public int bytes;
+}
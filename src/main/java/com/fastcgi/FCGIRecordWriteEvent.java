@@ -0,0 +1,37 @@
+package com.fastcgi;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Событие JDK Flight Recorder {@code com.fastcgi.FastCGIRecordWrite} — отправка буфера записей FastCGI
+ * из {@link FCGIOutputStream} в соединение. Записываются только отправки дольше порога
+ * (по умолчанию 10 мс): они показывают, что веб-сервер не успевает принимать ответ.
+ */
+@Name("com.fastcgi.FastCGIRecordWrite")
+@Label("FastCGI Record Write")
+@Category("FastCGI")
+@Description("Отправка записей FastCGI в соединение")
+@Threshold("10 ms")
+@StackTrace(false)
+public class FCGIRecordWriteEvent extends Event {
+
+    /** Идентификатор запроса FastCGI. */
+    @Label("Request ID")
+    public int requestId;
+
+    /** Тип записей потока (6 — FCGI_STDOUT, 7 — FCGI_STDERR). */
+    @Label("Record Type")
+    public int recordType;
+
+    /** Количество отправленных байт, включая заголовки записей. */
+    @Label("Bytes")
+    @DataAmount
+    public int bytes;
+}
@@ -0,0 +1,309 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Класс FCGIReplay воспроизводит журнал {@link FCGICapture}: открывает соединения с приложением FastCGI
+ * и отправляет в них входящие данные журнала в исходном порядке и с исходными интервалами времени,
+ * ускоренными в заданное число раз. Ответы приложения читаются и отбрасываются; для каждого запроса
+ * измеряется время от отправки BeginRequest до получения EndRequest.
+ * <p>
+ * Запуск: {@code java com.fastcgi.FCGIReplay <журнал> <хост> <порт> [ускорение]}. Ускорение 1 — исходная
+ * скорость, 0 — отправка без пауз. Ответы на оставшиеся запросы ожидаются не дольше
+ * {@code FCGI_REPLAY_TIMEOUT} миллисекунд после отправки всех данных.
+ */
+public class FCGIReplay {
+
+    /**
+     * Запись журнала.
+     *
+     * @param nanos Время от начала журнала в наносекундах.
+     * @param connectionId Номер соединения.
+     * @param direction Направление {@link FCGICapture#IN}, {@link FCGICapture#OUT} или {@link FCGICapture#CLOSE}.
+     * @param data Данные записи.
+     */
+    public record Entry(long nanos, int connectionId, int direction, byte[] data) {
+    }
+
+    /** Адрес приложения. */
+    private final String host;
+
+    /** Порт приложения. */
+    private final int port;
+
+    /** Ускорение воспроизведения; 0 — без пауз. */
+    private final double speed;
+
+    /** Длительности запросов в наносекундах. */
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+    /** Количество запросов, завершенных с ошибкой соединения или без ответа. */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /** Все открытые соединения. */
+    private final List<Connection> opened = new ArrayList<>();
+
+    /**
+     * Конструктор класса FCGIReplay.
+     *
+     * @param host Адрес приложения.
+     * @param port Порт приложения.
+     * @param speed Ускорение воспроизведения; 0 — без пауз.
+     */
+    public FCGIReplay(String host, int port, double speed) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+    }
+
+    /**
+     * Точка входа утилиты воспроизведения.
+     *
+     * @param args Журнал, хост, порт и необязательное ускорение.
+     * @throws Exception Если журнал не удалось прочитать или соединиться с приложением.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Использование: FCGIReplay <журнал> <хост> <порт> [ускорение]");
+            System.exit(2);
+        }
+        List<Entry> entries = read(Paths.get(args[0]));
+        FCGIReplay replay = new FCGIReplay(args[1], Integer.parseInt(args[2]), args.length > 3 ? Double.parseDouble(args[3]) : 1.0);
+        long started = System.nanoTime();
+        replay.replay(entries);
+        System.out.println(replay.summary(System.nanoTime() - started));
+    }
+
+    /**
+     * Читает журнал до первой незаполненной записи.
+     *
+     * @param path Путь к журналу.
+     * @return Записи журнала, упорядоченные по времени.
+     * @throws IOException Если журнал не удалось прочитать или он имеет неверный формат.
+     */
+    public static List<Entry> read(Path path) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buf.capacity() < FCGICapture.HEADER_SIZE || buf.getLong(0) != FCGICapture.MAGIC) {
+            throw new IOException("Файл не является журналом FCGICapture: " + path);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        int index = FCGICapture.HEADER_SIZE;
+        while (index + FCGICapture.ENTRY_HEADER_SIZE <= buf.capacity()) {
+            int size = buf.getInt(index);
+            if (size <= 0) {
+                break;
+            }
+            byte[] data = new byte[buf.getInt(index + 4)];
+            buf.get(index + FCGICapture.ENTRY_HEADER_SIZE, data);
+            entries.add(new Entry(buf.getLong(index + 8), buf.getInt(index + 16), buf.getInt(index + 20), data));
+            index += size;
+        }
+        // Записи разных соединений попадают в журнал почти, но не строго, в порядке времени
+        entries.sort(Comparator.comparingLong(Entry::nanos));
+        return entries;
+    }
+
+    /**
+     * Воспроизводит входящие данные журнала и ожидает ответов на отправленные запросы.
+     *
+     * @param entries Записи журнала, упорядоченные по времени.
+     * @throws IOException Если не удалось соединиться с приложением.
+     * @throws InterruptedException Если ожидание прервано.
+     */
+    public void replay(List<Entry> entries) throws IOException, InterruptedException {
+        Map<Integer, Connection> connections = new HashMap<>();
+        long origin = System.nanoTime();
+        long first = entries.isEmpty() ? 0 : entries.get(0).nanos();
+
+        for (Entry entry : entries) {
+            if (entry.direction() == FCGICapture.OUT) {
+                continue;
+            }
+            if (this.speed > 0) {
+                long due = origin + (long) ((entry.nanos() - first) / this.speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+
+            Connection connection = connections.get(entry.connectionId());
+            if (entry.direction() == FCGICapture.CLOSE) {
+                if (connection != null) {
+                    connection.closeWhenIdle();
+                    connections.remove(entry.connectionId());
+                }
+                continue;
+            }
+            if (connection == null) {
+                connection = new Connection(new Socket(this.host, this.port));
+                connections.put(entry.connectionId(), connection);
+            }
+            connection.send(entry.data());
+        }
+
+        for (Connection connection : connections.values()) {
+            connection.closeWhenIdle();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.getLong("FCGI_REPLAY_TIMEOUT", 30000));
+        for (Connection connection : this.opened) {
+            connection.reader.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            connection.close();
+        }
+    }
+
+    /**
+     * Формирует итог воспроизведения: количество запросов, ошибки и распределение длительности.
+     *
+     * @param elapsedNanos Общее время воспроизведения в наносекундах.
+     * @return Строка итога.
+     */
+    public String summary(long elapsedNanos) {
+        List<Long> sorted;
+        synchronized (this.latencies) {
+            sorted = new ArrayList<>(this.latencies);
+        }
+        Collections.sort(sorted);
+        StringBuilder text = new StringBuilder()
+                .append("requests=").append(sorted.size())
+                .append(" failed=").append(this.failed.get())
+                .append(" elapsed_ms=").append(elapsedNanos / 1_000_000);
+        if (!sorted.isEmpty()) {
+            text.append(" p50_us=").append(sorted.get(sorted.size() / 2) / 1000)
+                    .append(" p99_us=").append(sorted.get(Math.min(sorted.size() - 1, sorted.size() * 99 / 100)) / 1000)
+                    .append(" max_us=").append(sorted.get(sorted.size() - 1) / 1000);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Соединение воспроизведения: отправка данных журнала и чтение ответов в отдельном потоке.
+     */
+    private class Connection {
+
+        /** Сокет соединения. */
+        final Socket socket;
+
+        /** Поток отправки. */
+        final OutputStream out;
+
+        /** Время отправки BeginRequest по идентификаторам запросов, ожидающих ответа. */
+        final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+
+        /** Разбор отправляемых данных для поиска записей BeginRequest. */
+        final FCGIDecoder sent = new FCGIDecoder(new FCGIRecordListener() {
+            @Override
+            public void onBeginRequest(int requestId, int role, int flags) {
+                Connection.this.pending.put(requestId, System.nanoTime());
+            }
+        });
+
+        /** Поток чтения ответов. */
+        final Thread reader;
+
+        /** Флаг закрытия соединения после получения всех ответов. */
+        volatile boolean closing;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            this.reader = new Thread(this::readResponses, "fcgi-replay-reader");
+            this.reader.setDaemon(true);
+            this.reader.start();
+            FCGIReplay.this.opened.add(this);
+        }
+
+        /**
+         * Отправляет входящие данные журнала.
+         *
+         * @param data Данные.
+         */
+        void send(byte[] data) {
+            this.sent.decode(ByteBuffer.wrap(data));
+            try {
+                this.out.write(data);
+            } catch (IOException e) {
+                this.close();
+            }
+        }
+
+        /**
+         * Закрывает соединение, как только на все отправленные запросы будут получены ответы.
+         */
+        void closeWhenIdle() {
+            this.closing = true;
+            if (this.pending.isEmpty()) {
+                this.close();
+            }
+        }
+
+        /**
+         * Читает ответы приложения и измеряет длительность запросов.
+         */
+        void readResponses() {
+            FCGIDecoder received = new FCGIDecoder(new FCGIRecordListener() {
+                @Override
+                public void onEndRequest(int requestId, int appStatus, int protocolStatus) {
+                    Long start = Connection.this.pending.remove(requestId);
+                    if (start != null) {
+                        FCGIReplay.this.latencies.add(System.nanoTime() - start);
+                    }
+                }
+            });
+            byte[] buf = new byte[65536];
+            try {
+                InputStream in = this.socket.getInputStream();
+                int count;
+                while ((count = in.read(buf)) > 0) {
+                    if (received.decode(ByteBuffer.wrap(buf, 0, count)) < 0) {
+                        break;
+                    }
+                    if (this.closing && this.pending.isEmpty()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Соединение закрыто
+            }
+            this.close();
+        }
+
+        /**
+         * Закрывает соединение; запросы без ответа учитываются как неудачные.
+         */
+        synchronized void close() {
+            if (this.socket.isClosed()) {
+                return;
+            }
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Соединение уже разорвано
+            }
+            FCGIReplay.this.failed.addAndGet(this.pending.size());
+            this.pending.clear();
+        }
+    }
+}
@@ -16,6 +16,9 @@ public class FCGIRequest {
     /** Сокет, через который происходит соединение с FastCGI сервером. */
     public Socket socket;
 
+    /** Размер буферов записей stdin, stdout и stderr соединения в байтах. */
+    public int bufferSize = 8192;
+
     /** Флаг, указывающий, был ли начат процесс обработки запроса. */
     public boolean isBeginProcessed;
 
@@ -31,12 +34,21 @@ public class FCGIRequest {
     /** Статус завершения обработки запроса (например, успех или ошибка). */
     public int appStatus;
 
+    /** Статус протокола в записи EndRequest: {@link FCGIGlobalDefs#def_FCGIRequestComplete} или, например, {@link FCGIGlobalDefs#def_FCGIOverload}. */
+    public int protocolStatus;
+
     /** Количество потоков, которые используют этот запрос для записи данных. */
     public int numWriters;
 
     /** Поток для чтения входящих данных FastCGI (stdin). */
     public FCGIInputStream inStream;
 
+    /** Номер соединения в журнале {@link FCGICapture}; 0, если трафик не записывается. */
+    public int connectionId;
+
+    /** Общий поток записи в соединение для stdout, stderr и ответов на записи управления. */
+    public FCGIConnectionWriter writer;
+
     /** Поток для записи выходных данных FastCGI (stdout). */
     public FCGIOutputStream outStream;
 
@@ -46,6 +58,33 @@ public class FCGIRequest {
     /** Параметры запроса (например, заголовки HTTP-запроса). */
     public Properties params;
 
+    /** Тайм-аут текущей фазы чтения запроса (см. {@link FCGIReaper}) или {@code null}. */
+    public volatile FCGITimingWheel.Timeout deadline;
+
+    /** Время начала запроса ({@link System#nanoTime()}) для {@link FCGIStats} или 0, если запрос не учитывается. */
+    public long startNanos;
+
+    /** Процессорное время, израсходованное на запрос, в наносекундах (см. {@link FCGIAccounting}). */
+    public long cpuNanos;
+
+    /** Объем памяти, выделенной при обработке запроса, в байтах (см. {@link FCGIAccounting}). */
+    public long allocatedBytes;
+
+    /** Количество байт, прочитанных из соединения за время запроса. */
+    public long bytesIn;
+
+    /** Количество байт, записанных в соединение за время запроса. */
+    public long bytesOut;
+
+    /** Память, учтенная в {@link FCGIMemoryBudget} за время запроса, в байтах. */
+    public long reservedBytes;
+
+    /** Память соединения (буфер чтения), учтенная в {@link FCGIMemoryBudget}, в байтах. */
+    public long connectionBytes;
+
+    /** Событие JFR текущего запроса или {@code null}, если событие не записывается. */
+    public FCGIRequestEvent event;
+
     /**
      * Конструктор по умолчанию. Создаёт новый запрос FastCGI с пустыми полями.
      * После создания объект должен быть инициализирован в процессе приёма и обработки запроса.
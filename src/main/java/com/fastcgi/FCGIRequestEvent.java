@@ -0,0 +1,98 @@
+package com.fastcgi;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Событие JDK Flight Recorder {@code com.fastcgi.FastCGIRequest} — один запрос FastCGI от получения записи
+ * BeginRequest до записи EndRequest или закрытия соединения. Длительность события совпадает
+ * с длительностью запроса, поэтому в записи JFR медленные запросы видны рядом со сборками мусора,
+ * ожиданием блокировок и другими событиями JVM.
+ * <p>
+ * Объект события создается, только если событие включено в активной записи; иначе учет запроса
+ * сводится к одной проверке.
+ */
+@Name("com.fastcgi.FastCGIRequest")
+@Label("FastCGI Request")
+@Category("FastCGI")
+@Description("Обработка одного запроса FastCGI")
+public class FCGIRequestEvent extends Event {
+
+    /** Тип события для проверки, включено ли оно. */
+    private static final EventType TYPE = EventType.getEventType(FCGIRequestEvent.class);
+
+    /** Роль приложения FastCGI. */
+    @Label("Role")
+    public String role;
+
+    /** Идентификатор запроса FastCGI. */
+    @Label("Request ID")
+    public int requestId;
+
+    /** Значение параметра SCRIPT_NAME. */
+    @Label("Script Name")
+    public String scriptName;
+
+    /** Количество байт, прочитанных из соединения за время запроса. */
+    @Label("Bytes In")
+    @DataAmount
+    public long bytesIn;
+
+    /** Количество байт, записанных в соединение за время запроса. */
+    @Label("Bytes Out")
+    @DataAmount
+    public long bytesOut;
+
+    /** Статус завершения приложения. */
+    @Label("Application Status")
+    public int appStatus;
+
+    /** {@code true}, если запрос завершен записью EndRequest; {@code false}, если соединение закрыто раньше. */
+    @Label("Completed")
+    public boolean completed;
+
+    /**
+     * Начинает событие запроса, если оно включено.
+     *
+     * @param request Запрос, для которого получена запись BeginRequest.
+     */
+    static void begin(FCGIRequest request) {
+        if (!TYPE.isEnabled()) {
+            request.event = null;
+            return;
+        }
+        FCGIRequestEvent event = new FCGIRequestEvent();
+        event.begin();
+        request.event = event;
+    }
+
+    /**
+     * Завершает и записывает событие запроса. Повторный вызов для того же запроса ничего не делает.
+     *
+     * @param request Запрос.
+     * @param completed {@code true}, если запрос завершен записью EndRequest.
+     */
+    static void end(FCGIRequest request, boolean completed) {
+        FCGIRequestEvent event = request.event;
+        if (event == null) {
+            return;
+        }
+        request.event = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.role = request.params != null ? request.params.getProperty("ROLE") : null;
+            event.requestId = request.requestID;
+            event.scriptName = request.params != null ? request.params.getProperty("SCRIPT_NAME") : null;
+            event.bytesIn = request.bytesIn;
+            event.bytesOut = request.bytesOut;
+            event.appStatus = request.appStatus;
+            event.completed = completed;
+            event.commit();
+        }
+    }
+}
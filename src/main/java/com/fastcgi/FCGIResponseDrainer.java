@@ -0,0 +1,175 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Класс FCGIResponseDrainer отправляет в соединения готовые ответы, записанные целиком в память
+ * (см. {@link FCGIConnectionWriter#defer(int)}), без участия потоков пула. Если веб-сервер читает ответ
+ * медленно, его остаток дописывается одним потоком селектора, а поток пула сразу переходит к следующему
+ * запросу. Соединение на время отправки переводится в неблокирующий режим; после отправки оно
+ * возвращается в блокирующий режим, и задача завершения передается исполнителю.
+ * <p>
+ * Если соединение закрыто во время отправки (например, по тайм-ауту {@link FCGIReaper#PHASE_DRAIN}),
+ * его ключ становится недействительным; после {@link #wakeup()} поток селектора снимает такой ответ
+ * и выполняет его задачу ошибки.
+ */
+public class FCGIResponseDrainer implements Runnable {
+
+    /**
+     * Отправляемый ответ.
+     *
+     * @param channel Канал соединения.
+     * @param data Неотправленные данные.
+     * @param onDone Задача, выполняемая после отправки всех данных.
+     * @param onFailure Задача, выполняемая при ошибке отправки.
+     */
+    private record Drain(SocketChannel channel, ByteBuffer data, Runnable onDone, Runnable onFailure) {
+    }
+
+    /** Селектор, в котором зарегистрированы соединения с неотправленными данными. */
+    private final Selector selector;
+
+    /** Ответы, ожидающие регистрации в селекторе. */
+    private final ConcurrentLinkedQueue<Drain> pending = new ConcurrentLinkedQueue<>();
+
+    /** Ключи отправляемых ответов; используются только потоком селектора. */
+    private final Set<SelectionKey> active = new HashSet<>();
+
+    /** Исполнитель задач завершения. */
+    private final Executor executor;
+
+    /**
+     * Конструктор класса FCGIResponseDrainer. Поток селектора запускается методом {@link #start(Executor)}.
+     *
+     * @param executor Исполнитель задач завершения.
+     * @throws IOException Если селектор не удалось открыть.
+     */
+    private FCGIResponseDrainer(Executor executor) throws IOException {
+        this.selector = Selector.open();
+        this.executor = executor;
+    }
+
+    /**
+     * Создает поток отправки ответов и запускает его.
+     *
+     * @param executor Исполнитель задач завершения.
+     * @return Поток отправки ответов.
+     * @throws IOException Если селектор не удалось открыть.
+     */
+    public static FCGIResponseDrainer start(Executor executor) throws IOException {
+        FCGIResponseDrainer drainer = new FCGIResponseDrainer(executor);
+        Thread thread = new Thread(drainer, "fcgi-response-drainer");
+        thread.setDaemon(true);
+        thread.start();
+        return drainer;
+    }
+
+    /**
+     * Отправляет данные в соединение. Сначала данные записываются без ожидания в вызывающем потоке;
+     * если соединение принимает их целиком, {@code onDone} выполняется сразу в этом же потоке,
+     * иначе остаток дописывается потоком селектора.
+     *
+     * @param channel Канал соединения в блокирующем режиме.
+     * @param data Данные.
+     * @param onDone Задача, выполняемая после отправки всех данных.
+     * @param onFailure Задача, выполняемая при ошибке отправки.
+     */
+    public void drain(SocketChannel channel, ByteBuffer data, Runnable onDone, Runnable onFailure) {
+        try {
+            channel.configureBlocking(false);
+            channel.write(data);
+            if (!data.hasRemaining()) {
+                channel.configureBlocking(true);
+                onDone.run();
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            // В том числе IllegalBlockingModeException, если канал еще зарегистрирован в другом селекторе
+            onFailure.run();
+            return;
+        }
+        this.pending.add(new Drain(channel, data, onDone, onFailure));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Пробуждает поток селектора, чтобы он снял ответы, соединения которых были закрыты.
+     */
+    public void wakeup() {
+        this.selector.wakeup();
+    }
+
+    /**
+     * Цикл селектора: регистрирует новые ответы, дописывает данные в готовые к записи соединения
+     * и передает исполнителю задачи завершения.
+     */
+    public void run() {
+        List<SelectionKey> finished = new ArrayList<>();
+        while (this.selector.isOpen()) {
+            try {
+                Drain entry;
+                while ((entry = this.pending.poll()) != null) {
+                    try {
+                        this.active.add(entry.channel().register(this.selector, SelectionKey.OP_WRITE, entry));
+                    } catch (ClosedChannelException | RuntimeException e) {
+                        this.executor.execute(entry.onFailure());
+                    }
+                }
+
+                this.selector.select();
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    Drain drain = (Drain) key.attachment();
+                    try {
+                        drain.channel().write(drain.data());
+                        if (drain.data().hasRemaining()) {
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        // Ошибка обрабатывается задачей завершения
+                    }
+                    key.cancel();
+                    finished.add(key);
+                }
+                this.selector.selectedKeys().clear();
+                // Ключи закрытых соединений снимаются селектором молча и в выбранные ключи не попадают
+                for (SelectionKey key : this.active) {
+                    if (!key.isValid() && !finished.contains(key)) {
+                        finished.add(key);
+                    }
+                }
+                this.active.removeAll(finished);
+                if (finished.isEmpty()) {
+                    continue;
+                }
+                // Снимаем отмененные ключи, иначе канал нельзя вернуть в блокирующий режим
+                this.selector.selectNow();
+                this.selector.selectedKeys().clear();
+
+                for (SelectionKey key : finished) {
+                    Drain drain = (Drain) key.attachment();
+                    boolean sent = !drain.data().hasRemaining();
+                    try {
+                        drain.channel().configureBlocking(true);
+                    } catch (IOException | RuntimeException e) {
+                        sent = false;
+                    }
+                    this.executor.execute(sent ? drain.onDone() : drain.onFailure());
+                }
+                finished.clear();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.fastcgi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Класс FCGIResponseWriter формирует ответ CGI без {@link java.io.PrintStream}: строки и числа
+ * кодируются прямо в буфер записи {@link FCGIOutputStream}, минуя кодировщик кодировки и промежуточные
+ * буферы. Символы ASCII записываются по одному байту, остальные — в UTF-8. Строки заголовков
+ * {@code Status}, {@code Content-Type} и {@code Content-Length} закодированы заранее.
+ * <p>
+ * Если ответ сжимается ({@link FCGICompressingOutputStream}) или записывается в произвольный поток,
+ * данные накапливаются в собственном буфере писателя и передаются потоку целыми блоками.
+ * В режиме {@link FCGIInterface#FCGIaccept()} писатель текущего запроса возвращает
+ * {@link FCGIInterface#getResponseWriter()}; смешивать его с {@code System.out} в одном ответе нельзя.
+ */
+public class FCGIResponseWriter extends OutputStream {
+
+    /** Максимальная длина кодировки одного символа в UTF-8. */
+    private static final int MAX_CHAR_BYTES = 4;
+
+    /** Максимальное количество символов в десятичной записи числа long. */
+    private static final int MAX_LONG_CHARS = 20;
+
+    /** Строки заголовка Status по кодам ответа. */
+    private static final byte[][] STATUS = new byte[600][];
+
+    /** Заранее закодированные строки заголовка Content-Type. */
+    private static final Map<String, byte[]> CONTENT_TYPES = new ConcurrentHashMap<>();
+
+    /** Максимальное количество запоминаемых строк Content-Type. */
+    private static final int MAX_CONTENT_TYPES = 64;
+
+    /** Начало строки заголовка Content-Length. */
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+
+    /** Разделитель имени и значения заголовка. */
+    private static final byte[] COLON = ascii(": ");
+
+    /** Конец строки. */
+    private static final byte[] CRLF = ascii("\r\n");
+
+    static {
+        for (String line : new String[]{
+                "200 OK", "201 Created", "202 Accepted", "204 No Content", "206 Partial Content",
+                "301 Moved Permanently", "302 Found", "303 See Other", "304 Not Modified", "307 Temporary Redirect", "308 Permanent Redirect",
+                "400 Bad Request", "401 Unauthorized", "403 Forbidden", "404 Not Found", "405 Method Not Allowed", "409 Conflict",
+                "410 Gone", "413 Content Too Large", "415 Unsupported Media Type", "429 Too Many Requests",
+                "500 Internal Server Error", "501 Not Implemented", "502 Bad Gateway", "503 Service Unavailable", "504 Gateway Timeout"}) {
+            STATUS[Integer.parseInt(line.substring(0, 3))] = ascii("Status: " + line + "\r\n");
+        }
+        for (String type : new String[]{"text/html; charset=utf-8", "text/plain; charset=utf-8", "application/json",
+                "text/html", "text/plain", "application/octet-stream"}) {
+            CONTENT_TYPES.put(type, ascii("Content-Type: " + type + "\r\n"));
+        }
+    }
+
+    /** Поток stdout запроса, в буфер которого пишутся данные, или {@code null}. */
+    private final FCGIOutputStream direct;
+
+    /** Поток, в который передается собственный буфер, если {@link #direct} равен {@code null}. */
+    private final OutputStream out;
+
+    /** Текущий буфер записи: буфер {@link #direct} или собственный буфер. */
+    private byte[] buf;
+
+    /** Позиция записи в {@link #buf}. */
+    private int pos;
+
+    /** Граница записи в {@link #buf}. */
+    private int limit;
+
+    /**
+     * Конструктор класса FCGIResponseWriter.
+     *
+     * @param out Поток ответа: stdout запроса ({@link FCGIOutputStream}) или любой другой поток.
+     */
+    public FCGIResponseWriter(OutputStream out) {
+        this.out = out;
+        this.direct = out instanceof FCGIOutputStream stream ? stream : null;
+        if (this.direct == null) {
+            this.buf = new byte[8192];
+            this.limit = this.buf.length;
+        }
+    }
+
+    /**
+     * Кодирует строку ASCII.
+     *
+     * @param s Строка.
+     * @return Байты строки.
+     */
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Записывает строку заголовка Status.
+     *
+     * @param code Код ответа HTTP.
+     * @return Этот писатель.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public FCGIResponseWriter status(int code) throws IOException {
+        byte[] line = code >= 0 && code < STATUS.length ? STATUS[code] : null;
+        if (line != null) {
+            this.write(line, 0, line.length);
+            return this;
+        }
+        return this.header("Status", Integer.toString(code));
+    }
+
+    /**
+     * Записывает строку заголовка Content-Type. Строки для часто используемых типов кодируются один раз.
+     *
+     * @param type Тип содержимого.
+     * @return Этот писатель.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public FCGIResponseWriter contentType(String type) throws IOException {
+        byte[] line = CONTENT_TYPES.get(type);
+        if (line == null) {
+            line = ("Content-Type: " + type + "\r\n").getBytes(StandardCharsets.UTF_8);
+            if (CONTENT_TYPES.size() < MAX_CONTENT_TYPES) {
+                CONTENT_TYPES.put(type, line);
+            }
+        }
+        this.write(line, 0, line.length);
+        return this;
+    }
+
+    /**
+     * Записывает строку заголовка Content-Length.
+     *
+     * @param length Длина тела ответа в байтах.
+     * @return Этот писатель.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public FCGIResponseWriter contentLength(long length) throws IOException {
+        this.write(CONTENT_LENGTH, 0, CONTENT_LENGTH.length);
+        this.print(length);
+        this.write(CRLF, 0, CRLF.length);
+        return this;
+    }
+
+    /**
+     * Записывает строку заголовка.
+     *
+     * @param name Имя заголовка.
+     * @param value Значение заголовка.
+     * @return Этот писатель.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public FCGIResponseWriter header(CharSequence name, CharSequence value) throws IOException {
+        this.print(name);
+        this.write(COLON, 0, COLON.length);
+        this.print(value);
+        this.write(CRLF, 0, CRLF.length);
+        return this;
+    }
+
+    /**
+     * Завершает заголовки ответа пустой строкой.
+     *
+     * @return Этот писатель.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public FCGIResponseWriter endHeaders() throws IOException {
+        this.write(CRLF, 0, CRLF.length);
+        return this;
+    }
+
+    /**
+     * Записывает строку: символы ASCII — по одному байту, остальные — в UTF-8.
+     *
+     * @param s Строка.
+     * @return Этот писатель.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public FCGIResponseWriter print(CharSequence s) throws IOException {
+        synchronized (this.lock()) {
+            this.load();
+            int n = s.length();
+            int i = 0;
+            while (i < n) {
+                if (this.limit - this.pos < MAX_CHAR_BYTES) {
+                    this.spill(MAX_CHAR_BYTES);
+                }
+                byte[] b = this.buf;
+                int p = this.pos;
+                // Символы ASCII копируются без проверок до конца строки или буфера
+                int end = Math.min(n, i + (this.limit - p - MAX_CHAR_BYTES + 1));
+                char c;
+                while (i < end && (c = s.charAt(i)) < 0x80) {
+                    b[p++] = (byte) c;
+                    ++i;
+                }
+                if (i < end) {
+                    c = s.charAt(i++);
+                    if (c < 0x800) {
+                        b[p++] = (byte) (0xC0 | c >> 6);
+                        b[p++] = (byte) (0x80 | c & 0x3F);
+                    } else if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(s.charAt(i))) {
+                        int cp = Character.toCodePoint(c, s.charAt(i++));
+                        b[p++] = (byte) (0xF0 | cp >> 18);
+                        b[p++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                        b[p++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                        b[p++] = (byte) (0x80 | cp & 0x3F);
+                    } else if (Character.isSurrogate(c)) {
+                        b[p++] = '?';
+                    } else {
+                        b[p++] = (byte) (0xE0 | c >> 12);
+                        b[p++] = (byte) (0x80 | c >> 6 & 0x3F);
+                        b[p++] = (byte) (0x80 | c & 0x3F);
+                    }
+                }
+                this.pos = p;
+            }
+            this.store();
+        }
+        return this;
+    }
+
+    /**
+     * Записывает число в десятичной записи.
+     *
+     * @param value Число.
+     * @return Этот писатель.
+     * @throws IOException Если данные не удалось отправить.
+     */
+    public FCGIResponseWriter print(long value) throws IOException {
+        synchronized (this.lock()) {
+            this.load();
+            if (this.limit - this.pos < MAX_LONG_CHARS) {
+                this.spill(MAX_LONG_CHARS);
+            }
+            byte[] b = this.buf;
+            if (value == Long.MIN_VALUE) {
+                byte[] min = ascii(Long.toString(value));
+                System.arraycopy(min, 0, b, this.pos, min.length);
+                this.pos += min.length;
+            } else {
+                if (value < 0) {
+                    b[this.pos++] = '-';
+                    value = -value;
+                }
+                int digits = 1;
+                for (long rest = value / 10; rest != 0; rest /= 10) {
+                    ++digits;
+                }
+                int p = this.pos + digits;
+                this.pos = p;
+                do {
+                    b[--p] = (byte) ('0' + value % 10);
+                    value /= 10;
+                } while (value != 0);
+            }
+            this.store();
+        }
+        return this;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        synchronized (this.lock()) {
+            this.load();
+            if (this.pos == this.limit) {
+                this.spill(1);
+            }
+            this.buf[this.pos++] = (byte) c;
+            this.store();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.direct != null) {
+            // Поток stdout сам копирует данные в буфер записи
+            this.direct.write(b, off, len);
+            return;
+        }
+        if (len >= this.buf.length) {
+            this.flushBuffer();
+            this.out.write(b, off, len);
+            return;
+        }
+        if (this.limit - this.pos < len) {
+            this.flushBuffer();
+        }
+        System.arraycopy(b, off, this.buf, this.pos, len);
+        this.pos += len;
+    }
+
+    /**
+     * Отправляет накопленные данные. Для stdout запроса действует политика сброса {@link FCGIFlushPolicy}.
+     *
+     * @throws IOException Если данные не удалось отправить.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.direct != null) {
+            this.direct.flush();
+            return;
+        }
+        this.flushBuffer();
+        this.out.flush();
+    }
+
+    /**
+     * Отправляет накопленные данные и закрывает поток ответа.
+     *
+     * @throws IOException Если данные не удалось отправить.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.direct == null) {
+            this.flushBuffer();
+        }
+        this.out.close();
+    }
+
+    /**
+     * Передает накопленные данные потоку ответа без его сброса, чтобы не прерывать сжатие.
+     *
+     * @throws IOException Если данные не удалось отправить.
+     */
+    void finish() throws IOException {
+        if (this.direct == null) {
+            this.flushBuffer();
+        }
+    }
+
+    /**
+     * Возвращает объект блокировки: записи в буфер stdout синхронизируются с самим потоком.
+     *
+     * @return Объект блокировки.
+     */
+    private Object lock() {
+        return this.direct != null ? this.direct : this;
+    }
+
+    /**
+     * Загружает буфер и позицию записи потока stdout.
+     */
+    private void load() {
+        if (this.direct != null) {
+            this.buf = this.direct.buff;
+            this.pos = this.direct.wrNext;
+            this.limit = this.direct.stop;
+        }
+    }
+
+    /**
+     * Сохраняет позицию записи в потоке stdout.
+     */
+    private void store() {
+        if (this.direct != null) {
+            this.direct.wrNext = this.pos;
+        }
+    }
+
+    /**
+     * Освобождает буфер, чтобы в нем поместилось не менее {@code needed} байт.
+     *
+     * @param needed Необходимое свободное место.
+     * @throws IOException Если данные не удалось отправить или поток закрыт.
+     */
+    private void spill(int needed) throws IOException {
+        if (this.direct == null) {
+            this.flushBuffer();
+            return;
+        }
+        this.store();
+        if (this.direct.isClosed) {
+            throw new EOFException();
+        }
+        this.direct.empty(false);
+        this.load();
+        if (this.direct.isClosed || this.limit - this.pos < needed) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Передает собственный буфер потоку.
+     *
+     * @throws IOException Если данные не удалось отправить.
+     */
+    private void flushBuffer() throws IOException {
+        if (this.pos > 0) {
+            this.out.write(this.buf, 0, this.pos);
+            this.pos = 0;
+        }
+    }
+}
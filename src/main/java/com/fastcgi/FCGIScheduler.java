@@ -0,0 +1,269 @@
+package com.fastcgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Класс FCGIScheduler распределяет обработку запросов между потоками по классам приоритета.
+ * Класс запроса определяется правилами по роли FastCGI ({@code request.role}) и префиксу параметра
+ * {@code SCRIPT_NAME}; запрос с меньшим номером класса всегда выбирается из очереди раньше.
+ * Так, запросы AUTHORIZER, от которых зависит каждая защищенная страница, не ждут за длинными
+ * запросами RESPONDER.
+ * <p>
+ * Правила задаются свойством {@code FCGI_PRIORITY_RULES} в виде списка {@code условие=класс} через запятую,
+ * где условие — имя роли ({@code RESPONDER}, {@code AUTHORIZER}, {@code FILTER}), префикс SCRIPT_NAME,
+ * начинающийся с {@code /}, или {@code *} для всех остальных запросов, а класс — число от 0 до {@link #MAX_CLASS}.
+ * Применяется первое подходящее правило.
+ * Для каждого класса учитываются длина очереди, число выполненных запросов и время ожидания в очереди;
+ * они доступны методами планировщика и публикуются в блоках классов {@link FCGIStats#PRIORITY_BASE}.
+ */
+public class FCGIScheduler {
+
+    /** Максимальный номер класса приоритета. */
+    public static final int MAX_CLASS = 255;
+
+    /** Имена ролей, допустимые в условиях правил. */
+    private static final List<String> ROLES = List.of("RESPONDER", "AUTHORIZER", "FILTER");
+
+    /**
+     * Правило классификации.
+     *
+     * @param condition Имя роли или префикс SCRIPT_NAME.
+     * @param cls Класс приоритета.
+     */
+    private record Rule(String condition, int cls) {
+    }
+
+    /** Правила в порядке применения. */
+    private final List<Rule> rules = new ArrayList<>();
+
+    /** Класс приоритета для запросов, не подходящих ни под одно правило. */
+    private final int defaultClass;
+
+    /** Количество классов приоритета. */
+    public final int classes;
+
+    /** Очередь ожидающих задач, упорядоченная по классу и времени поступления. */
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+
+    /** Порядковый номер задачи для сохранения порядка внутри класса. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Длина очереди по классам. */
+    private final AtomicLongArray queued;
+
+    /** Количество выполненных задач по классам. */
+    private final AtomicLongArray completed;
+
+    /** Суммарное время ожидания в очереди по классам, в наносекундах. */
+    private final AtomicLongArray totalWaitNanos;
+
+    /** Максимальное время ожидания в очереди по классам, в наносекундах. */
+    private final AtomicLongArray maxWaitNanos;
+
+    /** Флаг запуска потоков обработки. */
+    private boolean started;
+
+    /**
+     * Конструктор класса FCGIScheduler. Потоки обработки запускаются методом {@link #start(int)}.
+     *
+     * @param spec Правила в формате {@code FCGI_PRIORITY_RULES}; {@code null} означает {@code AUTHORIZER=0,*=1}.
+     * @throws IllegalArgumentException Если правило некорректно.
+     */
+    public FCGIScheduler(String spec) {
+        int maxClass = 0;
+        int fallback = -1;
+        for (String item : (spec == null || spec.isBlank() ? "AUTHORIZER=0,*=1" : spec).split(",")) {
+            if (item.isBlank()) {
+                continue;
+            }
+            int eq = item.lastIndexOf('=');
+            String condition = eq < 0 ? "" : item.substring(0, eq).trim();
+            if (condition.isEmpty()) {
+                throw new IllegalArgumentException("Некорректное правило приоритета: " + item.trim());
+            }
+            if (!condition.equals("*") && !condition.startsWith("/") && !ROLES.contains(condition.toUpperCase())) {
+                throw new IllegalArgumentException("Неизвестное условие правила приоритета: " + item.trim());
+            }
+            int cls;
+            try {
+                cls = Integer.parseInt(item.substring(eq + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Некорректный класс правила приоритета: " + item.trim(), e);
+            }
+            if (cls < 0 || cls > MAX_CLASS) {
+                throw new IllegalArgumentException("Класс правила приоритета должен быть от 0 до " + MAX_CLASS + ": " + item.trim());
+            }
+            maxClass = Math.max(maxClass, cls);
+            if (condition.equals("*")) {
+                fallback = fallback < 0 ? cls : fallback;
+            } else {
+                this.rules.add(new Rule(condition, cls));
+            }
+        }
+        this.defaultClass = fallback >= 0 ? fallback : maxClass + 1;
+        this.classes = Math.max(maxClass, this.defaultClass) + 1;
+        this.queued = new AtomicLongArray(this.classes);
+        this.completed = new AtomicLongArray(this.classes);
+        this.totalWaitNanos = new AtomicLongArray(this.classes);
+        this.maxWaitNanos = new AtomicLongArray(this.classes);
+    }
+
+    /**
+     * Запускает потоки обработки. Повторный вызов ничего не делает.
+     *
+     * @param threads Количество потоков обработки.
+     * @return Этот планировщик.
+     */
+    public synchronized FCGIScheduler start(int threads) {
+        if (this.started) {
+            return this;
+        }
+        this.started = true;
+        AtomicInteger counter = new AtomicInteger();
+        for (int i = 0; i < threads; ++i) {
+            Thread thread = new Thread(this::runWorker, "fcgi-scheduler-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Определяет класс приоритета запроса.
+     *
+     * @param request Запрос с прочитанными параметрами.
+     * @return Номер класса; меньший номер означает более высокий приоритет.
+     */
+    public int classify(FCGIRequest request) {
+        String role = request.params.getProperty("ROLE");
+        String script = request.params.getProperty("SCRIPT_NAME");
+        for (Rule rule : this.rules) {
+            boolean matches = rule.condition().startsWith("/")
+                    ? script != null && script.startsWith(rule.condition())
+                    : rule.condition().equalsIgnoreCase(role);
+            if (matches) {
+                return rule.cls();
+            }
+        }
+        return this.defaultClass;
+    }
+
+    /**
+     * Ставит обработку запроса в очередь его класса приоритета.
+     *
+     * @param request Запрос с прочитанными параметрами.
+     * @param task Задача обработки запроса.
+     */
+    public void submit(FCGIRequest request, Runnable task) {
+        int cls = this.classify(request);
+        this.queued.incrementAndGet(cls);
+        FCGIStats.add(FCGIStats.QUEUED, 1);
+        FCGIStats.add(FCGIStats.priority(cls), 1);
+        this.queue.add(new Task(cls, this.sequence.getAndIncrement(), System.nanoTime(), task));
+    }
+
+    /**
+     * Цикл потока обработки: выбирает из очереди задачу с наивысшим приоритетом и выполняет ее.
+     */
+    private void runWorker() {
+        while (true) {
+            Task task;
+            try {
+                task = this.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long wait = System.nanoTime() - task.enqueuedAt;
+            int slot = FCGIStats.priority(task.cls);
+            this.queued.decrementAndGet(task.cls);
+            FCGIStats.add(FCGIStats.QUEUED, -1);
+            FCGIStats.add(slot, -1);
+            this.totalWaitNanos.addAndGet(task.cls, wait);
+            this.maxWaitNanos.accumulateAndGet(task.cls, wait, Math::max);
+            FCGIStats.add(slot + 2, wait);
+            FCGIStats.max(slot + 3, wait);
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                // Ошибка одной задачи не должна останавливать поток обработки
+            }
+            this.completed.incrementAndGet(task.cls);
+            FCGIStats.add(slot + 1, 1);
+        }
+    }
+
+    /**
+     * Возвращает количество запросов класса, ожидающих в очереди.
+     *
+     * @param cls Номер класса.
+     * @return Длина очереди.
+     */
+    public long getQueued(int cls) {
+        return this.queued.get(cls);
+    }
+
+    /**
+     * Возвращает количество запросов класса, обработка которых завершена.
+     *
+     * @param cls Номер класса.
+     * @return Количество запросов.
+     */
+    public long getCompleted(int cls) {
+        return this.completed.get(cls);
+    }
+
+    /**
+     * Возвращает суммарное время ожидания запросов класса в очереди.
+     *
+     * @param cls Номер класса.
+     * @return Время ожидания в наносекундах.
+     */
+    public long getTotalWaitNanos(int cls) {
+        return this.totalWaitNanos.get(cls);
+    }
+
+    /**
+     * Возвращает максимальное время ожидания запроса класса в очереди.
+     *
+     * @param cls Номер класса.
+     * @return Время ожидания в наносекундах.
+     */
+    public long getMaxWaitNanos(int cls) {
+        return this.maxWaitNanos.get(cls);
+    }
+
+    /**
+     * Задача в очереди: класс приоритета, порядковый номер и время постановки в очередь.
+     */
+    private static final class Task implements Comparable<Task> {
+
+        /** Класс приоритета. */
+        final int cls;
+
+        /** Порядковый номер задачи. */
+        final long seq;
+
+        /** Время постановки в очередь ({@link System#nanoTime()}). */
+        final long enqueuedAt;
+
+        /** Задача обработки запроса. */
+        final Runnable runnable;
+
+        Task(int cls, long seq, long enqueuedAt, Runnable runnable) {
+            this.cls = cls;
+            this.seq = seq;
+            this.enqueuedAt = enqueuedAt;
+            this.runnable = runnable;
+        }
+
+        public int compareTo(Task other) {
+            return this.cls != other.cls ? Integer.compare(this.cls, other.cls) : Long.compare(this.seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,583 @@
+package com.fastcgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Класс FCGIServer обслуживает соединения FastCGI с помощью асинхронного обработчика {@link FCGIAsyncHandler}
+ * или потокового обработчика {@link FCGIStreamHandler}.
+ * В отличие от {@link FCGIInterface#FCGIaccept()}, каждое соединение имеет собственный объект {@link FCGIRequest},
+ * поэтому запросы разных соединений обрабатываются одновременно.
+ * <p>
+ * Потоки пула заняты только чтением запроса и записью ответа. Пока будущий ответ не завершен,
+ * поток не удерживается, а соединения, ожидающие следующего запроса, отслеживаются
+ * одним потоком {@link FCGIIdleSelector}.
+ */
+public class FCGIServer {
+
+    /**
+     * Максимальный объем ответа, который записывается в память и отправляется {@link FCGIResponseDrainer}
+     * без участия потока пула ({@code FCGI_ASYNC_DRAIN}, байт); 0 — ответ отправляется потоком пула.
+     */
+    static final int ASYNC_DRAIN_LIMIT = Integer.getInteger("FCGI_ASYNC_DRAIN", 0);
+
+    /** Размер блока, которым читается тело запроса сверх CONTENT_LENGTH, в байтах. */
+    static final int BODY_CHUNK = 8192;
+
+    /** Наибольший объем тела запроса, который можно прочитать в один массив, в байтах. */
+    private static final int MAX_BODY = Integer.MAX_VALUE - 8;
+
+    /** Ответ, отправляемый при исключительном завершении обработчика. */
+    private static final byte[] INTERNAL_ERROR = "Status: 500 Internal Server Error\r\nContent-Type: text/plain\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** Сокет сервера для приема соединений FastCGI. */
+    public ServerSocket srvSocket;
+
+    /** Пул потоков для чтения запросов и записи ответов. */
+    public ExecutorService workers;
+
+    /** Асинхронный обработчик запросов. */
+    public FCGIAsyncHandler handler;
+
+    /** Потоковый обработчик запросов; используется, если асинхронный обработчик равен {@code null}. */
+    public FCGIStreamHandler streamHandler;
+
+    /** Параметры по умолчанию, на основе которых создаются параметры каждого запроса. */
+    public Properties startupProps;
+
+    /**
+     * Планировщик, распределяющий вызовы обработчика по классам приоритета; {@code null} — вызов сразу после чтения запроса.
+     * Потоки планировщика запускаются {@link FCGIScheduler#start(int)}.
+     */
+    public FCGIScheduler scheduler;
+
+    /**
+     * Максимальное количество задач, ожидающих свободного потока пула {@link #workers}; при большем количестве новые
+     * соединения закрываются сразу после приема. 0 — без ограничения. Действует только для пулов
+     * {@link ThreadPoolExecutor} с очередью, то есть с фиксированным числом потоков.
+     */
+    public int queueLimit;
+
+    /** Размер буферов записей stdin, stdout и stderr принятых соединений в байтах. */
+    public int bufferSize = 8192;
+
+    /** Размер приемного буфера сокета принятых соединений; 0 — значение по умолчанию. */
+    public int receiveBufferSize;
+
+    /** Размер буфера отправки сокета принятых соединений; 0 — значение по умолчанию. */
+    public int sendBufferSize;
+
+    /** Селектор для соединений, ожидающих следующего запроса; создается при первом использовании. */
+    private FCGIIdleSelector idleSelector;
+
+    /** Поток отправки готовых ответов; создается при первом использовании. */
+    private FCGIResponseDrainer drainer;
+
+    /**
+     * Конструктор класса FCGIServer.
+     *
+     * @param srvSocket Открытый слушающий сокет.
+     * @param workers Пул потоков для чтения запросов и записи ответов.
+     * @param handler Асинхронный обработчик запросов или {@code null}, если задан {@link #streamHandler}.
+     */
+    public FCGIServer(ServerSocket srvSocket, ExecutorService workers, FCGIAsyncHandler handler) {
+        this.srvSocket = srvSocket;
+        this.workers = workers;
+        this.handler = handler;
+        this.startupProps = new Properties(System.getProperties());
+    }
+
+    /**
+     * Создает пул потоков для обслуживания соединений.
+     *
+     * @param threads Число потоков в виде строки; {@code null} или пустая строка означают пул,
+     *                расширяющийся по мере необходимости.
+     * @return Пул потоков.
+     */
+    public static ExecutorService newWorkerPool(String threads) {
+        return newWorkerPool(threads, "fcgi-worker-");
+    }
+
+    /**
+     * Создает пул потоков для обслуживания соединений с заданным префиксом имен потоков.
+     *
+     * @param threads Число потоков в виде строки; {@code null} или пустая строка означают пул,
+     *                расширяющийся по мере необходимости.
+     * @param prefix Префикс имен потоков.
+     * @return Пул потоков.
+     */
+    public static ExecutorService newWorkerPool(String threads, String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        if (threads == null || threads.isEmpty()) {
+            return Executors.newCachedThreadPool(factory);
+        }
+        return Executors.newFixedThreadPool(Integer.parseInt(threads), factory);
+    }
+
+    /**
+     * Принимает соединения, пока слушающий сокет открыт, и передает каждое из них пулу потоков.
+     * Если очередь пула длиннее {@link #queueLimit}, соединение закрывается без чтения запроса.
+     *
+     * @throws IOException Если произошла ошибка при приеме соединения.
+     */
+    public void serve() throws IOException {
+        while (!this.srvSocket.isClosed()) {
+            FCGIMemoryBudget.awaitAvailable();
+            Socket socket = this.srvSocket.accept();
+            FCGIStats.add(FCGIStats.CONNECTIONS, 1);
+            if (this.isSaturated()) {
+                FCGIStats.add(FCGIStats.REJECTED, 1);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Соединение уже разорвано
+                }
+                continue;
+            }
+            FCGIFlushPolicy.DEFAULT.applyTo(socket);
+            this.applyBufferSizes(socket);
+            FCGIRequest request = new FCGIRequest();
+            request.socket = socket;
+            request.bufferSize = this.bufferSize;
+            this.awaitRequest(request, true);
+        }
+    }
+
+    /**
+     * Проверяет, достигла ли очередь пула потоков ограничения {@link #queueLimit}.
+     *
+     * @return {@code true}, если новое соединение нужно отклонить.
+     */
+    private boolean isSaturated() {
+        return this.queueLimit > 0 && this.workers instanceof ThreadPoolExecutor pool && pool.getQueue().size() >= this.queueLimit;
+    }
+
+    /**
+     * Устанавливает размеры буферов сокета принятого соединения.
+     *
+     * @param socket Принятое соединение.
+     */
+    private void applyBufferSizes(Socket socket) {
+        try {
+            if (this.receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(this.receiveBufferSize);
+            }
+            if (this.sendBufferSize > 0) {
+                socket.setSendBufferSize(this.sendBufferSize);
+            }
+        } catch (SocketException e) {
+            // Параметр не поддерживается соединением
+        }
+    }
+
+    /**
+     * Передает соединение пулу потоков, как только в нем появится следующий запрос.
+     * Если данные уже прочитаны в буфер или соединение не поддерживает селектор,
+     * запрос читается сразу.
+     *
+     * @param request Запрос, связанный с соединением.
+     * @param isNewConnection {@code true}, если соединение только что принято.
+     */
+    void awaitRequest(FCGIRequest request, boolean isNewConnection) {
+        boolean buffered = request.inStream != null && request.inStream.rdNext < request.inStream.buffStop;
+        if (buffered || request.socket.getChannel() == null) {
+            this.workers.execute(() -> this.nextRequest(request, isNewConnection));
+            return;
+        }
+
+        // Время ожидания в селекторе ограничено так же, как ожидание BeginRequest при чтении. Ключ закрытого
+        // по тайм-ауту канала селектор может снять молча, поэтому соединение закрывает сам тайм-аут;
+        // соединение забирает либо селектор, либо тайм-аут, но не оба
+        AtomicBoolean claimed = new AtomicBoolean();
+        FCGITimingWheel.Timeout parked = FCGIReaper.arm(request, isNewConnection ? FCGIReaper.PHASE_HEADER : FCGIReaper.PHASE_IDLE, () -> {
+            if (claimed.compareAndSet(false, true)) {
+                this.closeConnection(request);
+            }
+        });
+        Runnable next = () -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            if (parked != null) {
+                parked.cancel();
+            }
+            this.nextRequest(request, isNewConnection);
+        };
+
+        try {
+            this.idleSelector().park(request.socket.getChannel(), next);
+        } catch (IOException e) {
+            if (claimed.compareAndSet(false, true)) {
+                if (parked != null) {
+                    parked.cancel();
+                }
+                this.closeConnection(request);
+            }
+        }
+    }
+
+    /**
+     * Возвращает селектор для ожидающих соединений, создавая его при первом вызове.
+     *
+     * @return Селектор ожидающих соединений.
+     * @throws IOException Если селектор не удалось открыть.
+     */
+    private synchronized FCGIIdleSelector idleSelector() throws IOException {
+        if (this.idleSelector == null) {
+            this.idleSelector = FCGIIdleSelector.start(this.workers);
+        }
+        return this.idleSelector;
+    }
+
+    /**
+     * Возвращает поток отправки готовых ответов, создавая его при первом вызове.
+     *
+     * @return Поток отправки ответов.
+     * @throws IOException Если селектор не удалось открыть.
+     */
+    private synchronized FCGIResponseDrainer drainer() throws IOException {
+        if (this.drainer == null) {
+            this.drainer = FCGIResponseDrainer.start(this.workers);
+        }
+        return this.drainer;
+    }
+
+    /**
+     * Читает очередной запрос соединения и передает его обработчику. Для асинхронного обработчика
+     * тело читается целиком заранее; потоковому обработчику оно передается издателем.
+     * Ответ отправляется в пуле потоков после завершения будущего результата.
+     *
+     * @param request Запрос, связанный с соединением.
+     * @param isNewConnection {@code true}, если соединение только что принято.
+     */
+    void nextRequest(FCGIRequest request, boolean isNewConnection) {
+        long cpu = FCGIAccounting.cpuTime();
+        long allocated = FCGIAccounting.allocated();
+        byte[] body;
+        try {
+            int begun = FCGIInterface.beginRequest(request, isNewConnection, this.startupProps);
+            if (begun == 2) {
+                // Запрос сверх ограничения частоты завершается заранее закодированным ответом без вызова обработчика
+                FCGIAccounting.charge(request, cpu, allocated);
+                this.completeRequest(request, request.outStream, FCGIRateLimiter.RESPONSE, null);
+                return;
+            }
+            if (begun == 3) {
+                FCGIAccounting.charge(request, cpu, allocated);
+                this.overload(request);
+                return;
+            }
+            if (begun != 0) {
+                this.closeConnection(request);
+                return;
+            }
+            if (this.handler == null) {
+                FCGIAccounting.charge(request, cpu, allocated);
+                this.dispatch(request, () -> this.dispatchStream(request));
+                return;
+            }
+            body = readBody(request);
+            if (body == null) {
+                FCGIAccounting.charge(request, cpu, allocated);
+                this.overload(request);
+                return;
+            }
+        } catch (IOException e) {
+            this.closeConnection(request);
+            return;
+        }
+
+        if (request.inStream.getFCGIError() != 0 || request.inStream.getException() != null) {
+            this.closeConnection(request);
+            return;
+        }
+
+        FCGIAccounting.charge(request, cpu, allocated);
+        this.dispatch(request, () -> this.invokeHandler(request, body));
+    }
+
+    /**
+     * Читает тело запроса в память для асинхронного обработчика, учитывая его в бюджете памяти до чтения.
+     * CONTENT_LENGTH байт учитываются заранее и читаются одним массивом. Данные сверх CONTENT_LENGTH, в том числе
+     * все тело, если параметр не задан (веб-сервер передает тело без буферизации), читаются блоками
+     * по {@link #BODY_CHUNK} байт, и каждый блок учитывается до чтения.
+     *
+     * @param request Запрос с прочитанными параметрами.
+     * @return Тело запроса или {@code null}, если память для него не удалось выделить.
+     * @throws IOException Если тело не удалось прочитать.
+     */
+    static byte[] readBody(FCGIRequest request) throws IOException {
+        long length = contentLength(request);
+        if (length > MAX_BODY || !FCGIMemoryBudget.awaitReserve(request, length)) {
+            return null;
+        }
+        byte[] body = request.inStream.readNBytes((int) length);
+        if (body.length < length) {
+            return body;
+        }
+        int next = request.inStream.read();
+        if (next == -1) {
+            return body;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + BODY_CHUNK);
+        out.write(body);
+        out.write(next);
+        byte[] chunk = new byte[BODY_CHUNK];
+        while (true) {
+            if (out.size() > MAX_BODY - BODY_CHUNK || !FCGIMemoryBudget.awaitReserve(request, BODY_CHUNK)) {
+                return null;
+            }
+            int n = request.inStream.readNBytes(chunk, 0, BODY_CHUNK);
+            out.write(chunk, 0, n);
+            if (n < BODY_CHUNK) {
+                return out.toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Завершает запрос записью EndRequest со статусом FCGI_OVERLOAD без вызова обработчика.
+     *
+     * @param request Начатый запрос.
+     */
+    void overload(FCGIRequest request) {
+        request.protocolStatus = FCGIGlobalDefs.def_FCGIOverload;
+        FCGIStats.add(FCGIStats.OVERLOADED, 1);
+        this.completeRequest(request, request.outStream, null, null);
+    }
+
+    /**
+     * Возвращает длину тела запроса из параметра CONTENT_LENGTH.
+     *
+     * @param request Запрос с прочитанными параметрами.
+     * @return Длина в байтах; 0, если параметр не задан или некорректен.
+     */
+    static long contentLength(FCGIRequest request) {
+        try {
+            return Math.max(0, Long.parseLong(request.params.getProperty("CONTENT_LENGTH", "0").trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Передает вызов обработчика планировщику или выполняет его сразу, если планировщик не задан.
+     *
+     * @param request Начатый запрос.
+     * @param task Вызов обработчика.
+     */
+    void dispatch(FCGIRequest request, Runnable task) {
+        if (this.scheduler != null) {
+            this.scheduler.submit(request, task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Вызывает асинхронный обработчик и подписывается на завершение его ответа.
+     *
+     * @param request Начатый запрос.
+     * @param body Тело запроса.
+     */
+    void invokeHandler(FCGIRequest request, byte[] body) {
+        long cpu = FCGIAccounting.cpuTime();
+        long allocated = FCGIAccounting.allocated();
+        CompletableFuture<byte[]> response;
+        try {
+            response = this.handler.handle(request, body);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        if (response == null) {
+            response = CompletableFuture.failedFuture(new NullPointerException("Обработчик вернул null"));
+        }
+
+        OutputStream stdout = FCGICompressingOutputStream.wrap(request.outStream, request.params);
+        // Участок учитывается до подписки на ответ: после нее соединение может перейти к следующему запросу
+        FCGIAccounting.charge(request, cpu, allocated);
+        response.whenCompleteAsync((bytes, error) -> this.completeRequest(request, stdout, bytes, error), this.workers);
+    }
+
+    /**
+     * Передает запрос потоковому обработчику и подписывает поток stdout на его ответ.
+     *
+     * @param request Начатый запрос.
+     */
+    void dispatchStream(FCGIRequest request) {
+        long cpu = FCGIAccounting.cpuTime();
+        long allocated = FCGIAccounting.allocated();
+        OutputStream out = FCGICompressingOutputStream.wrap(request.outStream, request.params);
+        FCGIStdoutSubscriber stdout = new FCGIStdoutSubscriber(out, request.outStream);
+        FCGIStdinPublisher stdin = new FCGIStdinPublisher(request.inStream, this.workers, 8192);
+        try {
+            Flow.Publisher<ByteBuffer> response = this.streamHandler.handle(request, stdin);
+            if (response == null) {
+                throw new NullPointerException("Обработчик вернул null");
+            }
+            response.subscribe(stdout);
+        } catch (RuntimeException e) {
+            stdout.onError(e);
+        }
+
+        FCGIAccounting.charge(request, cpu, allocated);
+        stdout.completion().whenCompleteAsync((ignored, error) -> this.completeRequest(request, out, null, error, stdin), this.workers);
+    }
+
+    /**
+     * Отправляет ответ обработчика, завершает запрос записью EndRequest и,
+     * если веб-сервер просил сохранить соединение и тело запроса прочитано до конца
+     * (непрочитанный остаток до {@link FCGIInputStream#DRAIN_LIMIT} байт отбрасывается),
+     * переходит к чтению следующего запроса. При ошибке ответ со статусом 500 отправляется
+     * только если в stdout еще ничего не записано. Если задан {@code FCGI_ASYNC_DRAIN}, ответ до этого объема
+     * записывается в память (пока буфер укладывается в {@link FCGIMemoryBudget}) и отправляется
+     * {@link FCGIResponseDrainer}, а поток пула освобождается сразу;
+     * переход к следующему запросу выполняется после отправки. Время отправки ограничено
+     * {@link FCGIReaper#PHASE_DRAIN}.
+     *
+     * @param request Завершаемый запрос.
+     * @param stdout Поток, в который записывается ответ: stdout запроса или стадия сжатия перед ним.
+     * @param response Ответ обработчика в формате CGI.
+     * @param error Исключение, с которым завершился обработчик, или {@code null}.
+     */
+    void completeRequest(FCGIRequest request, OutputStream stdout, byte[] response, Throwable error) {
+        this.completeRequest(request, stdout, response, error, null);
+    }
+
+    /**
+     * Завершает запрос потокового обработчика. Публикация stdin закрывается до отбрасывания остатка тела
+     * и перехода к следующему запросу: подписчик не должен получить stdin следующего запроса соединения.
+     *
+     * @param request Завершаемый запрос.
+     * @param stdout Поток, в который записывается ответ: stdout запроса или стадия сжатия перед ним.
+     * @param response Ответ обработчика в формате CGI.
+     * @param error Исключение, с которым завершился обработчик, или {@code null}.
+     * @param stdin Издатель stdin запроса или {@code null}.
+     */
+    void completeRequest(FCGIRequest request, OutputStream stdout, byte[] response, Throwable error, FCGIStdinPublisher stdin) {
+        FCGIReaper.disarm(request);
+        if (stdin != null) {
+            stdin.close();
+        }
+        long cpu = FCGIAccounting.cpuTime();
+        long allocated = FCGIAccounting.allocated();
+        boolean failed = false;
+        SocketChannel channel = ASYNC_DRAIN_LIMIT > 0 ? request.socket.getChannel() : null;
+        if (channel != null) {
+            request.writer.defer(ASYNC_DRAIN_LIMIT);
+        }
+        try {
+            if (error != null) {
+                request.appStatus = 1;
+                boolean started = request.outStream.isAnythingWritten || request.outStream.wrNext != 8
+                        || (stdout instanceof FCGICompressingOutputStream compressing && compressing.isAnythingWritten());
+                if (!started) {
+                    stdout.write(INTERNAL_ERROR);
+                }
+                PrintStream err = new PrintStream(request.errStream, false, StandardCharsets.UTF_8);
+                error.printStackTrace(err);
+                err.flush();
+            } else if (response != null) {
+                stdout.write(response);
+            }
+            // Непрочитанный остаток тела отбрасывается до записи EndRequest
+            if (!request.inStream.isClosed && request.keepConnection) {
+                request.inStream.drain(FCGIInputStream.DRAIN_LIMIT);
+            }
+            request.errStream.close();
+            stdout.close();
+        } catch (IOException e) {
+            failed = true;
+        }
+        boolean reusable = !failed && request.outStream.getException() == null && request.keepConnection && request.inStream.isClosed
+                && request.inStream.getFCGIError() == 0 && request.inStream.getException() == null;
+
+        if (channel != null) {
+            // Буфер записанного в память ответа учтен в бюджете памяти при заполнении и остается учтенным,
+            // пока ответ не будет отправлен
+            int size = request.writer.getDeferredSize();
+            int reserved = request.writer.getDeferredReserved();
+            if (!failed && size > 0) {
+                try {
+                    FCGIResponseDrainer responseDrainer = this.drainer();
+                    FCGIAccounting.finish(request, cpu, allocated);
+                    // Веб-сервер, который не читает ответ, не должен удерживать зарезервированную память вечно
+                    FCGITimingWheel.Timeout sending = FCGIReaper.arm(request, FCGIReaper.PHASE_DRAIN, responseDrainer::wakeup);
+                    responseDrainer.drain(channel, request.writer.takeDeferred(), () -> {
+                        if (sending != null) {
+                            sending.cancel();
+                        }
+                        FCGIMemoryBudget.release(reserved);
+                        if (reusable) {
+                            this.awaitRequest(request, false);
+                        } else {
+                            this.closeConnection(request);
+                        }
+                    }, () -> {
+                        if (sending != null) {
+                            sending.cancel();
+                        }
+                        FCGIMemoryBudget.release(reserved);
+                        this.closeConnection(request);
+                    });
+                    return;
+                } catch (IOException e) {
+                    // Селектор не открылся: ответ отправляется этим потоком, flushDeferred вернет память буфера
+                }
+            }
+            try {
+                request.writer.flushDeferred();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        FCGIAccounting.finish(request, cpu, allocated);
+
+        if (failed || !reusable) {
+            this.closeConnection(request);
+            return;
+        }
+        this.awaitRequest(request, false);
+    }
+
+    /**
+     * Закрывает соединение запроса.
+     *
+     * @param request Запрос, соединение которого нужно закрыть.
+     */
+    void closeConnection(FCGIRequest request) {
+        FCGIReaper.disarm(request);
+        FCGIStats.requestFinished(request, false);
+        FCGIRequestEvent.end(request, false);
+        FCGICapture.closed(request);
+        FCGIMemoryBudget.releaseConnection(request);
+        try {
+            request.socket.close();
+        } catch (IOException e) {
+            // Соединение уже разорвано
+        }
+    }
+}
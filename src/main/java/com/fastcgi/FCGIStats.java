@@ -0,0 +1,265 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Класс FCGIStats публикует счетчики сервера в отображенный в память файл {@code FCGI_STATS_FILE}.
+ * Внешний агент может опрашивать файл с любой частотой без JMX и без влияния на обработку запросов:
+ * чтение не требует синхронизации с процессом, а счетчики обновляются атомарными сложениями прямо
+ * в отображенной памяти. Страницы файла принадлежат ядру, поэтому последние значения остаются
+ * в файле и после аварийного завершения процесса.
+ * <p>
+ * Формат файла фиксирован: {@link #FILE_SIZE} байт, все значения — 64-битные целые в порядке little-endian.
+ * <ul>
+ *     <li>заголовок: {@link #MAGIC} по смещению 0, версия формата (int) по смещению 8 и количество счетчиков (int)
+ *     по смещению 12, идентификатор процесса по смещению 16, время запуска (мс с эпохи) по смещению 24
+ *     и состояние {@link #STATE_RUNNING} или {@link #STATE_STOPPED} по смещению 32;
+ *     состояние {@link #STATE_RUNNING} у завершившегося процесса означает аварийное завершение;</li>
+ *     <li>счетчики с индексами {@code ACTIVE} … {@code OVERLOADED} по смещению {@code HEADER_SIZE + 8 * индекс};
+ *     индексы до {@link #ROLE_BASE} зарезервированы;</li>
+ *     <li>блоки ролей RESPONDER, AUTHORIZER и FILTER по {@link #ROLE_SLOTS} счетчиков с индекса
+ *     {@code ROLE_BASE + ROLE_SLOTS * (роль - 1)}: число запросов, суммарная длительность в наносекундах
+ *     и количество запросов по интервалам длительности {@link #LATENCY_BOUNDS_MICROS} (последний интервал не ограничен);</li>
+ *     <li>блоки классов приоритета {@link FCGIScheduler} по {@link #PRIORITY_SLOTS} счетчиков с индекса
+ *     {@code PRIORITY_BASE + PRIORITY_SLOTS * класс}: длина очереди, число выполненных запросов, суммарное
+ *     и максимальное время ожидания в очереди в наносекундах; последний из {@link #PRIORITY_CLASSES} блоков
+ *     объединяет все классы с большими номерами;</li>
+ *     <li>счетчик {@link #EXPIRED_DRAIN} с индексом {@code PRIORITY_BASE + PRIORITY_CLASSES * PRIORITY_SLOTS}
+ *     сразу после блоков классов приоритета: число соединений, закрытых при истечении времени отправки ответа.</li>
+ * </ul>
+ * Описанная раскладка соответствует версии формата {@link #VERSION} 3; количество счетчиков в заголовке
+ * равно {@link #SLOTS}.
+ */
+public class FCGIStats {
+
+    /** Признак файла статистики: строка {@code FCGISTAT} в виде числа little-endian. */
+    public static final long MAGIC = 0x5441545349474346L;
+
+    /** Версия формата файла. */
+    public static final int VERSION = 3;
+
+    /** Размер заголовка в байтах. */
+    public static final int HEADER_SIZE = 64;
+
+    /** Состояние: процесс работает (или завершился аварийно). */
+    public static final long STATE_RUNNING = 1;
+
+    /** Состояние: процесс завершился штатно. */
+    public static final long STATE_STOPPED = 2;
+
+    /** Количество запросов, начатых и еще не завершенных. */
+    public static final int ACTIVE = 0;
+
+    /** Количество запросов в очереди планировщика {@link FCGIScheduler}. */
+    public static final int QUEUED = 1;
+
+    /** Количество принятых соединений. */
+    public static final int CONNECTIONS = 2;
+
+    /** Количество байт, прочитанных из соединений. */
+    public static final int BYTES_IN = 3;
+
+    /** Количество байт, записанных в соединения. */
+    public static final int BYTES_OUT = 4;
+
+    /** Количество ошибок протокола FastCGI во входящих данных. */
+    public static final int PROTOCOL_ERRORS = 5;
+
+    /** Количество запросов, соединение которых закрыто до записи EndRequest. */
+    public static final int ABANDONED = 6;
+
+    /** Количество соединений, закрытых {@link FCGIReaper} в фазе {@link FCGIReaper#PHASE_HEADER}; следующие три индекса — фазы чтения параметров, тела и простоя. */
+    public static final int EXPIRED_HEADER = 7;
+
+    /** Количество соединений, закрытых {@link FCGIReaper} в фазе простоя. */
+    public static final int EXPIRED_IDLE = EXPIRED_HEADER + FCGIReaper.PHASE_IDLE;
+
+    /** Количество соединений, закрытых сразу после приема из-за переполнения очереди пула ({@link FCGIServer#queueLimit}). */
+    public static final int REJECTED = EXPIRED_IDLE + 1;
+
+    /** Количество запросов, получивших ответ одинакового выполняющегося запроса ({@link FCGICoalescer}). */
+    public static final int COALESCED = REJECTED + 1;
+
+    /** Количество запросов, отклоненных {@link FCGIRateLimiter} со статусом 429. */
+    public static final int RATE_LIMITED = COALESCED + 1;
+
+    /** Объем памяти, учтенной в {@link FCGIMemoryBudget}, в байтах. */
+    public static final int MEMORY_USED = RATE_LIMITED + 1;
+
+    /** Количество запросов, завершенных со статусом FCGI_OVERLOAD из-за исчерпания {@link FCGIMemoryBudget}. */
+    public static final int OVERLOADED = MEMORY_USED + 1;
+
+    /** Верхние границы интервалов длительности запроса в микросекундах. */
+    public static final long[] LATENCY_BOUNDS_MICROS = {1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000};
+
+    /** Индекс первого блока ролей. */
+    public static final int ROLE_BASE = 16;
+
+    /** Количество счетчиков в блоке роли: число запросов, суммарная длительность и интервалы длительности. */
+    public static final int ROLE_SLOTS = 2 + LATENCY_BOUNDS_MICROS.length + 1;
+
+    /** Индекс первого блока классов приоритета. */
+    public static final int PRIORITY_BASE = ROLE_BASE + 3 * ROLE_SLOTS;
+
+    /** Количество блоков классов приоритета. */
+    public static final int PRIORITY_CLASSES = 8;
+
+    /** Количество счетчиков в блоке класса: длина очереди, выполненные запросы, суммарное и максимальное ожидание. */
+    public static final int PRIORITY_SLOTS = 4;
+
+    /** Количество соединений, закрытых {@link FCGIReaper} в фазе {@link FCGIReaper#PHASE_DRAIN}. */
+    public static final int EXPIRED_DRAIN = PRIORITY_BASE + PRIORITY_CLASSES * PRIORITY_SLOTS;
+
+    /** Общее количество счетчиков. */
+    public static final int SLOTS = EXPIRED_DRAIN + 1;
+
+    /** Размер файла в байтах. */
+    public static final int FILE_SIZE = HEADER_SIZE + 8 * SLOTS;
+
+    /** Доступ к 64-битным значениям отображенной памяти. */
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Отображенный файл или {@code null}, если статистика выключена. */
+    private static final MappedByteBuffer map = open(System.getProperty("FCGI_STATS_FILE"));
+
+    /** Флаг публикации статистики. */
+    public static final boolean ENABLED = map != null;
+
+    private FCGIStats() {
+    }
+
+    /**
+     * Отображает файл статистики в память и записывает заголовок.
+     *
+     * @param path Путь к файлу или {@code null}.
+     * @return Отображенный файл или {@code null}, если путь не задан или файл не удалось открыть.
+     */
+    private static MappedByteBuffer open(String path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } catch (IOException e) {
+            return null;
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(8, VERSION);
+        buf.putInt(12, SLOTS);
+        buf.putLong(16, ProcessHandle.current().pid());
+        buf.putLong(24, System.currentTimeMillis());
+        LONGS.setRelease(buf, 32, STATE_RUNNING);
+        // Признак записывается последним: агент, увидевший его, видит и остальной заголовок
+        LONGS.setRelease(buf, 0, MAGIC);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LONGS.setRelease(buf, 32, STATE_STOPPED);
+            buf.force();
+        }));
+        return buf;
+    }
+
+    /**
+     * Прибавляет значение к счетчику.
+     *
+     * @param slot Индекс счетчика.
+     * @param delta Прибавляемое значение.
+     */
+    public static void add(int slot, long delta) {
+        if (ENABLED) {
+            LONGS.getAndAdd(map, HEADER_SIZE + 8 * slot, delta);
+        }
+    }
+
+    /**
+     * Увеличивает счетчик до значения, если оно больше текущего.
+     *
+     * @param slot Индекс счетчика.
+     * @param value Значение.
+     */
+    public static void max(int slot, long value) {
+        if (!ENABLED) {
+            return;
+        }
+        long current = (long) LONGS.getAcquire(map, HEADER_SIZE + 8 * slot);
+        while (value > current) {
+            long witness = (long) LONGS.compareAndExchange(map, HEADER_SIZE + 8 * slot, current, value);
+            if (witness == current) {
+                return;
+            }
+            current = witness;
+        }
+    }
+
+    /**
+     * Возвращает индекс первого счетчика блока класса приоритета.
+     *
+     * @param cls Номер класса.
+     * @return Индекс счетчика длины очереди класса.
+     */
+    static int priority(int cls) {
+        return PRIORITY_BASE + PRIORITY_SLOTS * Math.min(cls, PRIORITY_CLASSES - 1);
+    }
+
+    /**
+     * Возвращает значение счетчика.
+     *
+     * @param slot Индекс счетчика.
+     * @return Значение; 0, если статистика выключена.
+     */
+    public static long get(int slot) {
+        return ENABLED ? (long) LONGS.getAcquire(map, HEADER_SIZE + 8 * slot) : 0;
+    }
+
+    /**
+     * Учитывает начатый запрос и запоминает время его начала.
+     *
+     * @param request Запрос с прочитанными параметрами.
+     */
+    static void requestStarted(FCGIRequest request) {
+        if (!ENABLED || request.role < 1 || request.role > 3) {
+            return;
+        }
+        request.startNanos = System.nanoTime();
+        add(ACTIVE, 1);
+        add(ROLE_BASE + ROLE_SLOTS * (request.role - 1), 1);
+    }
+
+    /**
+     * Учитывает завершение запроса. Повторный вызов для того же запроса ничего не делает.
+     *
+     * @param request Запрос.
+     * @param completed {@code true}, если запрос завершен записью EndRequest; {@code false}, если соединение закрыто раньше.
+     */
+    static void requestFinished(FCGIRequest request, boolean completed) {
+        long start = request.startNanos;
+        if (!ENABLED || start == 0) {
+            return;
+        }
+        request.startNanos = 0;
+        add(ACTIVE, -1);
+        if (!completed) {
+            add(ABANDONED, 1);
+            return;
+        }
+
+        long nanos = System.nanoTime() - start;
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MICROS.length && micros > LATENCY_BOUNDS_MICROS[bucket]) {
+            ++bucket;
+        }
+        int base = ROLE_BASE + ROLE_SLOTS * (request.role - 1);
+        add(base + 1, nanos);
+        add(base + 2 + bucket, 1);
+    }
+}
@@ -0,0 +1,218 @@
+package com.fastcgi;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Класс FCGIStderrLog определяет, как обрабатывается вывод ошибок (stderr) запросов.
+ * Режим задается свойством {@code FCGI_STDERR_MODE}:
+ * <ul>
+ *     <li>{@code sync} — каждый сброс stderr сразу отправляется веб-серверу записью FCGI_STDERR
+ *     (поведение по умолчанию);</li>
+ *     <li>{@code batch} — вывод накапливается и отправляется веб-серверу одним пакетом при завершении запроса;</li>
+ *     <li>{@code file} — вывод передается через кольцо {@link FCGILogRing} фоновому потоку, который пишет его
+ *     в локальный файл {@code FCGI_STDERR_LOG} с ротацией по размеру {@code FCGI_STDERR_LOG_SIZE}
+ *     и хранением {@code FCGI_STDERR_LOG_FILES} предыдущих файлов.</li>
+ * </ul>
+ * В режимах {@code batch} и {@code file} запись в stderr не выполняет системных вызовов записи в сокет
+ * во время формирования ответа.
+ */
+public class FCGIStderrLog {
+
+    /** Режим немедленной отправки записей FCGI_STDERR. */
+    public static final int MODE_SYNC = 0;
+
+    /** Режим пакетной отправки при завершении запроса. */
+    public static final int MODE_BATCH = 1;
+
+    /** Режим записи в локальный файл фоновым потоком. */
+    public static final int MODE_FILE = 2;
+
+    /** Режим, заданный свойством {@code FCGI_STDERR_MODE}. */
+    public static final int MODE = parseMode(System.getProperty("FCGI_STDERR_MODE"));
+
+    /** Путь к файлу журнала. */
+    private static final String LOG_PATH = System.getProperty("FCGI_STDERR_LOG", "fcgi-stderr.log");
+
+    /** Размер файла журнала в байтах, после которого выполняется ротация. */
+    private static final long LOG_SIZE = Long.getLong("FCGI_STDERR_LOG_SIZE", 10L * 1024 * 1024);
+
+    /** Количество хранимых предыдущих файлов журнала. */
+    private static final int LOG_FILES = Integer.getInteger("FCGI_STDERR_LOG_FILES", 5);
+
+    /** Пауза потока записи при пустом кольце в наносекундах. */
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    /** Кольцо фрагментов журнала; создается при первом использовании режима {@link #MODE_FILE}. */
+    private static FCGILogRing ring;
+
+    /** Поток записи журнала. */
+    private static Thread writer;
+
+    /** Флаг завершения процесса: поток записи дописывает кольцо и закрывает файл. */
+    private static volatile boolean stopping;
+
+    private FCGIStderrLog() {
+    }
+
+    /**
+     * Разбирает режим {@code sync}, {@code batch} или {@code file}. Неизвестное значение означает {@code sync}.
+     *
+     * @param spec Название режима.
+     * @return Режим.
+     */
+    static int parseMode(String spec) {
+        if (spec == null) {
+            return MODE_SYNC;
+        }
+        return switch (spec.trim()) {
+            case "batch" -> MODE_BATCH;
+            case "file" -> MODE_FILE;
+            default -> MODE_SYNC;
+        };
+    }
+
+    /**
+     * Создает поток вывода ошибок запроса в соответствии с режимом {@link #MODE}.
+     *
+     * @param outStream Поток соединения с веб-сервером.
+     * @param request Запрос FastCGI.
+     * @return Поток stderr запроса.
+     */
+    public static FCGIOutputStream newErrStream(OutputStream outStream, FCGIRequest request) {
+        return switch (MODE) {
+            case MODE_BATCH -> new FCGIStderrStream(outStream, request, null);
+            case MODE_FILE -> new FCGIStderrStream(outStream, request, ring());
+            default -> new FCGIOutputStream(outStream, 512, 7, request);
+        };
+    }
+
+    /**
+     * Возвращает количество фрагментов, отброшенных из-за переполнения кольца в режиме {@link #MODE_FILE}.
+     *
+     * @return Количество фрагментов.
+     */
+    public static synchronized long getDropped() {
+        return ring == null ? 0 : ring.getDropped();
+    }
+
+    /**
+     * Сообщает потоку записи о новых данных.
+     */
+    static void signal() {
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Возвращает общее кольцо фрагментов и при первом вызове запускает поток записи.
+     *
+     * @return Кольцо фрагментов.
+     */
+    private static synchronized FCGILogRing ring() {
+        if (ring == null) {
+            ring = new FCGILogRing(Integer.getInteger("FCGI_STDERR_RING_SIZE", 4096));
+            FCGILogRing source = ring;
+            writer = new Thread(() -> drain(source), "fcgi-stderr-writer");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                stopping = true;
+                LockSupport.unpark(writer);
+                try {
+                    writer.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        return ring;
+    }
+
+    /**
+     * Цикл потока записи: переносит фрагменты из кольца в файл журнала пакетами.
+     *
+     * @param source Кольцо фрагментов.
+     */
+    private static void drain(FCGILogRing source) {
+        File file = new File(LOG_PATH);
+        OutputStream out = null;
+        long size = file.length();
+        while (true) {
+            byte[] chunk = source.poll();
+            if (chunk == null) {
+                if (stopping) {
+                    close(out);
+                    return;
+                }
+                if (out != null) {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        out = close(out);
+                    }
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                if (out == null) {
+                    out = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+                    size = file.length();
+                }
+                if (LOG_SIZE > 0 && size > 0 && size + chunk.length > LOG_SIZE) {
+                    out = close(out);
+                    rotate(file);
+                    out = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+                    size = 0;
+                }
+                out.write(chunk);
+                size += chunk.length;
+            } catch (IOException e) {
+                // Журнал недоступен: фрагмент теряется, попытка открыть файл повторится
+                out = close(out);
+            }
+        }
+    }
+
+    /**
+     * Сдвигает предыдущие файлы журнала: {@code log} → {@code log.1} → ... → {@code log.N}.
+     *
+     * @param file Текущий файл журнала.
+     */
+    private static void rotate(File file) {
+        String path = file.getPath();
+        new File(path + "." + LOG_FILES).delete();
+        for (int i = LOG_FILES - 1; i >= 1; --i) {
+            new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+        }
+        if (LOG_FILES > 0) {
+            file.renameTo(new File(path + ".1"));
+        } else {
+            file.delete();
+        }
+    }
+
+    /**
+     * Закрывает поток файла журнала, игнорируя ошибки.
+     *
+     * @param out Поток или {@code null}.
+     * @return Всегда {@code null}.
+     */
+    private static OutputStream close(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Файл уже недоступен
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Класс FCGIStderrStream — поток вывода ошибок запроса, не пишущий в сокет во время обработки запроса.
+ * <ul>
+ *     <li>Без кольца (режим {@code batch}) данные накапливаются в растущем буфере и отправляются
+ *     веб-серверу записями FCGI_STDERR только при закрытии потока, то есть при завершении запроса.
+ *     Буфер растет до максимального размера записи FastCGI; при его заполнении запись отправляется раньше.</li>
+ *     <li>С кольцом (режим {@code file}) при сбросе и заполнении буфера данные передаются в кольцо
+ *     {@link FCGILogRing}, откуда их забирает поток записи журнала {@link FCGIStderrLog}.
+ *     Веб-сервер в этом режиме записей FCGI_STDERR не получает.</li>
+ * </ul>
+ */
+public class FCGIStderrStream extends FCGIOutputStream {
+
+    /** Максимальный размер буфера: заголовок и наибольшее содержимое одной записи FastCGI. */
+    private static final int MAX_BUFFER = 65535;
+
+    /** Кольцо журнала или {@code null} в режиме пакетной отправки. */
+    private final FCGILogRing ring;
+
+    /**
+     * Конструктор класса FCGIStderrStream.
+     *
+     * @param outStream Поток соединения с веб-сервером.
+     * @param inreq Объект запроса FastCGI.
+     * @param ring Кольцо журнала или {@code null} для пакетной отправки веб-серверу.
+     */
+    public FCGIStderrStream(OutputStream outStream, FCGIRequest inreq, FCGILogRing ring) {
+        super(outStream, 512, 7, inreq);
+        this.ring = ring;
+    }
+
+    /**
+     * Освобождает буфер. До закрытия потока данные не отправляются в сокет: буфер либо увеличивается,
+     * либо его содержимое передается в кольцо журнала.
+     *
+     * @param doClose Указывает, нужно ли закрыть поток после записи.
+     * @throws IOException Если произошла ошибка при отправке данных.
+     */
+    @Override
+    public void empty(boolean doClose) throws IOException {
+        if (this.rawWrite) {
+            // Финальные записи запроса всегда отправляются в сокет
+            super.empty(doClose);
+            return;
+        }
+
+        if (this.ring != null) {
+            if (this.wrNext > 8) {
+                this.ring.offer(Arrays.copyOfRange(this.buff, 8, this.wrNext));
+                this.wrNext = 8;
+            }
+            if (doClose) {
+                FCGIStderrLog.signal();
+                super.empty(true);
+            }
+            return;
+        }
+
+        // Прирост буфера учитывается в бюджете памяти до выделения; если памяти нет, запись отправляется сразу
+        int grown = Math.min(this.buffLen * 2, MAX_BUFFER);
+        if (!doClose && this.buffLen < MAX_BUFFER && FCGIMemoryBudget.tryReserve(this.request, grown - this.buffLen)) {
+            this.buffLen = grown;
+            this.buff = Arrays.copyOf(this.buff, this.buffLen);
+            this.stop = this.buffStop = this.buffLen;
+            return;
+        }
+        super.empty(doClose);
+    }
+
+    /**
+     * Сбрасывает поток. В режиме пакетной отправки ничего не делает, в режиме журнала
+     * передает накопленные данные в кольцо.
+     *
+     * @throws IOException Если произошла ошибка при отправке данных.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (this.ring != null && !this.isClosed) {
+            this.empty(false);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Класс FCGIStdinPublisher публикует данные stdin запроса FastCGI в виде последовательности {@link ByteBuffer}.
+ * Чтение из {@link FCGIInputStream} выполняется исполнителем только при наличии спроса подписчика,
+ * поэтому данные не читаются быстрее, чем подписчик способен их обработать.
+ * Издатель допускает только одного подписчика. Публикация ограничена временем запроса: при его завершении
+ * сервер вызывает {@link #close()}.
+ */
+public class FCGIStdinPublisher implements Flow.Publisher<ByteBuffer> {
+
+    /** Поток stdin запроса. */
+    private final FCGIInputStream in;
+
+    /** Исполнитель, в котором выполняется чтение. */
+    private final Executor executor;
+
+    /** Размер одной порции данных. */
+    private final int chunkSize;
+
+    /** Флаг, указывающий, что подписчик уже был подключен. */
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /** Подписка или {@code null}, если подписчика еще нет. */
+    private volatile StdinSubscription subscription;
+
+    /** Флаг завершения запроса; устанавливается под блокировкой потока stdin. */
+    private volatile boolean closed;
+
+    /**
+     * Конструктор класса FCGIStdinPublisher.
+     *
+     * @param in Поток stdin запроса.
+     * @param executor Исполнитель, в котором выполняется чтение.
+     * @param chunkSize Максимальный размер одной порции данных.
+     */
+    public FCGIStdinPublisher(FCGIInputStream in, Executor executor, int chunkSize) {
+        this.in = in;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Подключает подписчика. Повторная подписка и подписка после завершения запроса завершаются ошибкой
+     * {@link IllegalStateException}.
+     *
+     * @param subscriber Подписчик.
+     */
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (this.closed || !this.subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException(this.closed ? "Запрос уже завершен" : "Данные stdin уже опубликованы"));
+            return;
+        }
+        StdinSubscription subscription = new StdinSubscription(subscriber);
+        this.subscription = subscription;
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Завершает публикацию при завершении запроса, до того как соединение перейдет к следующему запросу.
+     * После вызова данные из потока не читаются: иначе подписчик получил бы stdin следующего запроса
+     * того же соединения. Подписчик, не получивший конец данных, получает ошибку.
+     */
+    public void close() {
+        // Под блокировкой потока: чтение, начатое до закрытия, завершается до перехода к следующему запросу
+        synchronized (this.in) {
+            this.closed = true;
+        }
+        StdinSubscription subscription = this.subscription;
+        if (subscription != null) {
+            subscription.terminate(new IllegalStateException("Запрос завершен до окончания чтения stdin"));
+        }
+    }
+
+    /**
+     * Подписка на данные stdin. Чтение и все сигналы подписчику выполняются одной задачей исполнителя,
+     * поэтому сигналы не перекрываются.
+     */
+    private final class StdinSubscription implements Flow.Subscription, Runnable {
+
+        /** Подписчик. */
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+        /** Количество порций, запрошенных подписчиком и еще не отправленных. */
+        private final AtomicLong demand = new AtomicLong();
+
+        /** Счетчик запросов на выполнение задачи чтения. */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        /** Ошибка, которую нужно передать подписчику. */
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        /** Флаг, указывающий, что подписка отменена или завершена. */
+        private volatile boolean done;
+
+        StdinSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (this.done) {
+                return;
+            }
+            if (n <= 0) {
+                this.terminate(new IllegalArgumentException("Запрошено неположительное число элементов: " + n));
+                return;
+            }
+            this.demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            this.schedule();
+        }
+
+        public void cancel() {
+            this.done = true;
+        }
+
+        /**
+         * Завершает подписку ошибкой. Ошибка передается подписчику задачей чтения.
+         *
+         * @param failure Ошибка.
+         */
+        void terminate(Throwable failure) {
+            if (!this.done && this.error.compareAndSet(null, failure)) {
+                this.schedule();
+            }
+        }
+
+        /**
+         * Запускает задачу чтения, если она еще не выполняется.
+         */
+        private void schedule() {
+            if (this.wip.getAndIncrement() == 0) {
+                FCGIStdinPublisher.this.executor.execute(this);
+            }
+        }
+
+        /**
+         * Читает и отправляет порции данных, пока есть спрос.
+         */
+        public void run() {
+            int missed = 1;
+            do {
+                while (!this.done) {
+                    Throwable failure = this.error.get();
+                    if (failure != null) {
+                        this.done = true;
+                        this.subscriber.onError(failure);
+                        return;
+                    }
+                    if (this.demand.get() == 0) {
+                        break;
+                    }
+
+                    byte[] chunk = new byte[FCGIStdinPublisher.this.chunkSize];
+                    int count;
+                    try {
+                        // Под блокировкой потока: остаток может отбрасываться методом drain при завершении запроса
+                        synchronized (FCGIStdinPublisher.this.in) {
+                            if (FCGIStdinPublisher.this.closed) {
+                                this.error.compareAndSet(null, new IllegalStateException("Запрос завершен до окончания чтения stdin"));
+                                continue;
+                            }
+                            count = FCGIStdinPublisher.this.in.read(chunk, 0, chunk.length);
+                        }
+                    } catch (IOException e) {
+                        this.done = true;
+                        this.subscriber.onError(e);
+                        return;
+                    }
+
+                    if (count < 0) {
+                        this.done = true;
+                        Exception exception = FCGIStdinPublisher.this.in.getException();
+                        if (exception != null || FCGIStdinPublisher.this.in.getFCGIError() != 0) {
+                            this.subscriber.onError(exception != null ? exception : new IOException("Ошибка протокола FastCGI: " + FCGIStdinPublisher.this.in.getFCGIError()));
+                        } else {
+                            this.subscriber.onComplete();
+                        }
+                        return;
+                    }
+
+                    this.demand.decrementAndGet();
+                    this.subscriber.onNext(ByteBuffer.wrap(chunk, 0, count));
+                }
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Класс FCGIStdoutSubscriber записывает полученные порции данных в поток stdout запроса FastCGI.
+ * Каждая порция отправляется веб-серверу записями stdout сразу после получения, а следующая
+ * порция запрашивается только после того, как предыдущая записана в сокет.
+ * Завершение подписки отражается в {@link #completion()}; записи завершения запроса
+ * отправляет владелец запроса.
+ */
+public class FCGIStdoutSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    /** Поток, в который записывается ответ (stdout запроса или стадия обработки перед ним). */
+    private final OutputStream out;
+
+    /** Поток stdout запроса. */
+    private final FCGIOutputStream stdout;
+
+    /** Результат подписки: завершается при окончании ответа или ошибке. */
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    /** Текущая подписка. */
+    private Flow.Subscription subscription;
+
+    /**
+     * Конструктор класса FCGIStdoutSubscriber.
+     *
+     * @param out Поток, в который записывается ответ.
+     * @param stdout Поток stdout запроса, в который в итоге попадают данные {@code out}.
+     */
+    public FCGIStdoutSubscriber(OutputStream out, FCGIOutputStream stdout) {
+        this.out = out;
+        this.stdout = stdout;
+    }
+
+    /**
+     * Возвращает результат подписки.
+     *
+     * @return Будущий результат, завершающийся после записи последней порции или с ошибкой.
+     */
+    public CompletableFuture<Void> completion() {
+        return this.completion;
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    public void onNext(ByteBuffer item) {
+        try {
+            if (item.hasArray()) {
+                this.out.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+                item.position(item.limit());
+            } else {
+                byte[] copy = new byte[item.remaining()];
+                item.get(copy);
+                this.out.write(copy, 0, copy.length);
+            }
+            this.out.flush();
+        } catch (IOException e) {
+            this.subscription.cancel();
+            this.completion.completeExceptionally(e);
+            return;
+        }
+
+        if (this.stdout.getException() != null) {
+            this.subscription.cancel();
+            this.completion.completeExceptionally(this.stdout.getException());
+            return;
+        }
+        this.subscription.request(1);
+    }
+
+    public void onError(Throwable throwable) {
+        this.completion.completeExceptionally(throwable);
+    }
+
+    public void onComplete() {
+        this.completion.complete(null);
+    }
+}
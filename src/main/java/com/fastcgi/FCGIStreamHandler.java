@@ -0,0 +1,25 @@
+package com.fastcgi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+/**
+ * Интерфейс FCGIStreamHandler описывает потоковый обработчик запросов FastCGI.
+ * Тело запроса передается обработчику как {@link Flow.Publisher}, который читает данные stdin
+ * только по запросу подписчика, а ответ возвращается как {@link Flow.Publisher}, на который
+ * библиотека подписывает {@link FCGIStdoutSubscriber}. Данные обрабатываются по частям со скоростью
+ * самой медленной стороны, без буферизации тел целиком.
+ */
+@FunctionalInterface
+public interface FCGIStreamHandler {
+
+    /**
+     * Обрабатывает запрос FastCGI.
+     *
+     * @param request Запрос FastCGI; параметры запроса доступны через {@code request.params}.
+     * @param body Издатель данных stdin; может быть не прочитан, если тело не нужно.
+     * @return Издатель ответа в формате CGI: заголовки, пустая строка и тело ответа.
+     *         Ошибка издателя завершает запрос с ненулевым статусом приложения.
+     */
+    Flow.Publisher<ByteBuffer> handle(FCGIRequest request, Flow.Publisher<ByteBuffer> body);
+}
@@ -0,0 +1,165 @@
+package com.fastcgi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Класс FCGITimingWheel реализует хешированное колесо таймеров: множество тайм-аутов обслуживается
+ * одним потоком, а постановка и отмена тайм-аута выполняются за постоянное время без блокировок.
+ * Точность срабатывания ограничена длительностью одного такта.
+ */
+public class FCGITimingWheel implements Runnable {
+
+    /** Длительность одного такта в миллисекундах. */
+    private final long tickMillis;
+
+    /** Ячейки колеса; доступны только потоку колеса. */
+    private final List<Timeout>[] buckets;
+
+    /** Маска для вычисления номера ячейки. */
+    private final int mask;
+
+    /** Тайм-ауты, ожидающие размещения в ячейках. */
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /** Время запуска колеса ({@link System#nanoTime()}). */
+    private final long startTime;
+
+    /** Номер текущего такта. */
+    private volatile long tick;
+
+    /**
+     * Конструктор класса FCGITimingWheel. Поток колеса запускается методом {@link #start(long, int)}.
+     *
+     * @param tickMillis Длительность одного такта в миллисекундах.
+     * @param wheelSize Количество ячеек; округляется вверх до степени двойки.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private FCGITimingWheel(long tickMillis, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.buckets = new List[size];
+        for (int i = 0; i < size; ++i) {
+            this.buckets[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Создает колесо таймеров и запускает его поток.
+     *
+     * @param tickMillis Длительность одного такта в миллисекундах.
+     * @param wheelSize Количество ячеек; округляется вверх до степени двойки.
+     * @return Колесо таймеров.
+     */
+    public static FCGITimingWheel start(long tickMillis, int wheelSize) {
+        FCGITimingWheel wheel = new FCGITimingWheel(tickMillis, wheelSize);
+        Thread thread = new Thread(wheel, "fcgi-timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+        return wheel;
+    }
+
+    /**
+     * Планирует выполнение действия через указанное время.
+     *
+     * @param delayMillis Задержка в миллисекундах.
+     * @param action Действие; выполняется потоком колеса и должно быть коротким.
+     * @return Тайм-аут, который можно отменить.
+     */
+    public Timeout schedule(long delayMillis, Runnable action) {
+        Timeout timeout = new Timeout(this.tick + Math.max(1, (delayMillis + this.tickMillis - 1) / this.tickMillis), action);
+        this.pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Цикл потока колеса: на каждом такте размещает новые тайм-ауты и выполняет истекшие.
+     */
+    public void run() {
+        while (true) {
+            long deadline = this.startTime + (this.tick + 1) * this.tickMillis * 1_000_000L;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            long current = ++this.tick;
+
+            Timeout timeout;
+            while ((timeout = this.pending.poll()) != null) {
+                long expiresAt = Math.max(timeout.expiresAt, current);
+                this.buckets[(int) (expiresAt & this.mask)].add(timeout);
+            }
+
+            Iterator<Timeout> it = this.buckets[(int) (current & this.mask)].iterator();
+            while (it.hasNext()) {
+                timeout = it.next();
+                if (timeout.state.get() != Timeout.ACTIVE) {
+                    it.remove();
+                } else if (timeout.expiresAt <= current) {
+                    it.remove();
+                    timeout.fire();
+                }
+            }
+        }
+    }
+
+    /**
+     * Тайм-аут, запланированный в колесе.
+     */
+    public static final class Timeout {
+
+        /** Тайм-аут ожидает срабатывания. */
+        static final int ACTIVE = 0;
+
+        /** Тайм-аут отменен. */
+        static final int CANCELLED = 1;
+
+        /** Тайм-аут сработал. */
+        static final int FIRED = 2;
+
+        /** Номер такта, на котором тайм-аут истекает. */
+        final long expiresAt;
+
+        /** Действие при срабатывании. */
+        final Runnable action;
+
+        /** Состояние тайм-аута. */
+        final AtomicInteger state = new AtomicInteger(ACTIVE);
+
+        Timeout(long expiresAt, Runnable action) {
+            this.expiresAt = expiresAt;
+            this.action = action;
+        }
+
+        /**
+         * Отменяет тайм-аут.
+         *
+         * @return {@code true}, если тайм-аут отменен до срабатывания.
+         */
+        public boolean cancel() {
+            return this.state.compareAndSet(ACTIVE, CANCELLED);
+        }
+
+        /**
+         * Выполняет действие, если тайм-аут не был отменен.
+         */
+        void fire() {
+            if (this.state.compareAndSet(ACTIVE, FIRED)) {
+                try {
+                    this.action.run();
+                } catch (RuntimeException e) {
+                    // Ошибка действия не должна останавливать колесо
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Класс FCGIUnixServerSocket — слушающий сокет Unix в виде {@link ServerSocket}. Принятые соединения
+ * возвращаются как {@link FCGIUnixSocket}. Файл сокета, оставшийся от предыдущего запуска, удаляется
+ * перед открытием, только если это сокет и подключиться к нему не удается; обычный файл или сокет
+ * работающего процесса не трогаются, и открытие завершается ошибкой привязки. Открытый сокет удаляет
+ * свой файл при закрытии или штатном завершении JVM; унаследованный сокет файл не удаляет.
+ */
+public class FCGIUnixServerSocket extends ServerSocket {
+
+    /** Канал слушающего сокета. */
+    private final ServerSocketChannel channel;
+
+    /** Путь к файлу сокета. */
+    private final Path path;
+
+    /** Флаг владения файлом сокета: файл удаляется при закрытии. */
+    private final boolean owner;
+
+    /**
+     * Конструктор класса FCGIUnixServerSocket. Открывает слушающий сокет.
+     *
+     * @param path Путь к файлу сокета.
+     * @param backlog Длина очереди входящих соединений; 0 — значение по умолчанию.
+     * @throws IOException Если сокет не удалось открыть.
+     */
+    public FCGIUnixServerSocket(Path path, int backlog) throws IOException {
+        this.path = path;
+        this.owner = true;
+        deleteStale(path);
+        this.channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            this.channel.bind(UnixDomainSocketAddress.of(path), backlog);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        path.toFile().deleteOnExit();
+    }
+
+    /**
+     * Конструктор класса FCGIUnixServerSocket для уже открытого слушающего канала, например унаследованного
+     * от менеджера процессов. Файл сокета принадлежит менеджеру и не удаляется.
+     *
+     * @param channel Привязанный канал слушающего сокета Unix.
+     * @throws IOException Если адрес канала не удалось получить.
+     */
+    public FCGIUnixServerSocket(ServerSocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.path = channel.getLocalAddress() instanceof UnixDomainSocketAddress address ? address.getPath() : null;
+        this.owner = false;
+    }
+
+    /**
+     * Удаляет файл сокета, оставшийся от завершившегося процесса. Файл удаляется, только если это сокет
+     * и соединение с ним отклоняется.
+     *
+     * @param path Путь к файлу сокета.
+     * @throws BindException Если по пути находится сокет, принимающий соединения.
+     * @throws IOException Если файл не удалось проверить или удалить.
+     */
+    private static void deleteStale(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        // Сокет не является ни обычным файлом, ни каталогом, ни ссылкой; остальное оставляется ошибке привязки
+        if (!Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+            return;
+        }
+        try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            probe.connect(UnixDomainSocketAddress.of(path));
+        } catch (ConnectException e) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        throw new BindException("Сокет " + path + " используется другим процессом");
+    }
+
+    /**
+     * Принимает соединение.
+     *
+     * @return Соединение через сокет Unix.
+     * @throws IOException Если соединение не удалось принять.
+     */
+    @Override
+    public Socket accept() throws IOException {
+        return new FCGIUnixSocket(this.channel.accept());
+    }
+
+    @Override
+    public ServerSocketChannel getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !this.channel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.channel.isOpen()) {
+            this.channel.close();
+            if (this.owner) {
+                Files.deleteIfExists(this.path);
+            }
+        }
+        super.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FCGIUnixServerSocket[" + this.path + "]";
+    }
+}
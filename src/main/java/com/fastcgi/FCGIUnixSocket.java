@@ -0,0 +1,140 @@
+package com.fastcgi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Класс FCGIUnixSocket представляет соединение через сокет Unix в виде {@link Socket}, с которым работает
+ * остальная библиотека. Канал сокета Unix не поддерживает {@link SocketChannel#socket()}, поэтому потоки
+ * ввода и вывода читают и пишут канал напрямую. В отличие от {@link java.nio.channels.Channels#newInputStream},
+ * чтение не блокирует одновременную запись ответа.
+ * <p>
+ * {@link #getChannel()} возвращает канал, поэтому соединение ожидает следующего запроса в {@link FCGIIdleSelector}
+ * и отправляет данные собирающей записью {@link FCGIConnectionWriter}.
+ */
+public class FCGIUnixSocket extends Socket {
+
+    /** Канал соединения. */
+    private final SocketChannel channel;
+
+    /** Поток чтения из канала. */
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = this.read(b, 0, 1);
+            return count < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return FCGIUnixSocket.this.channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    };
+
+    /** Поток записи в канал. */
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                FCGIUnixSocket.this.channel.write(buf);
+            }
+        }
+    };
+
+    /**
+     * Конструктор класса FCGIUnixSocket.
+     *
+     * @param channel Принятый канал сокета Unix в блокирующем режиме.
+     */
+    public FCGIUnixSocket(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (this.isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (this.isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.out;
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // Параметр не имеет смысла для сокета Unix
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) throws SocketException {
+        this.setOption(StandardSocketOptions.SO_RCVBUF, size);
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        this.setOption(StandardSocketOptions.SO_SNDBUF, size);
+    }
+
+    /**
+     * Устанавливает параметр канала.
+     *
+     * @param option Параметр.
+     * @param value Значение.
+     * @throws SocketException Если параметр не удалось установить.
+     */
+    private void setOption(SocketOption<Integer> option, int value) throws SocketException {
+        try {
+            this.channel.setOption(option, value);
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FCGIUnixSocket[" + this.channel + "]";
+    }
+}
@@ -0,0 +1,258 @@
+package com.fastcgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Класс FCGIWarmup прогревает JIT-компилятор до начала приема настоящих запросов.
+ * Он подменяет слушающий сокет: первые вызовы {@link #accept()} возвращают соединения в памяти
+ * {@link FCGIMemorySocket}, по которым передается корпус запросов, и только после прогрева
+ * открывается настоящий слушающий сокет. Запросы проходят через обычный путь: разбор записей,
+ * чтение параметров и тела, обработчик приложения и формирование ответа; вывод отбрасывается.
+ * <p>
+ * Прогрев включается свойством {@code FCGI_WARMUP_REQUESTS} (количество запросов). Корпус — файл
+ * {@code FCGI_WARMUP_CORPUS} с записанным потоком записей FastCGI одного соединения; без него используется
+ * синтетический корпус из GET- и POST-запросов с keep-alive. Прогрев завершается досрочно
+ * по истечении {@code FCGI_WARMUP_MILLIS} миллисекунд или когда JIT-компилятор перестает компилировать
+ * новый код. Каждый запрос прогрева содержит параметр {@code FCGI_WARMUP=1}, чтобы приложение
+ * могло пропустить побочные действия.
+ */
+public class FCGIWarmup extends ServerSocket {
+
+    /** Количество запросов между проверками активности JIT-компилятора. */
+    private static final int QUIET_CHECK_INTERVAL = 500;
+
+    /** Количество выполненных запросов прогрева за все время работы процесса. */
+    private static volatile long served;
+
+    /**
+     * Открывает настоящий слушающий сокет.
+     */
+    public interface Opener {
+
+        /**
+         * Открывает слушающий сокет.
+         *
+         * @return Слушающий сокет.
+         * @throws IOException Если сокет не удалось открыть.
+         */
+        ServerSocket open() throws IOException;
+    }
+
+    /** Способ открытия настоящего слушающего сокета. */
+    private final Opener opener;
+
+    /** Поток записей одного соединения корпуса. */
+    private final byte[] corpus;
+
+    /** Количество запросов в корпусе. */
+    private final int corpusRequests;
+
+    /** Оставшееся количество запросов прогрева. */
+    private long remaining;
+
+    /** Момент окончания прогрева по времени ({@link System#nanoTime()}). */
+    private final long deadline;
+
+    /** Время компиляции JIT на последней проверке или -1. */
+    private long lastCompileTime = -1;
+
+    /** Количество запросов с последней проверки активности компилятора. */
+    private int sinceCheck;
+
+    /** Настоящий слушающий сокет, открытый после прогрева. */
+    private ServerSocket listener;
+
+    /**
+     * Конструктор класса FCGIWarmup.
+     *
+     * @param opener Способ открытия настоящего слушающего сокета.
+     * @param corpus Поток записей одного соединения.
+     * @param requests Количество запросов прогрева.
+     * @param millis Максимальная длительность прогрева в миллисекундах.
+     * @throws IOException Если сокет не удалось создать.
+     */
+    public FCGIWarmup(Opener opener, byte[] corpus, long requests, long millis) throws IOException {
+        this.opener = opener;
+        this.corpus = corpus;
+        this.corpusRequests = Math.max(1, countRequests(corpus));
+        this.remaining = requests;
+        this.deadline = System.nanoTime() + millis * 1_000_000L;
+    }
+
+    /**
+     * Открывает слушающий сокет с прогревом, если он включен свойством {@code FCGI_WARMUP_REQUESTS}.
+     *
+     * @param opener Способ открытия настоящего слушающего сокета.
+     * @return Слушающий сокет прогрева или настоящий слушающий сокет, если прогрев выключен.
+     * @throws IOException Если сокет не удалось открыть или корпус не удалось прочитать.
+     */
+    public static ServerSocket wrap(Opener opener) throws IOException {
+        long requests = Long.getLong("FCGI_WARMUP_REQUESTS", 0);
+        if (requests <= 0) {
+            return opener.open();
+        }
+        String path = System.getProperty("FCGI_WARMUP_CORPUS");
+        byte[] corpus = path != null ? Files.readAllBytes(Paths.get(path)) : syntheticCorpus();
+        return new FCGIWarmup(opener, corpus, requests, Long.getLong("FCGI_WARMUP_MILLIS", 30000));
+    }
+
+    /**
+     * Возвращает количество выполненных запросов прогрева.
+     *
+     * @return Количество запросов.
+     */
+    public static long getServed() {
+        return served;
+    }
+
+    /**
+     * Возвращает соединение в памяти, пока прогрев не закончен, затем — соединения настоящего слушающего сокета.
+     *
+     * @return Соединение.
+     * @throws IOException Если настоящий слушающий сокет не удалось открыть или принять соединение.
+     */
+    @Override
+    public Socket accept() throws IOException {
+        if (this.listener == null) {
+            if (this.isWarming()) {
+                this.remaining -= this.corpusRequests;
+                this.sinceCheck += this.corpusRequests;
+                served += this.corpusRequests;
+                return new FCGIMemorySocket(this.corpus);
+            }
+            this.listener = this.opener.open();
+        }
+        return this.listener.accept();
+    }
+
+    /**
+     * Проверяет, нужно ли продолжать прогрев.
+     *
+     * @return {@code true}, если прогрев продолжается.
+     */
+    private boolean isWarming() {
+        if (this.remaining <= 0 || System.nanoTime() - this.deadline >= 0) {
+            return false;
+        }
+        if (this.sinceCheck >= QUIET_CHECK_INTERVAL) {
+            this.sinceCheck = 0;
+            CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+            if (jit != null && jit.isCompilationTimeMonitoringSupported()) {
+                long compileTime = jit.getTotalCompilationTime();
+                if (compileTime == this.lastCompileTime) {
+                    return false;
+                }
+                this.lastCompileTime = compileTime;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public ServerSocketChannel getChannel() {
+        return this.listener != null ? this.listener.getChannel() : null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.remaining = 0;
+        if (this.listener != null) {
+            this.listener.close();
+        }
+        super.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.listener != null ? this.listener.isClosed() : super.isClosed();
+    }
+
+    /**
+     * Подсчитывает запросы (записи BeginRequest) в корпусе.
+     *
+     * @param corpus Поток записей.
+     * @return Количество запросов.
+     */
+    static int countRequests(byte[] corpus) {
+        int[] count = new int[1];
+        new FCGIDecoder(new FCGIRecordListener() {
+            @Override
+            public void onBeginRequest(int requestId, int role, int flags) {
+                ++count[0];
+            }
+        }).decode(ByteBuffer.wrap(corpus));
+        return count[0];
+    }
+
+    /**
+     * Формирует синтетический корпус: GET-запрос и POST-запрос с телом по одному соединению keep-alive.
+     *
+     * @return Поток записей.
+     */
+    static byte[] syntheticCorpus() {
+        ByteArrayOutputStream corpus = new ByteArrayOutputStream();
+        byte[] form = new byte[2048];
+        Arrays.fill(form, (byte) 'a');
+        System.arraycopy("field=".getBytes(), 0, form, 0, 6);
+        appendRequest(corpus, 1, "GET", "/index", "a=1&b=two", new byte[0]);
+        appendRequest(corpus, 1, "POST", "/form", "", form);
+        return corpus.toByteArray();
+    }
+
+    /**
+     * Добавляет в корпус один запрос с ролью RESPONDER и флагом keep-alive.
+     *
+     * @param corpus Корпус.
+     * @param requestId Идентификатор запроса.
+     * @param method Метод HTTP.
+     * @param script Путь сценария.
+     * @param query Строка запроса.
+     * @param body Тело запроса.
+     */
+    private static void appendRequest(ByteArrayOutputStream corpus, int requestId, String method, String script, String query, byte[] body) {
+        ByteBuffer buf = ByteBuffer.allocate(4096 + body.length * 2);
+        FCGIEncoder.putBeginRequest(buf, requestId, FCGIGlobalDefs.def_FCGIResponder, FCGIGlobalDefs.def_FCGIKeepConn);
+        int mark = FCGIEncoder.reserveHeader(buf);
+        String[][] params = {
+                {"FCGI_WARMUP", "1"},
+                {"GATEWAY_INTERFACE", "CGI/1.1"},
+                {"SERVER_PROTOCOL", "HTTP/1.1"},
+                {"SERVER_SOFTWARE", "warmup"},
+                {"SERVER_NAME", "localhost"},
+                {"SERVER_PORT", "80"},
+                {"REMOTE_ADDR", "127.0.0.1"},
+                {"REMOTE_PORT", "40000"},
+                {"REQUEST_METHOD", method},
+                {"REQUEST_URI", query.isEmpty() ? script : script + "?" + query},
+                {"SCRIPT_NAME", script},
+                {"QUERY_STRING", query},
+                {"CONTENT_TYPE", body.length > 0 ? "application/x-www-form-urlencoded" : ""},
+                {"CONTENT_LENGTH", body.length > 0 ? Integer.toString(body.length) : ""},
+                {"HTTP_HOST", "localhost"},
+                {"HTTP_USER_AGENT", "FCGIWarmup"},
+                {"HTTP_ACCEPT", "*/*"},
+                {"HTTP_ACCEPT_ENCODING", "gzip, deflate"},
+        };
+        for (String[] param : params) {
+            FCGIEncoder.putNameValue(buf, param[0], param[1]);
+        }
+        FCGIEncoder.finishRecord(buf, mark, FCGIGlobalDefs.def_FCGIParams, requestId);
+        FCGIEncoder.putHeader(buf, FCGIGlobalDefs.def_FCGIParams, requestId, 0, 0);
+        ByteBuffer src = ByteBuffer.wrap(body);
+        while (src.hasRemaining()) {
+            FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, requestId, src);
+        }
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, requestId, ByteBuffer.allocate(0));
+        corpus.write(buf.array(), 0, buf.position());
+    }
+}
@@ -0,0 +1,318 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты пула соединений {@link FCGIClient}.
+ */
+class FCGIClientTest {
+
+    /** Слушающий сокет приложения, с которым работает клиент. */
+    private ServerSocket server;
+
+    @AfterEach
+    void closeServer() throws IOException {
+        if (this.server != null) {
+            this.server.close();
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void singleConnectionIsSharedByConcurrentCallers() throws Exception {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        FCGIServer app = new FCGIServer(this.server, FCGIServer.newWorkerPool(null), (request, body) ->
+                CompletableFuture.completedFuture(("Content-Type: text/plain\r\n\r\n" + request.params.getProperty("QUERY_STRING"))
+                        .getBytes(StandardCharsets.US_ASCII)));
+        Thread acceptor = new Thread(() -> {
+            try {
+                app.serve();
+            } catch (IOException e) {
+                // Слушающий сокет закрыт
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // Приложение не поддерживает мультиплексирование: одно соединение выполняет один запрос за раз
+        FCGIClient client = new FCGIClient("127.0.0.1", this.server.getLocalPort(), 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            int id = t;
+            Thread caller = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; ++i) {
+                        Properties params = new Properties();
+                        params.setProperty("QUERY_STRING", id + "-" + i);
+                        FCGIClientResponse response = client.execute(params, null);
+                        String text = new String(response.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+                        assertEquals(0, (int) response.completion().get(10, TimeUnit.SECONDS));
+                        assertEquals("Content-Type: text/plain\r\n\r\n" + id + "-" + i, text);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "caller-" + t);
+            caller.setDaemon(true);
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertNull(failure.get());
+        assertEquals(1, client.getConnectionCount());
+        client.close();
+    }
+
+    @Test
+    @Timeout(30)
+    void failedProbeReleasesConnectionSlot() throws Exception {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            // Приложение закрывает соединение, не ответив на GetValues
+            while (!this.server.isClosed()) {
+                try (Socket socket = this.server.accept()) {
+                    socket.getInputStream().read();
+                } catch (IOException e) {
+                    // Слушающий сокет закрыт
+                }
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        FCGIClient client = new FCGIClient("127.0.0.1", this.server.getLocalPort(), 1);
+        client.probeTimeout = 10000;
+        for (int i = 0; i < 3; ++i) {
+            assertThrows(IOException.class, () -> client.execute(new Properties(), null));
+            assertEquals(0, client.getConnectionCount());
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void refusedConnectionFails() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = closed.getLocalPort();
+        }
+        FCGIClient client = new FCGIClient("127.0.0.1", port, 1);
+        for (int i = 0; i < 2; ++i) {
+            assertThrows(IOException.class, () -> client.execute(new Properties(), null));
+        }
+        assertEquals(0, client.getConnectionCount());
+    }
+
+    @Test
+    @Timeout(30)
+    void requestIsRetriedWhenReusedConnectionIsClosedByPeer() throws Exception {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        AtomicInteger accepted = new AtomicInteger();
+        Thread acceptor = new Thread(() -> {
+            while (!this.server.isClosed()) {
+                try {
+                    Socket socket = this.server.accept();
+                    // Первое соединение отвечает на первый запрос, а на втором сбрасывается приложением
+                    // до чтения тела, пока клиент еще отправляет его
+                    int resetAt = accepted.incrementAndGet() == 1 ? 2 : 0;
+                    Thread peer = new Thread(() -> servePeer(socket, resetAt, 0), "test-peer");
+                    peer.setDaemon(true);
+                    peer.start();
+                } catch (IOException e) {
+                    // Слушающий сокет закрыт
+                }
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        FCGIClient client = new FCGIClient("127.0.0.1", this.server.getLocalPort(), 1);
+        assertEquals("first", call(client, "first", null));
+        // Тело достаточно велико, чтобы отправка продолжалась после сброса соединения
+        byte[] body = new byte[8 << 20];
+        assertEquals("second " + body.length, call(client, "second", body));
+        assertEquals(2, accepted.get());
+        client.close();
+    }
+
+    @Test
+    @Timeout(30)
+    void requestIsRetriedWhenReusedConnectionIsClosedBeforeResponse() throws Exception {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        AtomicInteger accepted = new AtomicInteger();
+        Thread acceptor = new Thread(() -> {
+            while (!this.server.isClosed()) {
+                try {
+                    Socket socket = this.server.accept();
+                    // Первое соединение отвечает на первый запрос, а второй читает целиком и закрывается
+                    // без ответа, как PHP-FPM после pm.max_requests
+                    int closeAt = accepted.incrementAndGet() == 1 ? 2 : 0;
+                    Thread peer = new Thread(() -> servePeer(socket, 0, closeAt), "test-peer");
+                    peer.setDaemon(true);
+                    peer.start();
+                } catch (IOException e) {
+                    // Слушающий сокет закрыт
+                }
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        FCGIClient client = new FCGIClient("127.0.0.1", this.server.getLocalPort(), 1);
+        client.probeTimeout = 0;
+        assertEquals("first", call(client, "first", null));
+        assertEquals("second 3", call(client, "second", new byte[3]));
+        assertEquals(2, accepted.get());
+        client.close();
+    }
+
+    @Test
+    @Timeout(30)
+    void slowReaderBoundsBufferedResponse() throws Exception {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        byte[] large = new byte[4 << 20];
+        FCGIServer app = new FCGIServer(this.server, FCGIServer.newWorkerPool(null), (request, body) ->
+                CompletableFuture.completedFuture(large));
+        Thread acceptor = new Thread(() -> {
+            try {
+                app.serve();
+            } catch (IOException e) {
+                // Слушающий сокет закрыт
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        FCGIClient client = new FCGIClient("127.0.0.1", this.server.getLocalPort(), 1);
+        client.responseBufferLimit = 65536;
+        FCGIClientResponse response = client.execute(new Properties(), null);
+        Thread.sleep(500);
+        // Соединение без мультиплексирования перестает читать ответ, пока вывод не прочитан
+        assertTrue(response.getBuffered() <= client.responseBufferLimit + FCGIGlobalDefs.def_FCGIMaxLen);
+        assertEquals(large.length, response.getInputStream().readAllBytes().length);
+        assertEquals(0, (int) response.completion().get(10, TimeUnit.SECONDS));
+        client.close();
+    }
+
+    @Test
+    void multiplexedResponseOverLimitIsRejected() {
+        FCGIClientResponse response = new FCGIClientResponse(100);
+        assertTrue(response.offer(ByteBuffer.allocate(150), false));
+        assertFalse(response.offer(ByteBuffer.allocate(1), false));
+        response.fail(new IOException("aborted"));
+        // Вывод прерванного запроса отбрасывается
+        assertTrue(response.offer(ByteBuffer.allocate(1), false));
+        assertEquals(150, response.getBuffered());
+    }
+
+    private static String call(FCGIClient client, String query, byte[] body) throws Exception {
+        Properties params = new Properties();
+        params.setProperty("QUERY_STRING", query);
+        FCGIClientResponse response = client.execute(params, body);
+        String text = new String(response.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+        assertEquals(0, (int) response.completion().get(10, TimeUnit.SECONDS));
+        return text;
+    }
+
+    /**
+     * Приложение, отвечающее строкой запроса и длиной тела. Запрос с порядковым номером {@code resetAt}
+     * соединение сбрасывает сразу после чтения параметров, а на запрос с номером {@code closeAt}
+     * закрывается без ответа после чтения тела.
+     */
+    private static void servePeer(Socket socket, int resetAt, int closeAt) {
+        try (socket) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            AtomicInteger begun = new AtomicInteger();
+            long[] length = new long[1];
+            String[] query = new String[1];
+            boolean[] reset = new boolean[1];
+            boolean[] close = new boolean[1];
+            IOException[] failure = new IOException[1];
+            FCGIDecoder decoder = new FCGIDecoder(new FCGIRecordListener() {
+                @Override
+                public void onBeginRequest(int requestId, int role, int flags) {
+                    begun.incrementAndGet();
+                    length[0] = 0;
+                }
+
+                @Override
+                public void onParam(int requestId, String name, String value) {
+                    if ("QUERY_STRING".equals(name)) {
+                        query[0] = value;
+                    }
+                }
+
+                @Override
+                public void onParamsEnd(int requestId) {
+                    reset[0] = begun.get() == resetAt;
+                }
+
+                @Override
+                public void onStdin(int requestId, ByteBuffer content) {
+                    if (content.hasRemaining()) {
+                        length[0] += content.remaining();
+                        return;
+                    }
+                    if (begun.get() == closeAt) {
+                        close[0] = true;
+                        return;
+                    }
+                    String text = length[0] > 0 ? query[0] + " " + length[0] : query[0];
+                    ByteBuffer reply = ByteBuffer.allocate(256);
+                    FCGIEncoder.putStream(reply, FCGIGlobalDefs.def_FCGIStdout, requestId, ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+                    FCGIEncoder.putStream(reply, FCGIGlobalDefs.def_FCGIStdout, requestId, ByteBuffer.allocate(0));
+                    FCGIEncoder.putEndRequest(reply, requestId, 0, FCGIGlobalDefs.def_FCGIRequestComplete);
+                    try {
+                        out.write(reply.array(), 0, reply.position());
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            byte[] buf = new byte[16384];
+            int n;
+            while (failure[0] == null && (n = in.read(buf)) > 0) {
+                // Запись разбирается по байту, чтобы сброс произошел сразу после параметров
+                for (int i = 0; i < n && !reset[0] && !close[0]; ++i) {
+                    decoder.decode(ByteBuffer.wrap(buf, i, 1));
+                }
+                if (reset[0]) {
+                    socket.setSoLinger(true, 0);
+                    return;
+                }
+                if (close[0]) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Соединение закрыто клиентом
+        }
+    }
+}
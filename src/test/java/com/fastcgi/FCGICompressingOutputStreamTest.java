@@ -0,0 +1,119 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты {@link FCGICompressingOutputStream}.
+ */
+class FCGICompressingOutputStreamTest {
+
+    private static final String HEADERS = "Content-Type: text/plain\r\n\r\n";
+
+    @Test
+    void streamedBodyWithFlushesIsCompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FCGICompressingOutputStream stream = new FCGICompressingOutputStream(out, true);
+        StringBuilder body = new StringBuilder();
+        stream.write(HEADERS.getBytes(StandardCharsets.US_ASCII));
+        stream.flush();
+        for (int i = 0; i < 100; ++i) {
+            byte[] chunk = ("chunk " + i + "\n").getBytes(StandardCharsets.US_ASCII);
+            body.append("chunk ").append(i).append('\n');
+            stream.write(chunk);
+            stream.flush();
+        }
+        stream.close();
+
+        byte[] response = out.toByteArray();
+        int split = headerEnd(response);
+        String headers = new String(response, 0, split, StandardCharsets.US_ASCII);
+        assertTrue(headers.contains("Content-Encoding: gzip"), headers);
+        byte[] compressed = Arrays.copyOfRange(response, split, response.length);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertEquals(body.toString(), new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    void flushedDataIsSentImmediately() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FCGICompressingOutputStream stream = new FCGICompressingOutputStream(out, false);
+        stream.write((HEADERS + "first").getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0, out.size());
+        stream.flush();
+        assertTrue(out.size() > HEADERS.length());
+        stream.close();
+    }
+
+    @Test
+    void smallBodyWithoutFlushIsPassedThrough() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FCGICompressingOutputStream stream = new FCGICompressingOutputStream(out, true);
+        stream.write((HEADERS + "small").getBytes(StandardCharsets.US_ASCII));
+        stream.close();
+        assertEquals(HEADERS + "small", out.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void partialContentIsPassedThrough() throws IOException {
+        String body = "x".repeat(4096);
+        for (String headers : new String[]{
+                "Status: 206 Partial Content\r\n" + HEADERS,
+                "Content-Range: bytes 0-4095/10000\r\n" + HEADERS}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FCGICompressingOutputStream stream = new FCGICompressingOutputStream(out, true);
+            stream.write((headers + body).getBytes(StandardCharsets.US_ASCII));
+            stream.close();
+            assertEquals(headers + body, out.toString(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    void acceptEncodingIsMergedIntoVary() throws IOException {
+        assertEquals(List.of("Vary: Accept-Encoding"), varyHeaders(HEADERS));
+        assertEquals(List.of("Vary: Cookie, Accept-Encoding"), varyHeaders("Vary: Cookie\r\n" + HEADERS));
+        assertEquals(List.of("Vary: accept-encoding, Cookie"), varyHeaders("Vary: accept-encoding, Cookie\r\n" + HEADERS));
+        assertEquals(List.of("Vary: *"), varyHeaders("Vary: *\r\n" + HEADERS));
+    }
+
+    /**
+     * Сжимает ответ с заданными заголовками и возвращает его заголовки Vary.
+     */
+    private static List<String> varyHeaders(String headers) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FCGICompressingOutputStream stream = new FCGICompressingOutputStream(out, true);
+        stream.write((headers + "x".repeat(4096)).getBytes(StandardCharsets.US_ASCII));
+        stream.close();
+        byte[] response = out.toByteArray();
+        String sent = new String(response, 0, headerEnd(response), StandardCharsets.US_ASCII);
+        assertTrue(sent.contains("Content-Encoding: gzip"), sent);
+        List<String> vary = new ArrayList<>();
+        for (String line : sent.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Vary:", 0, 5)) {
+                vary.add(line);
+            }
+        }
+        return vary;
+    }
+
+    private static int headerEnd(byte[] response) {
+        for (int i = 0; i + 3 < response.length; ++i) {
+            if (response[i] == '\r' && response[i + 1] == '\n' && response[i + 2] == '\r' && response[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,135 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты {@link FCGIConnectionWriter}: одновременная запись из нескольких потоков и отложенная запись.
+ */
+class FCGIConnectionWriterTest {
+
+    /** Размер одной записи теста: номер потока и номер записи. */
+    private static final int RECORD = 8;
+
+    @Test
+    @Timeout(60)
+    void concurrentWritesThroughChannelAreDeliveredInOrder() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel accepted = server.accept()) {
+                this.writeConcurrently(client.socket(), accepted.socket().getInputStream(), 16, 20000);
+            }
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void concurrentWritesThroughStreamAreDeliveredInOrder() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            this.writeConcurrently(client, accepted.getInputStream(), 4, 20000);
+        }
+    }
+
+    @Test
+    void deferredDataIsReturnedUntilLimit() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel accepted = server.accept()) {
+                FCGIConnectionWriter writer = new FCGIConnectionWriter(client.socket(), 0);
+                writer.defer(16);
+                writer.write(new byte[]{1, 2, 3}, 0, 3);
+                writer.write(new byte[]{4, 5}, 0, 2);
+                assertEquals(5, writer.getDeferredSize());
+                ByteBuffer deferred = writer.takeDeferred();
+                byte[] data = new byte[deferred.remaining()];
+                deferred.get(data);
+                assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, data);
+                assertNull(writer.takeDeferred());
+
+                // Данные сверх ограничения отправляются вместе с накопленными, и отложенная запись выключается
+                writer.defer(4);
+                writer.write(new byte[]{6, 7, 8}, 0, 3);
+                writer.write(new byte[]{9, 10}, 0, 2);
+                assertEquals(0, writer.getDeferredSize());
+                byte[] received = new byte[5];
+                new DataInputStream(accepted.socket().getInputStream()).readFully(received);
+                assertArrayEquals(new byte[]{6, 7, 8, 9, 10}, received);
+            }
+        }
+    }
+
+    /**
+     * Записывает в соединение данные из нескольких потоков, одновременно начинающих каждую запись,
+     * и проверяет, что все записи получены и записи каждого потока идут по порядку.
+     *
+     * @param socket Соединение, в которое пишет {@link FCGIConnectionWriter}.
+     * @param in Поток чтения другой стороны соединения.
+     * @param threads Количество записывающих потоков.
+     * @param rounds Количество записей каждого потока.
+     */
+    private void writeConcurrently(Socket socket, InputStream in, int threads, int rounds) throws Exception {
+        FCGIConnectionWriter writer = new FCGIConnectionWriter(socket, 0);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            int id = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int seq = 0; seq < rounds; ++seq) {
+                        barrier.await();
+                        writer.write(ByteBuffer.allocate(RECORD).putInt(id).putInt(seq).array(), 0, RECORD);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    barrier.reset();
+                }
+            }, "writer-" + t);
+            thread.setDaemon(true);
+            thread.start();
+            writers.add(thread);
+        }
+
+        int[] next = new int[threads];
+        DataInputStream data = new DataInputStream(in);
+        try {
+            for (long i = 0, total = (long) threads * rounds; i < total; ++i) {
+                int id = data.readInt();
+                int seq = data.readInt();
+                assertTrue(id >= 0 && id < threads, "Неизвестный поток " + id);
+                assertEquals(next[id]++, seq, "Порядок записей потока " + id);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Соединение закрыто до получения всех записей", e);
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,278 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты {@link FCGIDecoder} на данных, записанных {@link FCGIEncoder}: результат разбора не должен зависеть
+ * от того, какими фрагментами приходят данные.
+ */
+class FCGIDecoderTest {
+
+    private static final String LONG_VALUE = "x".repeat(300);
+
+    private static final byte[] BODY = body(150000);
+
+    @Test
+    void roundTripIsIndependentOfFragmentation() {
+        ByteBuffer encoded = encodeExchange();
+        Recorder whole = decode(encoded, encoded.remaining());
+
+        assertEquals(List.of(
+                "getValues {FCGI_MAX_CONNS=, FCGI_MPXS_CONNS=}",
+                "begin 1 1 1",
+                "begin 2 3 0",
+                "param 1 SCRIPT_NAME=/index",
+                "param 2 SCRIPT_NAME=/filter",
+                "param 2 UTF=значение",
+                "param 1 LONG=" + LONG_VALUE,
+                "paramsEnd 1",
+                "paramsEnd 2",
+                "stdin 1 end",
+                "data 2 end",
+                "stdout 1 end",
+                "stderr 1 end",
+                "abort 2",
+                "end 1 7 0",
+                "unknown 42 1"), whole.events);
+        assertArrayEquals(BODY, whole.stream("stdin 1"));
+        assertArrayEquals("filtered".getBytes(StandardCharsets.US_ASCII), whole.stream("data 2"));
+        assertArrayEquals("abc".getBytes(StandardCharsets.US_ASCII), whole.stream("stdout 1"));
+        assertArrayEquals("warning".getBytes(StandardCharsets.US_ASCII), whole.stream("stderr 1"));
+
+        for (int size : new int[]{1, 3, 7, 8, 4096}) {
+            Recorder fragmented = decode(encoded, size);
+            assertEquals(whole.events, fragmented.events, "фрагменты по " + size + " байт");
+            for (Map.Entry<String, ByteArrayOutputStream> entry : whole.streams.entrySet()) {
+                assertArrayEquals(entry.getValue().toByteArray(), fragmented.stream(entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    @Test
+    void unsupportedVersionIsStickyUntilReset() {
+        Recorder recorder = new Recorder();
+        FCGIDecoder decoder = new FCGIDecoder(recorder);
+        ByteBuffer bad = ByteBuffer.allocate(16);
+        FCGIEncoder.putHeader(bad, FCGIGlobalDefs.def_FCGIStdin, 1, 0, 0);
+        bad.put(0, (byte) 2).flip();
+
+        assertEquals(FCGIGlobalDefs.def_FCGIUnsupportedVersion, decoder.decode(bad));
+        ByteBuffer good = ByteBuffer.allocate(16);
+        FCGIEncoder.putAbortRequest(good, 1);
+        good.flip();
+        assertEquals(FCGIGlobalDefs.def_FCGIUnsupportedVersion, decoder.decode(good.duplicate()));
+        assertTrue(recorder.events.isEmpty());
+
+        decoder.reset();
+        assertEquals(0, decoder.decode(good));
+        assertTrue(decoder.isAtRecordBoundary());
+        assertEquals(List.of("abort 1"), recorder.events);
+    }
+
+    @Test
+    void beginRequestWithNullIdIsProtocolError() {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        FCGIEncoder.putBeginRequest(buf, FCGIGlobalDefs.def_FCGINullRequestID, FCGIGlobalDefs.def_FCGIResponder, 0);
+        buf.flip();
+        assertEquals(FCGIGlobalDefs.def_FCGIProtocolError, new FCGIDecoder(new Recorder()).decode(buf));
+    }
+
+    @Test
+    void oversizedParamIsRejectedBeforeItsData() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        ByteBuffer pair = ByteBuffer.allocate(8).putInt(0x80000000 | (FCGIMessage.MAX_PARAMS + 1)).put((byte) 0).flip();
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIParams, 1, pair);
+        assertEquals(FCGIGlobalDefs.def_FCGIParamsError, new FCGIDecoder(new Recorder()).decode(buf.flip()));
+    }
+
+    @Test
+    void pendingParamsOfAllRequestsAreBounded() {
+        FCGIDecoder decoder = new FCGIDecoder(new Recorder());
+        int chunk = 60000;
+        int error = 0;
+        // Каждый запрос оставляет незавершенную пару: объявленное имя длиннее переданных данных
+        for (int requestId = 1; error == 0 && requestId <= FCGIMessage.MAX_PARAMS / chunk + 1; ++requestId) {
+            ByteBuffer content = ByteBuffer.allocate(chunk + 5).putInt(0x80000000 | (chunk + 1)).put((byte) 0);
+            content.position(content.limit()).flip();
+            ByteBuffer buf = ByteBuffer.allocate(chunk + 64);
+            FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIParams, requestId, content);
+            error = decoder.decode(buf.flip());
+        }
+        assertEquals(FCGIGlobalDefs.def_FCGIParamsError, error);
+    }
+
+    /**
+     * Записывает обмен из двух мультиплексированных запросов со всеми типами записей. Параметры запросов
+     * передаются вперемешку фрагментами по 5 байт, поэтому пары разрезаются между записями.
+     */
+    private static ByteBuffer encodeExchange() {
+        ByteBuffer dst = ByteBuffer.allocate(BODY.length + 4096);
+
+        int mark = FCGIEncoder.reserveHeader(dst);
+        FCGIEncoder.putNameValue(dst, FCGIGlobalDefs.def_FCGIMaxConns, "");
+        FCGIEncoder.putNameValue(dst, FCGIGlobalDefs.def_FCGIMpxsConns, "");
+        FCGIEncoder.finishRecord(dst, mark, FCGIGlobalDefs.def_FCGIGetValues, FCGIGlobalDefs.def_FCGINullRequestID);
+
+        FCGIEncoder.putBeginRequest(dst, 1, FCGIGlobalDefs.def_FCGIResponder, FCGIGlobalDefs.def_FCGIKeepConn);
+        FCGIEncoder.putBeginRequest(dst, 2, FCGIGlobalDefs.def_FCGIFilter, 0);
+
+        ByteBuffer params1 = ByteBuffer.allocate(1024);
+        FCGIEncoder.putNameValue(params1, "SCRIPT_NAME", "/index");
+        FCGIEncoder.putNameValue(params1, "LONG", LONG_VALUE);
+        params1.flip();
+        ByteBuffer params2 = ByteBuffer.allocate(1024);
+        FCGIEncoder.putNameValue(params2, "SCRIPT_NAME", "/filter");
+        FCGIEncoder.putNameValue(params2, "UTF", "значение");
+        params2.flip();
+        while (params1.hasRemaining() || params2.hasRemaining()) {
+            putSlice(dst, FCGIGlobalDefs.def_FCGIParams, 1, params1, 5);
+            putSlice(dst, FCGIGlobalDefs.def_FCGIParams, 2, params2, 5);
+        }
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIParams, 1, ByteBuffer.allocate(0));
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIParams, 2, ByteBuffer.allocate(0));
+
+        // Тело длиннее одной записи делится putStream на несколько записей
+        ByteBuffer body = ByteBuffer.wrap(BODY);
+        while (body.hasRemaining()) {
+            FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIStdin, 1, body);
+        }
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIStdin, 1, ByteBuffer.allocate(0));
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIData, 2, ByteBuffer.wrap("filtered".getBytes(StandardCharsets.US_ASCII)));
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIData, 2, ByteBuffer.allocate(0));
+
+        // Запись с выравниванием
+        FCGIEncoder.putHeader(dst, FCGIGlobalDefs.def_FCGIStdout, 1, 3, 5);
+        dst.put("abc".getBytes(StandardCharsets.US_ASCII)).put(new byte[5]);
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIStdout, 1, ByteBuffer.allocate(0));
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIStderr, 1, ByteBuffer.wrap("warning".getBytes(StandardCharsets.US_ASCII)));
+        FCGIEncoder.putStream(dst, FCGIGlobalDefs.def_FCGIStderr, 1, ByteBuffer.allocate(0));
+        FCGIEncoder.putAbortRequest(dst, 2);
+        FCGIEncoder.putEndRequest(dst, 1, 7, FCGIGlobalDefs.def_FCGIRequestComplete);
+        FCGIEncoder.putHeader(dst, 42, 1, 0, 0);
+        return dst.flip();
+    }
+
+    private static void putSlice(ByteBuffer dst, int type, int requestId, ByteBuffer src, int size) {
+        if (!src.hasRemaining()) {
+            return;
+        }
+        ByteBuffer slice = src.slice();
+        slice.limit(Math.min(size, src.remaining()));
+        src.position(src.position() + FCGIEncoder.putStream(dst, type, requestId, slice));
+    }
+
+    private static Recorder decode(ByteBuffer encoded, int fragment) {
+        Recorder recorder = new Recorder();
+        FCGIDecoder decoder = new FCGIDecoder(recorder);
+        ByteBuffer src = encoded.duplicate();
+        while (src.hasRemaining()) {
+            ByteBuffer part = src.slice();
+            part.limit(Math.min(fragment, src.remaining()));
+            assertEquals(0, decoder.decode(part));
+            assertEquals(0, part.remaining());
+            src.position(src.position() + part.position());
+        }
+        assertTrue(decoder.isAtRecordBoundary());
+        return recorder;
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            body[i] = (byte) (i * 31 + i / 251);
+        }
+        return body;
+    }
+
+    /** События разбора в порядке получения и содержимое потоков. */
+    private static final class Recorder implements FCGIRecordListener {
+
+        final List<String> events = new ArrayList<>();
+
+        final Map<String, ByteArrayOutputStream> streams = new TreeMap<>();
+
+        byte[] stream(String key) {
+            ByteArrayOutputStream data = this.streams.get(key);
+            return data == null ? new byte[0] : data.toByteArray();
+        }
+
+        private void content(String stream, int requestId, ByteBuffer content) {
+            String key = stream + " " + requestId;
+            if (!content.hasRemaining()) {
+                this.events.add(key + " end");
+                return;
+            }
+            byte[] bytes = new byte[content.remaining()];
+            content.duplicate().get(bytes);
+            this.streams.computeIfAbsent(key, k -> new ByteArrayOutputStream()).writeBytes(bytes);
+        }
+
+        @Override
+        public void onBeginRequest(int requestId, int role, int flags) {
+            this.events.add("begin " + requestId + " " + role + " " + flags);
+        }
+
+        @Override
+        public void onParam(int requestId, String name, String value) {
+            this.events.add("param " + requestId + " " + name + "=" + value);
+        }
+
+        @Override
+        public void onParamsEnd(int requestId) {
+            this.events.add("paramsEnd " + requestId);
+        }
+
+        @Override
+        public void onStdin(int requestId, ByteBuffer content) {
+            this.content("stdin", requestId, content);
+        }
+
+        @Override
+        public void onData(int requestId, ByteBuffer content) {
+            this.content("data", requestId, content);
+        }
+
+        @Override
+        public void onStdout(int requestId, ByteBuffer content) {
+            this.content("stdout", requestId, content);
+        }
+
+        @Override
+        public void onStderr(int requestId, ByteBuffer content) {
+            this.content("stderr", requestId, content);
+        }
+
+        @Override
+        public void onAbortRequest(int requestId) {
+            this.events.add("abort " + requestId);
+        }
+
+        @Override
+        public void onEndRequest(int requestId, int appStatus, int protocolStatus) {
+            this.events.add("end " + requestId + " " + appStatus + " " + protocolStatus);
+        }
+
+        @Override
+        public void onGetValues(Properties names) {
+            this.events.add("getValues " + new TreeMap<>(names));
+        }
+
+        @Override
+        public void onUnknownType(int type, int requestId) {
+            this.events.add("unknown " + type + " " + requestId);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты {@link FCGIFormReader}. Тело подается фрагментами разного размера: результат разбора не должен
+ * зависеть от того, как разделитель частей и escape-последовательности разрезаны между чтениями.
+ */
+class FCGIFormReaderTest {
+
+    private static final String BOUNDARY = "----boundary42";
+
+    @Test
+    void urlencodedFieldsAreDecoded() throws IOException {
+        String body = "a=1&b=hello+world&&c=%41%62&empty=&flag&bad=%zz&short=%4";
+        for (int fragment : new int[]{1, 2, 3, 1024}) {
+            assertEquals(List.of("a=1", "b=hello world", "c=Ab", "empty=", "flag=", "bad=%zz", "short=%4"),
+                    urlencoded(body, fragment), "фрагменты по " + fragment + " байт");
+        }
+    }
+
+    @Test
+    void invalidEscapeDoesNotSwallowSeparators() throws IOException {
+        for (int fragment : new int[]{1, 2, 1024}) {
+            assertEquals(List.of("a=%2", "b=1"), urlencoded("a=%2&b=1", fragment));
+            assertEquals(List.of("a=%", "b=1"), urlencoded("a=%&b=1", fragment));
+            assertEquals(List.of("a%=1"), urlencoded("a%=1", fragment));
+            assertEquals(List.of("a=%"), urlencoded("a=%", fragment));
+        }
+    }
+
+    @Test
+    void multipartIsIndependentOfFragmentation() throws IOException {
+        // Содержимое файла похоже на разделитель, но не совпадает с ним
+        byte[] content = ("line\r\n--" + BOUNDARY.substring(0, 8) + "\r\n-" + "x".repeat(5000)).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = multipart(
+                field("title", "значение"),
+                file("upload", "a.txt", content),
+                field("tail", "end"));
+        for (int fragment : new int[]{1, 3, 7, 17, 100000}) {
+            try (FCGIFormReader form = new FCGIFormReader(fragmented(body, fragment), params("multipart/form-data; boundary=" + BOUNDARY, body.length))) {
+                FCGIFormPart title = form.next();
+                assertEquals("title", title.name);
+                assertEquals("значение", title.getString());
+
+                FCGIFormPart upload = form.next();
+                assertTrue(upload.isFile());
+                assertEquals("a.txt", upload.filename);
+                assertEquals("text/plain", upload.contentType);
+                assertArrayEquals(content, upload.getInputStream().readAllBytes(), "фрагменты по " + fragment + " байт");
+
+                FCGIFormPart tail = form.next();
+                assertEquals("end", tail.getString());
+                assertNull(form.next());
+            }
+        }
+    }
+
+    @Test
+    void unreadFileIsSpilledToDiskAndRemovedOnClose() throws IOException {
+        Path dir = Files.createTempDirectory("fcgi-form-test");
+        byte[] content = new byte[200000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (i * 7 + i / 509);
+        }
+        byte[] body = multipart(file("big", "big.bin", content), field("after", "ok"));
+        System.setProperty("FCGI_FORM_TMPDIR", dir.toString());
+        try {
+            InputStream spilled;
+            try (FCGIFormReader form = new FCGIFormReader(fragmented(body, 4096), params("multipart/form-data; boundary=" + BOUNDARY, body.length))) {
+                FCGIFormPart big = form.next();
+                // Переход к следующему полю без чтения файла сохраняет его остаток во временный файл
+                assertEquals("ok", form.next().getString());
+                assertEquals(1, files(dir));
+                spilled = big.getInputStream();
+                assertArrayEquals(content, spilled.readAllBytes());
+            }
+            assertEquals(0, files(dir));
+            assertThrows(IOException.class, spilled::read);
+        } finally {
+            System.clearProperty("FCGI_FORM_TMPDIR");
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static List<String> urlencoded(String body, int fragment) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+        List<String> fields = new ArrayList<>();
+        try (FCGIFormReader form = new FCGIFormReader(fragmented(bytes, fragment), params("application/x-www-form-urlencoded", bytes.length))) {
+            for (FCGIFormPart part; (part = form.next()) != null; ) {
+                fields.add(part.name + "=" + part.getString());
+            }
+        }
+        return fields;
+    }
+
+    private static Properties params(String contentType, int contentLength) {
+        Properties params = new Properties();
+        params.setProperty("CONTENT_TYPE", contentType);
+        params.setProperty("CONTENT_LENGTH", Integer.toString(contentLength));
+        return params;
+    }
+
+    private static byte[] field(String name, String value) {
+        return ("Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] file(String name, String filename, byte[] content) {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        part.writeBytes(("Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        part.writeBytes(content);
+        return part.toByteArray();
+    }
+
+    /**
+     * Собирает тело multipart с преамбулой из частей, каждая из которых содержит заголовки и данные.
+     */
+    private static byte[] multipart(byte[]... parts) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes("preamble\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (byte[] part : parts) {
+            body.writeBytes(("--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            body.writeBytes(part);
+            body.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        body.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    /**
+     * Возвращает поток, каждое чтение которого выдает не больше {@code fragment} байт.
+     */
+    private static InputStream fragmented(byte[] data, int fragment) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, fragment));
+            }
+        };
+    }
+
+    private static long files(Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.count();
+        }
+    }
+}
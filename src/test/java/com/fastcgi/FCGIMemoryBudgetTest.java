@@ -0,0 +1,199 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты учета памяти {@link FCGIMemoryBudget}. Бюджет задается свойствами {@code FCGI_MEMORY_BUDGET}
+ * и {@code FCGI_MEMORY_WAIT} в отдельном запуске surefire {@code memory-budget-test}.
+ */
+class FCGIMemoryBudgetTest {
+
+    @Test
+    void reservationsAreReturnedToBudget() {
+        assertTrue(FCGIMemoryBudget.ENABLED);
+        long before = FCGIMemoryBudget.getUsed();
+        long free = free();
+        assertTrue(FCGIMemoryBudget.tryReserve(free));
+        assertTrue(FCGIMemoryBudget.isExhausted());
+        assertFalse(FCGIMemoryBudget.tryReserve(1));
+        FCGIMemoryBudget.release(free);
+        assertFalse(FCGIMemoryBudget.isExhausted());
+
+        FCGIRequest request = new FCGIRequest();
+        FCGIMemoryBudget.reserve(request, 1000);
+        FCGIMemoryBudget.reserve(request, 24);
+        assertEquals(before + 1024, FCGIMemoryBudget.getUsed());
+        FCGIMemoryBudget.releaseRequest(request);
+        FCGIMemoryBudget.releaseRequest(request);
+        assertEquals(before, FCGIMemoryBudget.getUsed());
+    }
+
+    @Test
+    void connectionBuffersDoNotExhaustBudget() {
+        long connections = FCGIMemoryBudget.getConnectionUsed();
+        FCGIRequest request = new FCGIRequest();
+        FCGIMemoryBudget.reserveConnection(request, 2 * FCGIMemoryBudget.getLimit());
+        FCGIMemoryBudget.reserve(request, 100);
+        assertFalse(FCGIMemoryBudget.isExhausted());
+        assertTrue(FCGIMemoryBudget.tryReserve(1));
+        FCGIMemoryBudget.release(1);
+
+        FCGIMemoryBudget.releaseConnection(request);
+        assertEquals(connections, FCGIMemoryBudget.getConnectionUsed());
+        assertEquals(0, request.reservedBytes);
+    }
+
+    @Test
+    @Timeout(10)
+    void waitersAreWokenByRelease() throws Exception {
+        long free = free();
+        assertTrue(FCGIMemoryBudget.tryReserve(free));
+        FCGIRequest request = new FCGIRequest();
+        CompletableFuture<Boolean> reserved = CompletableFuture.supplyAsync(() -> FCGIMemoryBudget.awaitReserve(request, 1024));
+        CompletableFuture<Void> available = CompletableFuture.runAsync(FCGIMemoryBudget::awaitAvailable);
+        Thread.sleep(50);
+        assertFalse(reserved.isDone());
+        assertFalse(available.isDone());
+
+        FCGIMemoryBudget.release(free);
+        assertTrue(reserved.get(500, TimeUnit.MILLISECONDS));
+        available.get(500, TimeUnit.MILLISECONDS);
+        FCGIMemoryBudget.releaseRequest(request);
+    }
+
+    @Test
+    @Timeout(10)
+    void awaitReserveGivesUpAfterWait() {
+        long free = free();
+        assertTrue(FCGIMemoryBudget.tryReserve(free));
+        try {
+            FCGIRequest request = new FCGIRequest();
+            long start = System.nanoTime();
+            assertFalse(FCGIMemoryBudget.awaitReserve(request, 1024));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+            assertFalse(FCGIMemoryBudget.awaitReserve(request, FCGIMemoryBudget.getLimit() + 1));
+            assertEquals(0, request.reservedBytes);
+        } finally {
+            FCGIMemoryBudget.release(free);
+        }
+    }
+
+    @Test
+    void oversizedParamLengthIsRejectedBeforeAllocation() throws IOException {
+        // Пара с 31-битной длиной имени, данных которой в потоке нет
+        ByteBuffer pair = ByteBuffer.allocate(8).putInt(0xffffffff).put((byte) 1).put((byte) 'a').flip();
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIParams, 1, pair);
+        FCGIRequest request = new FCGIRequest();
+        request.requestID = 1;
+        FCGIInputStream in = new FCGIInputStream(new ByteArrayInputStream(buf.array(), 0, buf.position()), 8192, FCGIGlobalDefs.def_FCGIParams, request);
+
+        assertEquals(-1, new FCGIMessage(in).readParams(new Properties(), request));
+        assertEquals(FCGIGlobalDefs.def_FCGIParamsError, in.getFCGIError());
+        assertEquals(0, request.reservedBytes);
+    }
+
+    @Test
+    void paramsAreChargedToRequest() throws IOException {
+        FCGIRequest request = new FCGIRequest();
+        request.socket = new FCGIMemorySocket(request(1000));
+        assertEquals(0, FCGIInterface.beginRequest(request, true, null));
+        try {
+            assertEquals(1000, request.params.getProperty("VALUE").length());
+            assertEquals("VALUE".length() + 1000 + 2L * request.bufferSize, request.reservedBytes);
+        } finally {
+            FCGIMemoryBudget.releaseConnection(request);
+        }
+    }
+
+    @Test
+    void exhaustedBudgetRejectsRequestWithoutReadingParams() throws IOException {
+        long free = free();
+        assertTrue(FCGIMemoryBudget.tryReserve(free));
+        FCGIRequest request = new FCGIRequest();
+        try {
+            request.socket = new FCGIMemorySocket(request(1000));
+            assertEquals(3, FCGIInterface.beginRequest(request, true, null));
+            assertNull(request.params.getProperty("VALUE"));
+            assertEquals(2L * request.bufferSize, request.reservedBytes);
+            // Параметры пропущены, поток установлен на stdin запроса
+            assertEquals(-1, request.inStream.read());
+            assertEquals(0, request.inStream.getFCGIError());
+        } finally {
+            FCGIMemoryBudget.releaseConnection(request);
+            FCGIMemoryBudget.release(free);
+        }
+    }
+
+    @Test
+    void undeclaredBodyIsReservedBeforeReading() throws IOException {
+        FCGIRequest request = new FCGIRequest();
+        request.params = new Properties();
+        request.inStream = stdin(request, 20000);
+        assertEquals(20000, FCGIServer.readBody(request).length);
+        assertTrue(request.reservedBytes >= 20000);
+        FCGIMemoryBudget.releaseRequest(request);
+    }
+
+    @Test
+    @Timeout(10)
+    void bodyBeyondBudgetIsRejected() throws IOException {
+        FCGIRequest request = new FCGIRequest();
+        request.params = new Properties();
+        request.params.setProperty("CONTENT_LENGTH", "10");
+        request.inStream = stdin(request, (int) FCGIMemoryBudget.getLimit() + FCGIServer.BODY_CHUNK);
+        assertNull(FCGIServer.readBody(request));
+        assertTrue(request.reservedBytes <= FCGIMemoryBudget.getLimit());
+        FCGIMemoryBudget.releaseRequest(request);
+    }
+
+    /**
+     * Формирует поток stdin запроса с телом указанной длины.
+     */
+    private static FCGIInputStream stdin(FCGIRequest request, int length) {
+        request.requestID = 1;
+        ByteBuffer body = ByteBuffer.allocate(length);
+        ByteBuffer buf = ByteBuffer.allocate(length + 1024);
+        while (body.hasRemaining()) {
+            FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, 1, body);
+        }
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, 1, ByteBuffer.allocate(0));
+        return new FCGIInputStream(new ByteArrayInputStream(buf.array(), 0, buf.position()), 8192, FCGIGlobalDefs.def_FCGIStdin, request);
+    }
+
+    /**
+     * Формирует запрос RESPONDER с параметром {@code VALUE} указанной длины и пустым телом.
+     */
+    private static byte[] request(int valueLength) {
+        ByteBuffer buf = ByteBuffer.allocate(valueLength + 256);
+        FCGIEncoder.putBeginRequest(buf, 1, FCGIGlobalDefs.def_FCGIResponder, 0);
+        int mark = FCGIEncoder.reserveHeader(buf);
+        FCGIEncoder.putNameValue(buf, "VALUE", "v".repeat(valueLength));
+        FCGIEncoder.finishRecord(buf, mark, FCGIGlobalDefs.def_FCGIParams, 1);
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIParams, 1, ByteBuffer.allocate(0));
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, 1, ByteBuffer.allocate(0));
+        byte[] bytes = new byte[buf.position()];
+        buf.flip().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Возвращает остаток бюджета.
+     */
+    private static long free() {
+        return FCGIMemoryBudget.getLimit() - (FCGIMemoryBudget.getUsed() - FCGIMemoryBudget.getConnectionUsed());
+    }
+}
@@ -0,0 +1,149 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Тесты {@link FCGIOutputStream} с политикой сброса {@link FCGIFlushPolicy#MODE_TIME}: отложенный сброс
+ * выполняется потоком таймера через общий {@link FCGIConnectionWriter} одновременно с записью других потоков.
+ */
+class FCGIOutputStreamTest {
+
+    @Test
+    @Timeout(10)
+    void deferredFlushIsSentByTimer() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel accepted = server.accept()) {
+                FCGIRequest request = newRequest(client);
+                FCGIOutputStream stdout = new FCGIOutputStream(request.writer, 8192, FCGIGlobalDefs.def_FCGIStdout, request);
+                stdout.flushPolicy = FCGIFlushPolicy.parse("time:1000", null);
+
+                stdout.write("hello".getBytes(StandardCharsets.US_ASCII));
+                stdout.flush();
+                Received received = receive(accepted.socket().getInputStream(), 5, 0);
+                assertEquals("hello", received.stdout.toString(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void timerFlushesInterleaveWithConcurrentWriters() throws Exception {
+        int chunks = 20000;
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel accepted = server.accept()) {
+                FCGIRequest request = newRequest(client);
+                FCGIOutputStream stdout = new FCGIOutputStream(request.writer, 8192, FCGIGlobalDefs.def_FCGIStdout, request);
+                stdout.flushPolicy = FCGIFlushPolicy.parse("time:20", null);
+                FCGIOutputStream stderr = new FCGIOutputStream(request.writer, 8192, FCGIGlobalDefs.def_FCGIStderr, request);
+                stderr.flushPolicy = FCGIFlushPolicy.parse("immediate", null);
+
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+                Thread out = writer(stdout, 'o', chunks, failure);
+                Thread err = writer(stderr, 'e', chunks, failure);
+                Received received = receive(accepted.socket().getInputStream(), chunks * 4L, chunks * 4L);
+                out.join();
+                err.join();
+                assertNull(failure.get());
+                assertArrayEquals(expected('o', chunks), received.stdout.toByteArray());
+                assertArrayEquals(expected('e', chunks), received.stderr.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * Создает запрос, потоки вывода которого пишут в соединение через {@link FCGIConnectionWriter}.
+     */
+    private static FCGIRequest newRequest(SocketChannel channel) throws Exception {
+        FCGIRequest request = new FCGIRequest();
+        request.requestID = 1;
+        request.socket = channel.socket();
+        request.writer = new FCGIConnectionWriter(request.socket, 0);
+        return request;
+    }
+
+    /**
+     * Запускает поток, записывающий в поток вывода фрагменты по 4 байта со сбросом после каждого.
+     */
+    private static Thread writer(FCGIOutputStream stream, char tag, int chunks, AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(() -> {
+            try {
+                for (int i = 0; i < chunks; ++i) {
+                    stream.write(chunk(tag, i));
+                    stream.flush();
+                }
+                stream.empty(false);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "writer-" + tag);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] chunk(char tag, int i) {
+        return new byte[]{(byte) tag, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+    }
+
+    private static byte[] expected(char tag, int chunks) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks; ++i) {
+            data.writeBytes(chunk(tag, i));
+        }
+        return data.toByteArray();
+    }
+
+    /** Содержимое записей stdout и stderr, полученных из соединения. */
+    private static final class Received implements FCGIRecordListener {
+
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        @Override
+        public void onStdout(int requestId, ByteBuffer content) {
+            this.stdout.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        }
+
+        @Override
+        public void onStderr(int requestId, ByteBuffer content) {
+            this.stderr.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        }
+    }
+
+    /**
+     * Читает записи из соединения, пока не получен заданный объем stdout и stderr.
+     */
+    private static Received receive(InputStream in, long stdoutBytes, long stderrBytes) throws Exception {
+        Received received = new Received();
+        FCGIDecoder decoder = new FCGIDecoder(received);
+        byte[] buf = new byte[16384];
+        while (received.stdout.size() < stdoutBytes || received.stderr.size() < stderrBytes) {
+            int n = in.read(buf);
+            if (n < 0) {
+                break;
+            }
+            assertEquals(0, decoder.decode(ByteBuffer.wrap(buf, 0, n)));
+        }
+        return received;
+    }
+}
@@ -0,0 +1,140 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты {@link FCGIRateLimiter}. Ограничение задается свойствами {@code FCGI_RATE_LIMIT=1}
+ * и {@code FCGI_RATE_BURST=5} в отдельном запуске surefire {@code rate-limiter-test}; каждый тест использует собственный адрес клиента.
+ */
+class FCGIRateLimiterTest {
+
+    private static final int BURST = 5;
+
+    @Test
+    void burstIsAllowedThenRejected() {
+        assertTrue(FCGIRateLimiter.ENABLED);
+        Properties params = client("192.0.2.1");
+        for (int i = 0; i < BURST; ++i) {
+            assertTrue(FCGIRateLimiter.tryAcquire(params), "запрос " + i);
+        }
+        assertFalse(FCGIRateLimiter.tryAcquire(params));
+    }
+
+    @Test
+    void clientsAreLimitedIndependently() {
+        Properties first = client("192.0.2.2");
+        for (int i = 0; i < BURST; ++i) {
+            FCGIRateLimiter.tryAcquire(first);
+        }
+        assertFalse(FCGIRateLimiter.tryAcquire(first));
+        assertTrue(FCGIRateLimiter.tryAcquire(client("192.0.2.3")));
+    }
+
+    @Test
+    void requestsWithoutKeyAreNotLimited() {
+        Properties params = new Properties();
+        for (int i = 0; i < BURST * 10; ++i) {
+            assertTrue(FCGIRateLimiter.tryAcquire(params));
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void concurrentRequestsDoNotExceedBurst() throws Exception {
+        Properties params = client("192.0.2.4");
+        AtomicInteger allowed = new AtomicInteger();
+        CyclicBarrier start = new CyclicBarrier(8);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    return;
+                }
+                for (int i = 0; i < 100; ++i) {
+                    if (FCGIRateLimiter.tryAcquire(params)) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(BURST, allowed.get());
+    }
+
+    @Test
+    @Timeout(10)
+    void oneRequestIsRestoredPerInterval() throws Exception {
+        Properties params = client("192.0.2.5");
+        for (int i = 0; i < BURST; ++i) {
+            FCGIRateLimiter.tryAcquire(params);
+        }
+        assertFalse(FCGIRateLimiter.tryAcquire(params));
+        Thread.sleep(1100);
+        assertTrue(FCGIRateLimiter.tryAcquire(params));
+        assertFalse(FCGIRateLimiter.tryAcquire(params));
+    }
+
+    @Test
+    @Timeout(30)
+    void warmupRequestsAreNotLimited() throws Exception {
+        int requests = BURST * 4;
+        AtomicInteger handled = new AtomicInteger();
+        System.setProperty("FCGI_WARMUP_REQUESTS", Integer.toString(requests));
+        ServerSocket socket;
+        try {
+            socket = FCGIWarmup.wrap(() -> new ServerSocket(0, 50, InetAddress.getLoopbackAddress()));
+        } finally {
+            System.clearProperty("FCGI_WARMUP_REQUESTS");
+        }
+        FCGIServer app = new FCGIServer(socket, FCGIServer.newWorkerPool(null), (request, body) -> {
+            handled.incrementAndGet();
+            return CompletableFuture.completedFuture("Content-Type: text/plain\r\n\r\nok".getBytes(StandardCharsets.US_ASCII));
+        });
+        Thread acceptor = new Thread(() -> {
+            try {
+                app.serve();
+            } catch (IOException e) {
+                // Слушающий сокет закрыт
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        try {
+            // Все запросы прогрева приходят с REMOTE_ADDR=127.0.0.1 и должны дойти до обработчика
+            while (handled.get() < requests) {
+                Thread.sleep(10);
+            }
+        } finally {
+            socket.close();
+        }
+        assertEquals(requests, handled.get());
+    }
+
+    private static Properties client(String address) {
+        Properties params = new Properties();
+        params.setProperty("REMOTE_ADDR", address);
+        return params;
+    }
+}
@@ -0,0 +1,118 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты {@link FCGIReaper} для соединений, ожидающих следующего запроса в {@link FCGIIdleSelector}.
+ * Тайм-аут простоя, бюджет памяти и файл статистики задаются в отдельном запуске surefire {@code reaper-test}.
+ */
+class FCGIReaperTest {
+
+    /** Слушающий сокет приложения. */
+    private ServerSocket server;
+
+    @AfterEach
+    void closeServer() throws IOException {
+        if (this.server != null) {
+            this.server.close();
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void expiredIdleConnectionReleasesGauges() throws Exception {
+        assertTrue(FCGIReaper.isEnabled(FCGIReaper.PHASE_IDLE));
+        assertTrue(FCGIMemoryBudget.ENABLED);
+        assertTrue(FCGIStats.ENABLED);
+        // Ожидание в селекторе доступно только соединениям, открытым через канал
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).socket();
+        FCGIServer app = new FCGIServer(this.server, FCGIServer.newWorkerPool(null), (request, body) ->
+                CompletableFuture.completedFuture("Content-Type: text/plain\r\n\r\nok".getBytes(StandardCharsets.US_ASCII)));
+        Thread acceptor = new Thread(() -> {
+            try {
+                app.serve();
+            } catch (IOException e) {
+                // Слушающий сокет закрыт
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        long connectionUsed = FCGIMemoryBudget.getConnectionUsed();
+        long used = FCGIMemoryBudget.getUsed();
+        long active = FCGIStats.get(FCGIStats.ACTIVE);
+        long expired = FCGIReaper.getExpired(FCGIReaper.PHASE_IDLE);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.server.getLocalPort())) {
+            socket.getOutputStream().write(request(1));
+            InputStream in = socket.getInputStream();
+            assertEquals(0, readUntilEnd(in));
+            // Соединение keep-alive ждет следующего запроса и удерживает буферы
+            assertTrue(FCGIMemoryBudget.getConnectionUsed() > connectionUsed);
+
+            // После тайм-аута простоя соединение закрыто приложением
+            assertEquals(-1, in.read());
+        }
+        while (FCGIMemoryBudget.getConnectionUsed() != connectionUsed) {
+            Thread.sleep(10);
+        }
+        assertEquals(expired + 1, FCGIReaper.getExpired(FCGIReaper.PHASE_IDLE));
+        assertEquals(used, FCGIMemoryBudget.getUsed());
+        assertEquals(active, FCGIStats.get(FCGIStats.ACTIVE));
+    }
+
+    /**
+     * Формирует запрос RESPONDER с флагом keep-alive без параметров и тела.
+     */
+    private static byte[] request(int requestId) {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        FCGIEncoder.putBeginRequest(buf, requestId, FCGIGlobalDefs.def_FCGIResponder, FCGIGlobalDefs.def_FCGIKeepConn);
+        int mark = FCGIEncoder.reserveHeader(buf);
+        FCGIEncoder.putNameValue(buf, "REQUEST_METHOD", "GET");
+        FCGIEncoder.finishRecord(buf, mark, FCGIGlobalDefs.def_FCGIParams, requestId);
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIParams, requestId, ByteBuffer.allocate(0));
+        FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, requestId, ByteBuffer.allocate(0));
+        byte[] bytes = new byte[buf.position()];
+        buf.flip().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Читает записи ответа до EndRequest, не читая дальше.
+     *
+     * @return Статус протокола EndRequest.
+     */
+    private static int readUntilEnd(InputStream in) throws IOException {
+        int[] status = {-1};
+        FCGIDecoder decoder = new FCGIDecoder(new FCGIRecordListener() {
+            @Override
+            public void onEndRequest(int requestId, int appStatus, int protocolStatus) {
+                status[0] = protocolStatus;
+            }
+        });
+        while (status[0] < 0) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            assertEquals(0, decoder.decode(ByteBuffer.wrap(new byte[]{(byte) b})));
+        }
+        return status[0];
+    }
+}
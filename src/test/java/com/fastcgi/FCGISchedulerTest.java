@@ -0,0 +1,67 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты {@link FCGIScheduler}: разбор правил, классификация и учет выполненных задач.
+ */
+class FCGISchedulerTest {
+
+    @Test
+    void classifiesByRoleAndScriptPrefix() {
+        FCGIScheduler scheduler = new FCGIScheduler("AUTHORIZER=0, /admin=2, *=1");
+        assertEquals(3, scheduler.classes);
+        assertEquals(0, scheduler.classify(request("AUTHORIZER", "/admin/x")));
+        assertEquals(2, scheduler.classify(request("RESPONDER", "/admin/x")));
+        assertEquals(1, scheduler.classify(request("RESPONDER", "/index")));
+    }
+
+    @Test
+    void rejectsMalformedRules() {
+        for (String spec : new String[]{"AUTHORIZER", "=1", "AUTHORIZER=x", "AUTHORIZER=-1", "AUTHORIZER=100000", "BOGUS=1"}) {
+            assertThrows(IllegalArgumentException.class, () -> new FCGIScheduler(spec), spec);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void countsCompletionAfterTaskRuns() throws Exception {
+        FCGIScheduler scheduler = new FCGIScheduler(null).start(1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(request("RESPONDER", "/"), () -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getQueued(1));
+        assertEquals(0, scheduler.getCompleted(1));
+
+        release.countDown();
+        while (scheduler.getCompleted(1) == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, scheduler.getCompleted(1));
+    }
+
+    private static FCGIRequest request(String role, String script) {
+        FCGIRequest request = new FCGIRequest();
+        request.params = new Properties();
+        request.params.setProperty("ROLE", role);
+        request.params.setProperty("SCRIPT_NAME", script);
+        return request;
+    }
+}
@@ -0,0 +1,118 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Тесты {@link FCGIStdinPublisher}: публикация ограничена временем запроса, а все сигналы подписчику
+ * передаются задачей чтения. Исполнитель выполняет задачи в вызывающем потоке.
+ */
+class FCGIStdinPublisherTest {
+
+    @Test
+    void closedPublisherDoesNotReadFurther() throws Exception {
+        FCGIInputStream in = stdin("abc", "def");
+        FCGIStdinPublisher publisher = new FCGIStdinPublisher(in, Runnable::run, 3);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(1);
+        assertEquals(List.of("next abc"), recorder.events);
+
+        publisher.close();
+        recorder.subscription.request(1);
+        assertEquals(List.of("next abc", "error IllegalStateException"), recorder.events);
+
+        // Данные после завершения запроса остались в потоке соединения
+        byte[] rest = new byte[3];
+        assertEquals(3, in.read(rest));
+        assertEquals("def", new String(rest, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void completedSubscriberIsNotSignalledOnClose() {
+        FCGIStdinPublisher publisher = new FCGIStdinPublisher(stdin("abc"), Runnable::run, 8192);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        publisher.close();
+        assertEquals(List.of("next abc", "complete"), recorder.events);
+    }
+
+    @Test
+    void nonPositiveRequestIsSignalledOnce() {
+        FCGIStdinPublisher publisher = new FCGIStdinPublisher(stdin("abc"), Runnable::run, 8192);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(0);
+        recorder.subscription.request(-1);
+        recorder.subscription.request(1);
+        publisher.close();
+        assertEquals(List.of("error IllegalArgumentException"), recorder.events);
+    }
+
+    @Test
+    void subscribeAfterCloseFails() {
+        FCGIStdinPublisher publisher = new FCGIStdinPublisher(stdin("abc"), Runnable::run, 8192);
+        publisher.close();
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(1);
+        assertEquals(List.of("error IllegalStateException"), recorder.events);
+    }
+
+    /**
+     * Создает поток stdin запроса 1 из записей с указанными данными. Если записей больше одной,
+     * поток не завершается пустой записью.
+     */
+    private static FCGIInputStream stdin(String... records) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        for (String record : records) {
+            FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, 1, ByteBuffer.wrap(record.getBytes(StandardCharsets.US_ASCII)));
+        }
+        if (records.length == 1) {
+            FCGIEncoder.putStream(buf, FCGIGlobalDefs.def_FCGIStdin, 1, ByteBuffer.allocate(0));
+        }
+        FCGIRequest request = new FCGIRequest();
+        request.requestID = 1;
+        return new FCGIInputStream(new ByteArrayInputStream(buf.array(), 0, buf.position()), 8192, FCGIGlobalDefs.def_FCGIStdin, request);
+    }
+
+    /** Сигналы подписчику в порядке получения. */
+    private static final class Recorder implements Flow.Subscriber<ByteBuffer> {
+
+        final List<String> events = new ArrayList<>();
+
+        Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            this.events.add("next " + StandardCharsets.US_ASCII.decode(item));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.events.add("error " + throwable.getClass().getSimpleName());
+        }
+
+        @Override
+        public void onComplete() {
+            this.events.add("complete");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.fastcgi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты удаления файла сокета {@link FCGIUnixServerSocket}.
+ */
+class FCGIUnixServerSocketTest {
+
+    @Test
+    void staleSocketIsReplaced(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("fcgi.sock");
+        // Закрытый канал оставляет файл сокета, к которому никто не подключается
+        ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        stale.bind(UnixDomainSocketAddress.of(path));
+        stale.close();
+        assertTrue(Files.exists(path));
+
+        FCGIUnixServerSocket socket = new FCGIUnixServerSocket(path, 0);
+        socket.close();
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    void liveSocketIsKept(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("fcgi.sock");
+        try (FCGIUnixServerSocket live = new FCGIUnixServerSocket(path, 0)) {
+            assertThrows(BindException.class, () -> new FCGIUnixServerSocket(path, 0));
+            assertTrue(Files.exists(path));
+            assertFalse(live.isClosed());
+        }
+    }
+
+    @Test
+    void regularFileIsKept(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("fcgi.sock");
+        Files.writeString(path, "data");
+        assertThrows(IOException.class, () -> new FCGIUnixServerSocket(path, 0));
+        assertEquals("data", Files.readString(path));
+    }
+
+    @Test
+    void inheritedSocketFileIsKept(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("fcgi.sock");
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(path));
+        FCGIUnixServerSocket socket = new FCGIUnixServerSocket(channel);
+        socket.close();
+        assertFalse(channel.isOpen());
+        assertTrue(Files.exists(path));
+    }
+}